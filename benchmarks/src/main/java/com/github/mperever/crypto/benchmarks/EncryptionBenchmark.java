@@ -0,0 +1,68 @@
+package com.github.mperever.crypto.benchmarks;
+
+import com.github.mperever.crypto.AesEncryptionException;
+import com.github.mperever.crypto.AesEncryptionUtils;
+import com.github.mperever.crypto.EncryptedPrivateData;
+import com.github.mperever.crypto.EncryptedPublicData;
+import com.github.mperever.crypto.EncryptionMode;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Represents benchmarks of bytes encryption and decryption in every mode.
+ *
+ * @author mperever
+ *
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class EncryptionBenchmark
+{
+    @Param( { "16", "1024", "65536", "1048576", "67108864" } )
+    public int payloadSize;
+
+    @Param( { "CBC_HMAC_SHA256", "GCM" } )
+    public EncryptionMode mode;
+
+    private EncryptedPrivateData privateData;
+    private byte[] source;
+    private EncryptedPublicData publicData;
+
+    @Setup
+    public void setup() throws AesEncryptionException
+    {
+        this.privateData = new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        this.source = new byte[this.payloadSize];
+        new Random( this.payloadSize ).nextBytes( this.source );
+        this.publicData = AesEncryptionUtils.encrypt( this.source, this.privateData, this.mode );
+    }
+
+    @Benchmark
+    public EncryptedPublicData encrypt() throws AesEncryptionException
+    {
+        return AesEncryptionUtils.encrypt( this.source, this.privateData, this.mode );
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws AesEncryptionException
+    {
+        return AesEncryptionUtils.decrypt( this.publicData, this.privateData );
+    }
+}
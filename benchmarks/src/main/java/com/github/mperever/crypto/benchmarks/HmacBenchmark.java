@@ -0,0 +1,54 @@
+package com.github.mperever.crypto.benchmarks;
+
+import com.github.mperever.crypto.AesEncryptionException;
+import com.github.mperever.crypto.AesEncryptionUtils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Represents benchmarks of HMAC generation.
+ *
+ * @author mperever
+ *
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class HmacBenchmark
+{
+    @Param( { "16", "1024", "65536", "1048576", "67108864" } )
+    public int payloadSize;
+
+    private byte[] hmacKey;
+    private byte[] source;
+
+    @Setup
+    public void setup() throws AesEncryptionException
+    {
+        this.hmacKey = AesEncryptionUtils.getHmacKey();
+        this.source = new byte[this.payloadSize];
+        new Random( this.payloadSize ).nextBytes( this.source );
+    }
+
+    @Benchmark
+    public byte[] getHmac() throws AesEncryptionException
+    {
+        return AesEncryptionUtils.getHmac( this.source, this.hmacKey );
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.mperever.crypto.benchmarks;
+
+import com.github.mperever.crypto.AesEncryptionException;
+import com.github.mperever.crypto.AesEncryptionUtils;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Represents benchmarks of initialization vector and key generation,
+ * compared with a new SHA1PRNG instance per call.
+ *
+ * @author mperever
+ *
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class RandomSourceBenchmark
+{
+    private static final int INIT_VECTOR_SIZE = 16;
+
+    @Benchmark
+    public byte[] getIv() throws AesEncryptionException
+    {
+        return AesEncryptionUtils.getIv();
+    }
+
+    @Benchmark
+    public byte[] getAesKey() throws AesEncryptionException
+    {
+        return AesEncryptionUtils.getAesKey();
+    }
+
+    @Benchmark
+    public byte[] sha1PrngPerCall() throws NoSuchAlgorithmException
+    {
+        final byte[] initVector = new byte[INIT_VECTOR_SIZE];
+        SecureRandom.getInstance( "SHA1PRNG" ).nextBytes( initVector );
+        return initVector;
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.mperever.crypto.benchmarks;
+
+import com.github.mperever.crypto.AesEncryptionException;
+import com.github.mperever.crypto.AesEncryptionUtils;
+import com.github.mperever.crypto.EncryptedPrivateData;
+import com.github.mperever.crypto.EncryptedPublicData;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Represents benchmarks of public and private data serialization.
+ *
+ * @author mperever
+ *
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class SerializationBenchmark
+{
+    @Param( { "16", "1024", "65536", "1048576", "67108864" } )
+    public int payloadSize;
+
+    private EncryptedPublicData publicData;
+    private String publicDataString;
+    private String privateDataString;
+
+    @Setup
+    public void setup() throws AesEncryptionException
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        final byte[] source = new byte[this.payloadSize];
+        new Random( this.payloadSize ).nextBytes( source );
+
+        this.publicData = AesEncryptionUtils.encrypt( source, privateData );
+        this.publicDataString = this.publicData.saveToString();
+        this.privateDataString = privateData.saveToString();
+    }
+
+    @Benchmark
+    public String publicSaveToString()
+    {
+        return this.publicData.saveToString();
+    }
+
+    @Benchmark
+    public EncryptedPublicData publicFromString()
+    {
+        return EncryptedPublicData.fromString( this.publicDataString );
+    }
+
+    @Benchmark
+    public EncryptedPrivateData privateFromString()
+    {
+        return EncryptedPrivateData.fromString( this.privateDataString );
+    }
+}
@@ -0,0 +1,315 @@
+package com.github.mperever.crypto.benchmarks;
+
+import com.github.mperever.crypto.AesEncryptionException;
+import com.github.mperever.crypto.AesEncryptionUtils;
+import com.github.mperever.crypto.EncryptedPrivateData;
+import com.github.mperever.crypto.EncryptedPublicData;
+import com.github.mperever.crypto.EncryptionMode;
+import com.github.mperever.crypto.metrics.LatencyHistogram;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents load generator for the static API of {@link AesEncryptionUtils}, which runs
+ * encrypt and decrypt round trips from 1 up to N threads and verifies every round trip.
+ *
+ * <p>For each thread count it reports throughput, scaling against a single thread,
+ * p50/p99/p99.9 latency of encryption and decryption, and garbage collections.
+ * Flat or falling scaling points at contention, e.g. in random source or provider lookups.
+ *
+ * <p>Configured by system properties:
+ * <ul>
+ *     <li>{@code stress.threads} - maximum number of threads, 2 * processors by default</li>
+ *     <li>{@code stress.seconds} - measurement time per thread count, 5 by default</li>
+ *     <li>{@code stress.warmupSeconds} - warmup time before the first thread count, 5 by default</li>
+ *     <li>{@code stress.payloads} - payload mix as {@code size:weight} pairs, "64:70,1024:25,65536:5" by default</li>
+ *     <li>{@code stress.mode} - CBC_HMAC_SHA256, GCM or TEXT, CBC_HMAC_SHA256 by default</li>
+ *     <li>{@code stress.sharedKeys} - whether all threads share private keys, true by default</li>
+ * </ul>
+ * The process exits with status 1 if any round trip fails.
+ *
+ * @author mperever
+ *
+ */
+public class StressHarness
+{
+    private static final double NANOS_PER_MICRO = 1_000.0;
+
+    private final int maxThreads;
+    private final long measurementNanos;
+    private final long warmupNanos;
+    private final int[] payloadSizes;
+    private final int[] payloadWeights;
+    private final String mode;
+    private final boolean sharedKeys;
+    private final EncryptedPrivateData sharedPrivateData;
+
+    private StressHarness() throws AesEncryptionException
+    {
+        final int threads = Integer.getInteger( "stress.threads", 0 );
+        this.maxThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors() * 2;
+        this.measurementNanos = TimeUnit.SECONDS.toNanos( Long.getLong( "stress.seconds", 5 ) );
+        this.warmupNanos = TimeUnit.SECONDS.toNanos( Long.getLong( "stress.warmupSeconds", 5 ) );
+        this.mode = System.getProperty( "stress.mode", EncryptionMode.CBC_HMAC_SHA256.name() );
+        this.sharedKeys = Boolean.parseBoolean( System.getProperty( "stress.sharedKeys", "true" ) );
+        this.sharedPrivateData = newPrivateData();
+
+        final String[] payloads = System.getProperty( "stress.payloads", "64:70,1024:25,65536:5" ).split( "," );
+        this.payloadSizes = new int[payloads.length];
+        this.payloadWeights = new int[payloads.length];
+        int totalWeight = 0;
+        for ( int i = 0; i < payloads.length; i++ )
+        {
+            final String[] payload = payloads[i].trim().split( ":" );
+            this.payloadSizes[i] = Integer.parseInt( payload[0] );
+            totalWeight += payload.length > 1 ? Integer.parseInt( payload[1] ) : 1;
+            this.payloadWeights[i] = totalWeight;
+        }
+        if ( !"TEXT".equals( this.mode ) )
+        {
+            EncryptionMode.valueOf( this.mode );
+        }
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        final StressHarness harness = new StressHarness();
+        harness.printConfiguration();
+
+        // Warmup lets JIT compile the hot path before the first measurement
+        harness.run( harness.maxThreads, harness.warmupNanos );
+
+        System.out.printf( Locale.ROOT, "%7s %12s %10s %7s %9s %9s %9s %9s %9s %9s %6s %8s %8s%n",
+                "threads", "ops/s", "MB/s", "scale",
+                "enc p50", "enc p99", "enc p999", "dec p50", "dec p99", "dec p999",
+                "gcs", "gc ms", "failed" );
+
+        double singleThreadThroughput = 0;
+        long failures = 0;
+        for ( int threads : getThreadCounts( harness.maxThreads ) )
+        {
+            final Result result = harness.run( threads, harness.measurementNanos );
+            final double throughput = result.roundTrips.sum() * 1e9 / result.elapsedNanos;
+            if ( threads == 1 )
+            {
+                singleThreadThroughput = throughput;
+            }
+            failures += result.failures.sum();
+
+            System.out.printf( Locale.ROOT,
+                    "%7d %12.0f %10.1f %7.2f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %6d %8d %8d%n",
+                    threads,
+                    throughput,
+                    result.bytes.sum() * 1e3 / result.elapsedNanos,
+                    throughput / singleThreadThroughput,
+                    result.encryptLatency.getValueAtPercentile( 50 ) / NANOS_PER_MICRO,
+                    result.encryptLatency.getValueAtPercentile( 99 ) / NANOS_PER_MICRO,
+                    result.encryptLatency.getValueAtPercentile( 99.9 ) / NANOS_PER_MICRO,
+                    result.decryptLatency.getValueAtPercentile( 50 ) / NANOS_PER_MICRO,
+                    result.decryptLatency.getValueAtPercentile( 99 ) / NANOS_PER_MICRO,
+                    result.decryptLatency.getValueAtPercentile( 99.9 ) / NANOS_PER_MICRO,
+                    result.gcCount,
+                    result.gcMillis,
+                    result.failures.sum() );
+            if ( result.firstFailure != null )
+            {
+                result.firstFailure.printStackTrace( System.out );
+            }
+        }
+
+        System.out.println( "Latency is in microseconds, scale is throughput relative to 1 thread." );
+        if ( failures > 0 )
+        {
+            System.out.println( "FAILED: " + failures + " round trips did not return the source" );
+            System.exit( 1 );
+        }
+    }
+
+    private void printConfiguration()
+    {
+        final StringBuilder payloads = new StringBuilder();
+        for ( int i = 0; i < this.payloadSizes.length; i++ )
+        {
+            final int weight = this.payloadWeights[i] - ( i == 0 ? 0 : this.payloadWeights[i - 1] );
+            payloads.append( i == 0 ? "" : "," ).append( this.payloadSizes[i] ).append( ':' ).append( weight );
+        }
+        System.out.printf( Locale.ROOT,
+                "Java %s, %d processors, mode %s, shared keys %s, payloads %s, %d s per step%n",
+                System.getProperty( "java.version" ),
+                Runtime.getRuntime().availableProcessors(),
+                this.mode,
+                this.sharedKeys,
+                payloads,
+                TimeUnit.NANOSECONDS.toSeconds( this.measurementNanos ) );
+    }
+
+    private static List<Integer> getThreadCounts( int maxThreads )
+    {
+        final TreeSet<Integer> threadCounts = new TreeSet<>();
+        for ( int threads = 1; threads < maxThreads; threads *= 2 )
+        {
+            threadCounts.add( threads );
+        }
+        threadCounts.add( maxThreads );
+        return new ArrayList<>( threadCounts );
+    }
+
+    private Result run( int threads, long durationNanos ) throws Exception
+    {
+        final Result result = new Result();
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final Thread[] workers = new Thread[threads];
+        for ( int i = 0; i < threads; i++ )
+        {
+            final EncryptedPrivateData privateData = this.sharedKeys ? this.sharedPrivateData : newPrivateData();
+            workers[i] = new Thread( () -> work( privateData, start, result ), "stress-" + i );
+            workers[i].start();
+        }
+
+        final long gcCount = getGcCount();
+        final long gcMillis = getGcMillis();
+        final long startNanos = System.nanoTime();
+        result.deadlineNanos = startNanos + durationNanos;
+        start.countDown();
+        for ( Thread worker : workers )
+        {
+            worker.join();
+        }
+        result.elapsedNanos = System.nanoTime() - startNanos;
+        result.gcCount = getGcCount() - gcCount;
+        result.gcMillis = getGcMillis() - gcMillis;
+        return result;
+    }
+
+    private void work( final EncryptedPrivateData privateData, CountDownLatch start, Result result )
+    {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final byte[][] sources = new byte[this.payloadSizes.length][];
+        for ( int i = 0; i < sources.length; i++ )
+        {
+            sources[i] = new byte[this.payloadSizes[i]];
+            random.nextBytes( sources[i] );
+        }
+
+        try
+        {
+            start.await();
+            while ( System.nanoTime() < result.deadlineNanos )
+            {
+                final byte[] source = sources[nextPayload( random )];
+                if ( source.length > 0 )
+                {
+                    // Each round trip has different source, so stale results are not accepted
+                    source[random.nextInt( source.length )] = (byte) random.nextInt();
+                }
+                try
+                {
+                    if ( !roundTrip( source, privateData, result ) )
+                    {
+                        result.failures.increment();
+                    }
+                } catch ( AesEncryptionException | RuntimeException ex )
+                {
+                    result.failures.increment();
+                    result.firstFailure = ex;
+                }
+                result.roundTrips.increment();
+                result.bytes.add( source.length );
+            }
+        } catch ( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean roundTrip( byte[] source, final EncryptedPrivateData privateData, Result result )
+            throws AesEncryptionException
+    {
+        if ( "TEXT".equals( this.mode ) )
+        {
+            // Random bytes are not valid UTF-8, so text is made of Latin-1 characters
+            final String text = new String( source, StandardCharsets.ISO_8859_1 );
+            final long encryptStart = System.nanoTime();
+            final String encrypted = AesEncryptionUtils.encryptTextToString( text, privateData );
+            final long decryptStart = System.nanoTime();
+            final String decrypted = AesEncryptionUtils.decryptText( encrypted, privateData );
+            final long end = System.nanoTime();
+
+            result.encryptLatency.record( decryptStart - encryptStart );
+            result.decryptLatency.record( end - decryptStart );
+            return text.equals( decrypted );
+        }
+
+        final long encryptStart = System.nanoTime();
+        final EncryptedPublicData encrypted =
+                AesEncryptionUtils.encrypt( source, privateData, EncryptionMode.valueOf( this.mode ) );
+        final long decryptStart = System.nanoTime();
+        final byte[] decrypted = AesEncryptionUtils.decrypt( encrypted, privateData );
+        final long end = System.nanoTime();
+
+        result.encryptLatency.record( decryptStart - encryptStart );
+        result.decryptLatency.record( end - decryptStart );
+        return Arrays.equals( source, decrypted );
+    }
+
+    private int nextPayload( ThreadLocalRandom random )
+    {
+        final int weight = random.nextInt( this.payloadWeights[this.payloadWeights.length - 1] );
+        int index = 0;
+        while ( weight >= this.payloadWeights[index] )
+        {
+            index++;
+        }
+        return index;
+    }
+
+    private static EncryptedPrivateData newPrivateData() throws AesEncryptionException
+    {
+        return new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+    }
+
+    private static long getGcCount()
+    {
+        long count = 0;
+        for ( GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans() )
+        {
+            count += Math.max( 0, collector.getCollectionCount() );
+        }
+        return count;
+    }
+
+    private static long getGcMillis()
+    {
+        long millis = 0;
+        for ( GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans() )
+        {
+            millis += Math.max( 0, collector.getCollectionTime() );
+        }
+        return millis;
+    }
+
+    private static class Result
+    {
+        final LongAdder roundTrips = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LatencyHistogram encryptLatency = new LatencyHistogram();
+        final LatencyHistogram decryptLatency = new LatencyHistogram();
+        volatile long deadlineNanos;
+        volatile Exception firstFailure;
+        long elapsedNanos;
+        long gcCount;
+        long gcMillis;
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.mperever.crypto.benchmarks;
+
+import com.github.mperever.crypto.AesEncryptionException;
+import com.github.mperever.crypto.AesEncryptionUtils;
+import com.github.mperever.crypto.EncryptedData;
+import com.github.mperever.crypto.EncryptedPrivateData;
+import com.github.mperever.crypto.EncryptedPublicData;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Represents benchmarks of text encryption and decryption.
+ *
+ * @author mperever
+ *
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class TextBenchmark
+{
+    @Param( { "16", "1024", "65536", "1048576" } )
+    public int textLength;
+
+    private EncryptedPrivateData privateData;
+    private String text;
+    private String encryptedText;
+    private final StringBuilder builder = new StringBuilder();
+
+    @Setup
+    public void setup() throws AesEncryptionException
+    {
+        this.privateData = new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        final char[] chars = new char[this.textLength];
+        Arrays.fill( chars, 'a' );
+        this.text = new String( chars );
+        this.encryptedText = AesEncryptionUtils.encryptText( this.text, this.privateData ).saveToString();
+    }
+
+    @Benchmark
+    public EncryptedPublicData encryptText() throws AesEncryptionException
+    {
+        return AesEncryptionUtils.encryptText( this.text, this.privateData );
+    }
+
+    @Benchmark
+    public String encryptTextAndSave() throws AesEncryptionException
+    {
+        return AesEncryptionUtils.encryptText( this.text, this.privateData ).saveToString();
+    }
+
+    @Benchmark
+    public String encryptTextToString() throws AesEncryptionException
+    {
+        return AesEncryptionUtils.encryptTextToString( this.text, this.privateData );
+    }
+
+    @Benchmark
+    public StringBuilder encryptTextToBuilder() throws AesEncryptionException, IOException
+    {
+        this.builder.setLength( 0 );
+        AesEncryptionUtils.encryptText( this.text, this.privateData, this.builder );
+        return this.builder;
+    }
+
+    @Benchmark
+    public EncryptedData encryptTextWithNewKeys() throws AesEncryptionException
+    {
+        return AesEncryptionUtils.encryptText( this.text );
+    }
+
+    @Benchmark
+    public String decryptText() throws AesEncryptionException
+    {
+        return AesEncryptionUtils.decryptText( this.encryptedText, this.privateData );
+    }
+
+    @Benchmark
+    public StringBuilder decryptTextToBuilder() throws AesEncryptionException, IOException
+    {
+        this.builder.setLength( 0 );
+        AesEncryptionUtils.decryptText( this.encryptedText, this.privateData, this.builder );
+        return this.builder;
+    }
+}
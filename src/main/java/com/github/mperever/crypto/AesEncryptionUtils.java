@@ -1,23 +1,24 @@
 package com.github.mperever.crypto;
 
+import com.github.mperever.crypto.metrics.CryptoMetrics;
+import com.github.mperever.crypto.metrics.Operation;
+import com.github.mperever.utils.Base64Utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.util.Arrays;
-import javax.crypto.BadPaddingException;
+import java.nio.file.Path;
+import java.util.List;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.KeyGenerator;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Represents utility to encrypt and decrypt data using AES256 and HMAC.
@@ -27,31 +28,41 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class AesEncryptionUtils
 {
-    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
     private static final String AES_KEY_ALGORITHM = "AES";
     private static final int AES_KEY_SIZE = 32; // in bytes (256 bits)
-    private static final String SECURE_RANDOM_ALGORITHM = "SHA1PRNG";
     private static final int INIT_VECTOR_SIZE = 16; // in bytes (128 bits)
     private static final int HMAC_KEY_SIZE = 32; // in bytes (256 bits)
-    private static final String HMAC_ALGORITHM = "HmacSHA256";
     private static final Charset CHARSET_ENCODING = StandardCharsets.UTF_8;
 
+    private static volatile RandomSource randomSource;
+    private static volatile CryptoMetrics metrics = CryptoMetrics.NOOP;
+
     static
     {
-        try
+        // Java 9 and later have unlimited strength policy by default, so JCE is not initialized here
+        if ( !isCipherStrengthUnlimitedByDefault() )
         {
-            final int maxCipherKeySize = Cipher.getMaxAllowedKeyLength( AES_KEY_ALGORITHM );
+            try
+            {
+                final int maxCipherKeySize = Cipher.getMaxAllowedKeyLength( AES_KEY_ALGORITHM );
 
-            if ( maxCipherKeySize < AES_KEY_SIZE * 8 )
+                if ( maxCipherKeySize < AES_KEY_SIZE * 8 )
+                {
+                    setUnlimitedCipherStrength();
+                }
+            } catch ( Exception ex )
             {
-                setUnlimitedCipherStrength();
+                ex.printStackTrace();
             }
-        } catch ( Exception ex )
-        {
-            ex.printStackTrace();
         }
     }
 
+    private static boolean isCipherStrengthUnlimitedByDefault()
+    {
+        // Specification version is "1.8" for Java 8 and "9", "10" and so on for later versions
+        return !System.getProperty( "java.specification.version", "" ).startsWith( "1." );
+    }
+
     private static void setUnlimitedCipherStrength() throws Exception
     {
         final int maxAesStrength = javax.crypto.Cipher.getMaxAllowedKeyLength("AES");
@@ -74,23 +85,77 @@ public class AesEncryptionUtils
     }
 
     /**
-     * Generates private AES Key.
+     * Gets the source of random bytes for initialization vectors and keys.
+     * {@link ThreadLocalRandomSource} is used by default.
      *
-     * @return AES Key bytes
-     * @throws AesEncryptionException if AES algorithm is not found.
+     * @return The random source
+     * @throws AesEncryptionException if default random algorithm is not found
      */
-    public static byte[] getAesKey() throws AesEncryptionException
+    public static RandomSource getRandomSource() throws AesEncryptionException
     {
-        try
+        RandomSource source = randomSource;
+        if ( source == null )
         {
-            final KeyGenerator keyGen = KeyGenerator.getInstance( AES_KEY_ALGORITHM );
-            keyGen.init( AES_KEY_SIZE * 8 ); // value in bits
-            return keyGen.generateKey().getEncoded();
+            synchronized ( AesEncryptionUtils.class )
+            {
+                source = randomSource;
+                if ( source == null )
+                {
+                    source = new ThreadLocalRandomSource();
+                    randomSource = source;
+                }
+            }
+        }
+        return source;
+    }
 
-        } catch ( NoSuchAlgorithmException ex )
+    /**
+     * Sets the source of random bytes for initialization vectors and keys.
+     *
+     * @param source The thread-safe random source
+     */
+    public static void setRandomSource( RandomSource source )
+    {
+        if ( source == null )
         {
-            throw new AesEncryptionException( ex );
+            throw new IllegalArgumentException( "Random source is null" );
         }
+        randomSource = source;
+    }
+
+    /**
+     * Gets the metrics of crypto operations. {@link CryptoMetrics#NOOP} is used by default.
+     *
+     * @return The metrics
+     */
+    public static CryptoMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics of crypto operations, e.g. {@link com.github.mperever.crypto.metrics.JmxCryptoMetrics}.
+     *
+     * @param cryptoMetrics The thread-safe metrics
+     */
+    public static void setMetrics( CryptoMetrics cryptoMetrics )
+    {
+        if ( cryptoMetrics == null )
+        {
+            throw new IllegalArgumentException( "Metrics is null" );
+        }
+        metrics = cryptoMetrics;
+    }
+
+    /**
+     * Generates private AES Key.
+     *
+     * @return AES Key bytes
+     * @throws AesEncryptionException if random algorithm is not found.
+     */
+    public static byte[] getAesKey() throws AesEncryptionException
+    {
+        return getRandomKey( AES_KEY_SIZE );
     }
 
     /**
@@ -101,7 +166,7 @@ public class AesEncryptionUtils
      */
     public static byte[] getIv() throws AesEncryptionException
     {
-        return getRandomKey( INIT_VECTOR_SIZE );
+        return getRandomIv( INIT_VECTOR_SIZE );
     }
 
     /**
@@ -126,17 +191,7 @@ public class AesEncryptionUtils
      */
     public static byte[] getHmac( byte[] source, byte[] hmacKey ) throws AesEncryptionException
     {
-        final SecretKeySpec keySpec = new SecretKeySpec( hmacKey, HMAC_ALGORITHM );
-        try
-        {
-            final Mac hmac = Mac.getInstance( HMAC_ALGORITHM );
-            hmac.init( keySpec );
-            return hmac.doFinal( source );
-
-        } catch ( NoSuchAlgorithmException | InvalidKeyException ex )
-        {
-            throw new AesEncryptionException( ex );
-        }
+        return AesHmacEngine.threadHmac( source, hmacKey );
     }
 
     /**
@@ -153,30 +208,18 @@ public class AesEncryptionUtils
                                                final EncryptedPrivateData privateData )
             throws AesEncryptionException
     {
-        final SecretKey key = getAesSecretKey( privateData.getAesKey() );
-        final IvParameterSpec ivSpec = new IvParameterSpec( initVector );
-
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
         try
         {
-            // Encrypt source bytes
-            final Cipher cp = Cipher.getInstance( CIPHER_TRANSFORMATION );
-            cp.init( Cipher.ENCRYPT_MODE, key, ivSpec );
-            final byte[] encryptedSource = cp.doFinal( source );
-
-            // Get HMAC for source
-            final byte[] hmac = getHmac( encryptedSource, privateData.getHmacKey() );
-
-            // Create public data
-            return new EncryptedPublicData( encryptedSource, initVector, hmac );
-
-        } catch ( NoSuchAlgorithmException
-                | InvalidKeyException
-                | InvalidAlgorithmParameterException
-                | BadPaddingException
-                | NoSuchPaddingException
-                | IllegalBlockSizeException ex )
+            final EncryptedPublicData publicData =
+                    AesHmacEngine.forCurrentThread( privateData ).encrypt( source, initVector );
+            success = true;
+            return publicData;
+        } finally
         {
-            throw new AesEncryptionException( ex );
+            record( cryptoMetrics, Operation.ENCRYPT, source.length, start, success );
         }
     }
 
@@ -188,6 +231,133 @@ public class AesEncryptionUtils
         return encrypt( source, initVector, privateData );
     }
 
+    /**
+     * Encrypts source bytes deterministically, so equal sources produce equal encrypted data
+     * and encrypted columns can be searched by equality, e.g. with {@link BlindIndex}.
+     * The result is decrypted by {@link #decryptDeterministic(EncryptedPublicData, EncryptedPrivateData)}.
+     *
+     * @param source The source for encryption
+     * @param privateData private information for encryption
+     * @return public information with encrypted source
+     * @throws AesEncryptionException if an error occurs during encryptions
+     * @see AesHmacEngine#encryptDeterministic(byte[])
+     */
+    public static EncryptedPublicData encryptDeterministic( byte[] source,
+                                                            final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final EncryptedPublicData publicData =
+                    AesHmacEngine.forCurrentThread( privateData ).encryptDeterministic( source );
+            success = true;
+            return publicData;
+        } finally
+        {
+            record( cryptoMetrics, Operation.ENCRYPT, source.length, start, success );
+        }
+    }
+
+    /**
+     * Encrypt the text deterministically, so equal texts produce equal encrypted data.
+     *
+     * @param text The text for encryption
+     * @param privateData The private keys
+     * @return Encrypted public data
+     * @throws AesEncryptionException if an error occurs during encryption.
+     */
+    public static EncryptedPublicData encryptTextDeterministic( String text,
+                                                                final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        return encryptDeterministic( text.getBytes( CHARSET_ENCODING ), privateData );
+    }
+
+    /**
+     * Decrypts source encrypted by {@link #encryptDeterministic(byte[], EncryptedPrivateData)}
+     * and verifies its synthetic initialization vector, so a changed vector is detected.
+     *
+     * @param publicData public information for decryption
+     * @param privateData private information for decryption
+     * @return Decrypted source
+     * @throws AesEncryptionException if HMAC or synthetic initialization vector is invalid,
+     *     or an error occurs during decryption.
+     * @see AesHmacEngine#decryptDeterministic(EncryptedPublicData)
+     */
+    public static byte[] decryptDeterministic( final EncryptedPublicData publicData,
+                                               final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final byte[] decryptedSource =
+                    AesHmacEngine.forCurrentThread( privateData ).decryptDeterministic( publicData );
+            success = true;
+            return decryptedSource;
+        } finally
+        {
+            record( cryptoMetrics, Operation.DECRYPT, publicData.getEncryptedDataSize(), start, success );
+        }
+    }
+
+    /**
+     * Decrypt the text encrypted by {@link #encryptTextDeterministic(String, EncryptedPrivateData)}
+     * and verify its synthetic initialization vector.
+     *
+     * @param publicData public information for decryption
+     * @param privateData The private keys
+     * @return Decrypted text
+     * @throws AesEncryptionException if HMAC or synthetic initialization vector is invalid,
+     *     or an error occurs during decryption.
+     */
+    public static String decryptTextDeterministic( final EncryptedPublicData publicData,
+                                                   final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        return new String( decryptDeterministic( publicData, privateData ), CHARSET_ENCODING );
+    }
+
+    /**
+     * Encrypts source bytes in the specified mode with random initialization vector (nonce).
+     *
+     * @param source The source for encryption
+     * @param privateData private information for encryption
+     * @param mode The encryption mode
+     * @return public information with encrypted source
+     * @throws AesEncryptionException if an error occurs during encryptions
+     */
+    public static EncryptedPublicData encrypt( byte[] source,
+                                               final EncryptedPrivateData privateData,
+                                               EncryptionMode mode )
+            throws AesEncryptionException
+    {
+        final byte[] initVector = getRandomIv( mode.getInitVectorSize() );
+        if ( mode != EncryptionMode.GCM )
+        {
+            return encrypt( source, initVector, privateData );
+        }
+
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final EncryptedPublicData publicData =
+                    AesGcmEngine.forCurrentThread( privateData ).encrypt( source, initVector );
+            success = true;
+            return publicData;
+        } finally
+        {
+            record( cryptoMetrics, Operation.ENCRYPT, source.length, start, success );
+        }
+    }
+
     /**
      * Encrypt the specified text.
      * Encryption private keys will be generated automatically.
@@ -224,6 +394,85 @@ public class AesEncryptionUtils
         return encrypt( text.getBytes( CHARSET_ENCODING ), privateData );
     }
 
+    /**
+     * Encrypt the text with specified private keys in the specified mode.
+     *
+     * @param text The text for encryption
+     * @param privateData The private keys
+     * @param mode The encryption mode
+     * @return Encrypted public data
+     * @throws AesEncryptionException if an error occurs during encryption.
+     */
+    public static EncryptedPublicData encryptText( String text,
+                                                   final EncryptedPrivateData privateData,
+                                                   EncryptionMode mode )
+            throws AesEncryptionException
+    {
+        return encrypt( text.getBytes( CHARSET_ENCODING ), privateData, mode );
+    }
+
+    /**
+     * Encrypt the text with specified private keys and append it to the destination
+     * in {@link EncryptedPublicData#saveToString()} format. Intermediate bytes are kept
+     * in reusable buffers of current thread, so nothing is allocated in steady state.
+     *
+     * @param text The text for encryption
+     * @param privateData The private keys
+     * @param destination The destination to append encrypted text to
+     * @throws AesEncryptionException if an error occurs during encryption.
+     * @throws IOException if the destination fails to append.
+     */
+    public static void encryptText( CharSequence text,
+                                    final EncryptedPrivateData privateData,
+                                    Appendable destination )
+            throws AesEncryptionException, IOException
+    {
+        final byte[] initVector = TextScratch.forCurrentThread().initVector;
+        nextRandomBytes( initVector, Operation.IV_GENERATION );
+
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            AesHmacEngine.forCurrentThread( privateData ).encryptText( text, initVector, destination );
+            success = true;
+        } finally
+        {
+            record( cryptoMetrics, Operation.ENCRYPT, getTextSize( cryptoMetrics, text ), start, success );
+        }
+    }
+
+    /**
+     * Encrypt the text with specified private keys to string
+     * in {@link EncryptedPublicData#saveToString()} format.
+     * The result string is the only allocation in steady state.
+     *
+     * @param text The text for encryption
+     * @param privateData The private keys
+     * @return Encrypted text
+     * @throws AesEncryptionException if an error occurs during encryption.
+     */
+    public static String encryptTextToString( CharSequence text, final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final byte[] initVector = TextScratch.forCurrentThread().initVector;
+        nextRandomBytes( initVector, Operation.IV_GENERATION );
+
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final String encryptedText = AesHmacEngine.forCurrentThread( privateData ).encryptText( text, initVector );
+            success = true;
+            return encryptedText;
+        } finally
+        {
+            record( cryptoMetrics, Operation.ENCRYPT, getTextSize( cryptoMetrics, text ), start, success );
+        }
+    }
+
     /**
      * Decrypts encrypted source with specified AES Key, initialization vector,
      * HMAC for encrypted source and HMAC key.
@@ -237,33 +486,510 @@ public class AesEncryptionUtils
                                   final EncryptedPrivateData privateData )
             throws AesEncryptionException
     {
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final byte[] decryptedSource = publicData.getMode() == EncryptionMode.GCM
+                    ? AesGcmEngine.forCurrentThread( privateData ).decrypt( publicData )
+                    : AesHmacEngine.forCurrentThread( privateData ).decrypt( publicData );
+            success = true;
+            return decryptedSource;
+        } finally
+        {
+            record( cryptoMetrics, Operation.DECRYPT, publicData.getEncryptedDataSize(), start, success );
+        }
+    }
 
-        final byte[] source = publicData.getEncryptedData();
-        final byte[] hmac = publicData.getHmac();
-        final byte[] initVector = publicData.getInitVector();
+    /**
+     * Decrypts the view of encrypted public data without copying its bytes.
+     *
+     * @param publicData public information for decryption
+     * @param privateData private information for decryption
+     * @return Decrypted source
+     * @throws AesEncryptionException if an error occurs during decryption
+     */
+    public static byte[] decrypt( final EncryptedPublicDataView publicData,
+                                  final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final byte[] decryptedSource = publicData.getMode() == EncryptionMode.GCM
+                    ? AesGcmEngine.forCurrentThread( privateData ).decrypt( publicData )
+                    : AesHmacEngine.forCurrentThread( privateData ).decrypt( publicData );
+            success = true;
+            return decryptedSource;
+        } finally
+        {
+            record( cryptoMetrics, Operation.DECRYPT, publicData.getEncryptedDataSize(), start, success );
+        }
+    }
 
-        final byte[] aesKey = privateData.getAesKey();
-        final byte[] hmacKey = privateData.getHmacKey();
+    /**
+     * Decrypts lazily parsed public data, which is decoded once into a single array.
+     *
+     * @param publicData public information for decryption
+     * @param privateData private information for decryption
+     * @return Decrypted source
+     * @throws AesEncryptionException if the public data is not valid Base64
+     *     or an error occurs during decryption
+     */
+    public static byte[] decrypt( final LazyEncryptedPublicData publicData,
+                                  final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        return decrypt( publicData.asView(), privateData );
+    }
+
+    /**
+     * Encrypts remaining bytes of source buffer into destination buffer.
+     * Encrypted data, HMAC and initialization vector are written to destination
+     * with the same layout as bytes of {@link EncryptedPublicData#saveToString()}.
+     *
+     * @param source The source buffer for encryption
+     * @param destination The destination buffer
+     * @param privateData private information for encryption
+     * @return The number of bytes written to destination
+     * @throws AesEncryptionException if an error occurs during encryption
+     *     or destination buffer is too small.
+     */
+    public static int encrypt( ByteBuffer source,
+                               ByteBuffer destination,
+                               final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final byte[] initVector = getIv();
+        final int sourceSize = source.remaining();
+
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final int encryptedSize =
+                    AesHmacEngine.forCurrentThread( privateData ).encrypt( source, destination, initVector );
+            success = true;
+            return encryptedSize;
+        } finally
+        {
+            record( cryptoMetrics, Operation.ENCRYPT, sourceSize, start, success );
+        }
+    }
+
+    /**
+     * Decrypts remaining bytes of source buffer, written by
+     * {@link #encrypt(ByteBuffer, ByteBuffer, EncryptedPrivateData)}, into destination buffer.
+     *
+     * @param source The buffer with encrypted public data
+     * @param destination The destination buffer
+     * @param privateData private information for decryption
+     * @return The number of bytes written to destination
+     * @throws AesEncryptionException if an error occurs during decryption
+     *     or destination buffer is too small.
+     */
+    public static int decrypt( ByteBuffer source,
+                               ByteBuffer destination,
+                               final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final int sourceSize = source.remaining();
 
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
         try
         {
-            checkSourceHmac( source, hmac, hmacKey );
+            final int decryptedSize = AesHmacEngine.forCurrentThread( privateData ).decrypt( source, destination );
+            success = true;
+            return decryptedSize;
+        } finally
+        {
+            record( cryptoMetrics, Operation.DECRYPT, getEncryptedDataSize( sourceSize ), start, success );
+        }
+    }
 
-            final SecretKey key = getAesSecretKey( aesKey );
-            final IvParameterSpec ivSpec = new IvParameterSpec( initVector );
+    /**
+     * Encrypts the input stream into the output stream by fixed-size chunks,
+     * so memory usage does not depend on the source size.
+     * The output contains initialization vector as header and HMAC as trailer.
+     *
+     * @param in The source stream for encryption
+     * @param out The stream to write encrypted source to
+     * @param privateData private information for encryption
+     * @throws AesEncryptionException if an error occurs during encryption
+     * @throws IOException if an I/O error occurs
+     */
+    public static void encrypt( InputStream in,
+                                OutputStream out,
+                                final EncryptedPrivateData privateData )
+            throws AesEncryptionException, IOException
+    {
+        final byte[] initVector = getIv();
+        final CountingInputStream source = new CountingInputStream( in );
 
-            final Cipher cp = Cipher.getInstance( CIPHER_TRANSFORMATION );
-            cp.init( Cipher.DECRYPT_MODE, key, ivSpec );
-            return cp.doFinal( source );
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            AesHmacEngine.forCurrentThread( privateData ).encrypt( source, out, initVector );
+            success = true;
+        } finally
+        {
+            record( cryptoMetrics, Operation.ENCRYPT, source.count, start, success );
+        }
+    }
 
-        } catch ( NoSuchAlgorithmException
-                | InvalidKeyException
-                | NoSuchPaddingException
-                | InvalidAlgorithmParameterException
-                | BadPaddingException
-                | IllegalBlockSizeException ex )
+    /**
+     * Encrypts the readable channel into the writable channel by fixed-size chunks.
+     *
+     * @param in The source channel for encryption
+     * @param out The channel to write encrypted source to
+     * @param privateData private information for encryption
+     * @throws AesEncryptionException if an error occurs during encryption
+     * @throws IOException if an I/O error occurs
+     * @see #encrypt(InputStream, OutputStream, EncryptedPrivateData)
+     */
+    public static void encrypt( ReadableByteChannel in,
+                                WritableByteChannel out,
+                                final EncryptedPrivateData privateData )
+            throws AesEncryptionException, IOException
+    {
+        encrypt( Channels.newInputStream( in ), Channels.newOutputStream( out ), privateData );
+    }
+
+    /**
+     * Decrypts the input stream created by {@link #encrypt(InputStream, OutputStream, EncryptedPrivateData)}
+     * into the output stream by fixed-size chunks.
+     * HMAC is verified at the end of stream, so the output must be discarded
+     * if an exception is thrown.
+     *
+     * @param in The stream with encrypted source
+     * @param out The stream to write decrypted source to
+     * @param privateData private information for decryption
+     * @throws AesEncryptionException if an error occurs during decryption
+     * @throws IOException if an I/O error occurs
+     */
+    public static void decrypt( InputStream in,
+                                OutputStream out,
+                                final EncryptedPrivateData privateData )
+            throws AesEncryptionException, IOException
+    {
+        final CountingInputStream source = new CountingInputStream( in );
+
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
         {
-            throw new AesEncryptionException( ex );
+            AesHmacEngine.forCurrentThread( privateData ).decrypt( source, out );
+            success = true;
+        } finally
+        {
+            record( cryptoMetrics, Operation.DECRYPT, getEncryptedDataSize( source.count ), start, success );
+        }
+    }
+
+    /**
+     * Decrypts the readable channel into the writable channel by fixed-size chunks.
+     *
+     * @param in The channel with encrypted source
+     * @param out The channel to write decrypted source to
+     * @param privateData private information for decryption
+     * @throws AesEncryptionException if an error occurs during decryption
+     * @throws IOException if an I/O error occurs
+     * @see #decrypt(InputStream, OutputStream, EncryptedPrivateData)
+     */
+    public static void decrypt( ReadableByteChannel in,
+                                WritableByteChannel out,
+                                final EncryptedPrivateData privateData )
+            throws AesEncryptionException, IOException
+    {
+        decrypt( Channels.newInputStream( in ), Channels.newOutputStream( out ), privateData );
+    }
+
+    /**
+     * Encrypts file into segmented format with default segment size, without loading it to heap.
+     *
+     * @param source The source file
+     * @param destination The encrypted file, created or truncated
+     * @param privateData private information for encryption
+     * @throws AesEncryptionException if an error occurs during encryption
+     * @throws IOException if an I/O error occurs
+     * @see SegmentedAesEncryption#encryptFile(Path, Path, EncryptedPrivateData)
+     */
+    public static void encryptFile( Path source, Path destination, final EncryptedPrivateData privateData )
+            throws AesEncryptionException, IOException
+    {
+        new SegmentedAesEncryption().encryptFile( source, destination, privateData );
+    }
+
+    /**
+     * Verifies and decrypts file in segmented format, without loading it to heap.
+     *
+     * @param source The encrypted file in segmented format
+     * @param destination The decrypted file, created or truncated
+     * @param privateData private information for decryption
+     * @throws AesEncryptionException if the format is invalid, any HMAC is invalid
+     *     or an error occurs during decryption.
+     * @throws IOException if an I/O error occurs
+     * @see SegmentedAesEncryption#decryptFile(Path, Path, EncryptedPrivateData)
+     */
+    public static void decryptFile( Path source, Path destination, final EncryptedPrivateData privateData )
+            throws AesEncryptionException, IOException
+    {
+        new SegmentedAesEncryption().decryptFile( source, destination, privateData );
+    }
+
+    /**
+     * Encrypts source bytes with private keys of the specified key id.
+     *
+     * @param source The source for encryption
+     * @param keyId The key id
+     * @param keyCache The cache of prepared keys
+     * @return public information with encrypted source
+     * @throws AesEncryptionException if the keys cannot be loaded or an error occurs during encryption
+     */
+    public static EncryptedPublicData encrypt( byte[] source, String keyId, final KeyCache keyCache )
+            throws AesEncryptionException
+    {
+        final byte[] initVector = getIv();
+
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final EncryptedPublicData publicData =
+                    keyCache.withEngine( keyId, engine -> engine.encrypt( source, initVector ) );
+            success = true;
+            return publicData;
+        } finally
+        {
+            record( cryptoMetrics, Operation.ENCRYPT, source.length, start, success );
+        }
+    }
+
+    /**
+     * Decrypts encrypted source with private keys of the specified key id.
+     *
+     * @param publicData public information for decryption
+     * @param keyId The key id
+     * @param keyCache The cache of prepared keys
+     * @return Decrypted source
+     * @throws AesEncryptionException if the keys cannot be loaded or an error occurs during decryption
+     */
+    public static byte[] decrypt( final EncryptedPublicData publicData, String keyId, final KeyCache keyCache )
+            throws AesEncryptionException
+    {
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final byte[] decryptedSource = keyCache.withEngine( keyId, engine -> engine.decrypt( publicData ) );
+            success = true;
+            return decryptedSource;
+        } finally
+        {
+            record( cryptoMetrics, Operation.DECRYPT, publicData.getEncryptedDataSize(), start, success );
+        }
+    }
+
+    /**
+     * Encrypt the text with private keys of the specified key id.
+     *
+     * @param text The text for encryption
+     * @param keyId The key id
+     * @param keyCache The cache of prepared keys
+     * @return Encrypted public data
+     * @throws AesEncryptionException if the keys cannot be loaded or an error occurs during encryption.
+     */
+    public static EncryptedPublicData encryptText( String text, String keyId, final KeyCache keyCache )
+            throws AesEncryptionException
+    {
+        return encrypt( text.getBytes( CHARSET_ENCODING ), keyId, keyCache );
+    }
+
+    /**
+     * Decrypt the text with private keys of the specified key id.
+     *
+     * @param encryptedText The text for decryption
+     * @param keyId The key id
+     * @param keyCache The cache of prepared keys
+     * @return Decrypted text
+     * @throws AesEncryptionException if the keys cannot be loaded or an error occurs during decryption.
+     */
+    public static String decryptText( String encryptedText, String keyId, final KeyCache keyCache )
+            throws AesEncryptionException
+    {
+        final EncryptedPublicData publicData = EncryptedPublicData.fromString( encryptedText );
+        return new String( decrypt( publicData, keyId, keyCache ), CHARSET_ENCODING );
+    }
+
+    /**
+     * Encrypts batch of sources with the same private keys.
+     * Cipher, MAC and initialization vectors are prepared once for the whole batch.
+     *
+     * @param sources The sources for encryption
+     * @param privateData private information for encryption
+     * @return public information with encrypted sources in the same order
+     * @throws AesEncryptionException if an error occurs during encryption
+     */
+    public static List<EncryptedPublicData> encryptBatch( List<byte[]> sources,
+                                                          final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final byte[] initVectors = getRandomIv( sources.size() * INIT_VECTOR_SIZE );
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final List<EncryptedPublicData> publicData = AesHmacEngine.forCurrentThread( privateData ).encryptBatch( sources, initVectors );
+            success = true;
+            return publicData;
+        } finally
+        {
+            record( cryptoMetrics, Operation.ENCRYPT, getTotalSize( cryptoMetrics, sources ), start, success );
+        }
+    }
+
+    /**
+     * Encrypts batch of sources with the same private keys into one contiguous buffer
+     * with an offset index.
+     *
+     * @param sources The sources for encryption
+     * @param privateData private information for encryption
+     * @return The packed encrypted public data in the same order
+     * @throws AesEncryptionException if an error occurs during encryption
+     */
+    public static PackedEncryptedData encryptBatchPacked( List<byte[]> sources,
+                                                          final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final byte[] initVectors = getRandomIv( sources.size() * INIT_VECTOR_SIZE );
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final PackedEncryptedData packedData = AesHmacEngine.forCurrentThread( privateData ).encryptBatchPacked( sources, initVectors );
+            success = true;
+            return packedData;
+        } finally
+        {
+            record( cryptoMetrics, Operation.ENCRYPT, getTotalSize( cryptoMetrics, sources ), start, success );
+        }
+    }
+
+    /**
+     * Encrypts batch of texts with the same private keys.
+     *
+     * @param texts The texts for encryption
+     * @param privateData private information for encryption
+     * @return Encrypted texts in {@link EncryptedPublicData#saveToString()} format, in the same order
+     * @throws AesEncryptionException if an error occurs during encryption
+     */
+    public static List<String> encryptTextBatch( List<String> texts,
+                                                 final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final byte[] initVectors = getRandomIv( texts.size() * INIT_VECTOR_SIZE );
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final List<String> encryptedTexts = AesHmacEngine.forCurrentThread( privateData ).encryptTextBatch( texts, initVectors );
+            success = true;
+            return encryptedTexts;
+        } finally
+        {
+            record( cryptoMetrics, Operation.ENCRYPT, getTotalTextSize( cryptoMetrics, texts ), start, success );
+        }
+    }
+
+    /**
+     * Decrypts batch of encrypted public data with the same private keys.
+     *
+     * @param publicData public information for decryption
+     * @param privateData private information for decryption
+     * @return Decrypted sources in the same order
+     * @throws AesEncryptionException if an error occurs during decryption of any source
+     */
+    public static List<byte[]> decryptBatch( List<EncryptedPublicData> publicData,
+                                             final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final List<byte[]> decryptedSources = AesHmacEngine.forCurrentThread( privateData ).decryptBatch( publicData );
+            success = true;
+            return decryptedSources;
+        } finally
+        {
+            record( cryptoMetrics, Operation.DECRYPT, getTotalEncryptedDataSize( cryptoMetrics, publicData ), start, success );
+        }
+    }
+
+    /**
+     * Decrypts batch of packed encrypted public data with the same private keys.
+     *
+     * @param packedData The packed public information for decryption
+     * @param privateData private information for decryption
+     * @return Decrypted sources in the same order
+     * @throws AesEncryptionException if an error occurs during decryption of any source
+     */
+    public static List<byte[]> decryptBatch( final PackedEncryptedData packedData,
+                                             final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final List<byte[]> decryptedSources = AesHmacEngine.forCurrentThread( privateData ).decryptBatch( packedData );
+            success = true;
+            return decryptedSources;
+        } finally
+        {
+            record( cryptoMetrics, Operation.DECRYPT, getTotalEncryptedDataSize( cryptoMetrics, packedData ), start, success );
+        }
+    }
+
+    /**
+     * Decrypts batch of texts with the same private keys.
+     *
+     * @param encryptedTexts The texts in {@link EncryptedPublicData#saveToString()} format
+     * @param privateData private information for decryption
+     * @return Decrypted texts in the same order
+     * @throws AesEncryptionException if an error occurs during decryption of any text
+     */
+    public static List<String> decryptTextBatch( List<String> encryptedTexts,
+                                                 final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final List<String> texts = AesHmacEngine.forCurrentThread( privateData ).decryptTextBatch( encryptedTexts );
+            success = true;
+            return texts;
+        } finally
+        {
+            record( cryptoMetrics, Operation.DECRYPT, getTotalEncryptedTextSize( cryptoMetrics, encryptedTexts ), start, success );
         }
     }
 
@@ -278,41 +1004,241 @@ public class AesEncryptionUtils
     public static String decryptText( String encryptedText, final EncryptedPrivateData privateData )
             throws AesEncryptionException
     {
-        final EncryptedPublicData publicData = EncryptedPublicData.fromString( encryptedText );
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            final String text = AesHmacEngine.forCurrentThread( privateData ).decryptText( encryptedText );
+            success = true;
+            return text;
+        } finally
+        {
+            record( cryptoMetrics, Operation.DECRYPT, getEncryptedTextSize( cryptoMetrics, encryptedText ), start, success );
+        }
+    }
 
-        // Decrypt source text
-        final byte[] decryptedSource = decrypt( publicData, privateData );
+    /**
+     * Decrypt the text, created by {@link EncryptedPublicData#saveToString()}, using specified
+     * private keys and append it to the destination. Intermediate bytes are kept
+     * in reusable buffers of current thread, so nothing is allocated in steady state.
+     *
+     * @param encryptedText The text for decryption
+     * @param privateData The private keys
+     * @param destination The destination to append decrypted text to
+     * @throws AesEncryptionException if an error occurs during decryption.
+     * @throws IOException if the destination fails to append.
+     */
+    public static void decryptText( CharSequence encryptedText,
+                                    final EncryptedPrivateData privateData,
+                                    Appendable destination )
+            throws AesEncryptionException, IOException
+    {
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        boolean success = false;
+        try
+        {
+            AesHmacEngine.forCurrentThread( privateData ).decryptText( encryptedText, destination );
+            success = true;
+        } finally
+        {
+            record( cryptoMetrics, Operation.DECRYPT, getEncryptedTextSize( cryptoMetrics, encryptedText ), start, success );
+        }
+    }
 
+    /**
+     * Decrypt the versioned text, created by {@link EncryptedPublicData#saveToVersionedString()},
+     * using specified private keys. The encryption mode is taken from the text.
+     *
+     * @param encryptedText The versioned text for decryption
+     * @param privateData The private keys
+     * @return Decrypted text
+     * @throws AesEncryptionException if an error occurs during decryption.
+     */
+    public static String decryptVersionedText( String encryptedText, final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final EncryptedPublicData publicData;
+        try
+        {
+            publicData = EncryptedPublicData.fromVersionedString( encryptedText );
+        } catch ( IllegalArgumentException ex )
+        {
+            throw new AesEncryptionException( ex );
+        }
+
+        final byte[] decryptedSource = decrypt( publicData, privateData );
         return new String( decryptedSource, CHARSET_ENCODING );
     }
 
-    private static SecretKey getAesSecretKey( byte[] bytes )
+    static byte[] getRandomKey( int keySize ) throws AesEncryptionException
     {
-        return new SecretKeySpec( bytes, AES_KEY_ALGORITHM );
+        final byte[] randomKey = new byte[keySize];
+        nextRandomBytes( randomKey, Operation.KEY_GENERATION );
+        return randomKey;
     }
 
-    private static byte[] getRandomKey( int keySize ) throws AesEncryptionException
+    static byte[] getRandomIv( int initVectorSize ) throws AesEncryptionException
     {
-        final byte[] randomKey = new byte[keySize];
-        try
+        final byte[] initVector = new byte[initVectorSize];
+        nextRandomBytes( initVector, Operation.IV_GENERATION );
+        return initVector;
+    }
+
+    private static void nextRandomBytes( byte[] bytes, Operation operation ) throws AesEncryptionException
+    {
+        final CryptoMetrics cryptoMetrics = metrics;
+        final long start = startTimer( cryptoMetrics );
+        getRandomSource().nextBytes( bytes );
+        record( cryptoMetrics, operation, bytes.length, start, true );
+    }
+
+    /**
+     * Gets size of encrypted data in encrypted public data of the specified size,
+     * laid out as bytes of {@link EncryptedPublicData#saveToString()}.
+     */
+    private static long getEncryptedDataSize( long publicDataSize )
+    {
+        return Math.max( 0L, publicDataSize - AesHmacEngine.HMAC_SIZE - INIT_VECTOR_SIZE );
+    }
+
+    private static long getEncryptedTextSize( CryptoMetrics cryptoMetrics, CharSequence encryptedText )
+    {
+        return cryptoMetrics.isEnabled() ? getEncryptedDataSize( Base64Utils.getDecodedSize( encryptedText ) ) : 0L;
+    }
+
+    /**
+     * Gets size of the text in UTF-8 bytes. The text is scanned only if metrics are enabled.
+     */
+    private static long getTextSize( CryptoMetrics cryptoMetrics, CharSequence text )
+    {
+        return cryptoMetrics.isEnabled() ? TextScratch.getEncodedSize( text ) : 0L;
+    }
+
+    private static long getTotalSize( CryptoMetrics cryptoMetrics, List<byte[]> sources )
+    {
+        long size = 0;
+        if ( cryptoMetrics.isEnabled() )
         {
-            final SecureRandom secureRandom = SecureRandom.getInstance( SECURE_RANDOM_ALGORITHM );
-            secureRandom.nextBytes( randomKey );
-            return randomKey;
-        } catch ( NoSuchAlgorithmException ex )
+            for ( byte[] source : sources )
+            {
+                size += source.length;
+            }
+        }
+        return size;
+    }
+
+    private static long getTotalTextSize( CryptoMetrics cryptoMetrics, List<String> texts )
+    {
+        long size = 0;
+        for ( String text : texts )
         {
-            throw new AesEncryptionException( ex );
+            size += getTextSize( cryptoMetrics, text );
+        }
+        return size;
+    }
+
+    private static long getTotalEncryptedDataSize( CryptoMetrics cryptoMetrics, List<EncryptedPublicData> publicData )
+    {
+        long size = 0;
+        if ( cryptoMetrics.isEnabled() )
+        {
+            for ( EncryptedPublicData data : publicData )
+            {
+                size += data.getEncryptedDataSize();
+            }
+        }
+        return size;
+    }
+
+    private static long getTotalEncryptedDataSize( CryptoMetrics cryptoMetrics, PackedEncryptedData packedData )
+    {
+        long size = 0;
+        if ( cryptoMetrics.isEnabled() )
+        {
+            for ( int i = 0; i < packedData.size(); i++ )
+            {
+                size += getEncryptedDataSize( packedData.getSize( i ) );
+            }
+        }
+        return size;
+    }
+
+    private static long getTotalEncryptedTextSize( CryptoMetrics cryptoMetrics, List<String> encryptedTexts )
+    {
+        long size = 0;
+        for ( String encryptedText : encryptedTexts )
+        {
+            size += getEncryptedTextSize( cryptoMetrics, encryptedText );
+        }
+        return size;
+    }
+
+    /**
+     * Represents input stream which counts bytes read from the source stream,
+     * so payload size of stream operations is known when the stream ends.
+     */
+    private static final class CountingInputStream extends FilterInputStream
+    {
+        private long count;
+
+        CountingInputStream( InputStream in )
+        {
+            super( in );
         }
+
+        @Override
+        public int read() throws IOException
+        {
+            final int value = super.read();
+            if ( value >= 0 )
+            {
+                this.count++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            final int read = super.read( buffer, offset, length );
+            if ( read > 0 )
+            {
+                this.count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip( long n ) throws IOException
+        {
+            final long skipped = super.skip( n );
+            this.count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+
+    static long startTimer( CryptoMetrics cryptoMetrics )
+    {
+        return cryptoMetrics.isEnabled() ? System.nanoTime() : 0L;
     }
 
-    private static void checkSourceHmac( byte[] source,
-                                         byte[] expectedHmac,
-                                         byte[] hmacKey ) throws AesEncryptionException
+    static void record( CryptoMetrics cryptoMetrics,
+                        Operation operation,
+                        long payloadSize,
+                        long start,
+                        boolean success )
     {
-        final byte[] observedHmac = getHmac( source, hmacKey );
-        if ( !Arrays.equals( expectedHmac, observedHmac ) )
+        if ( cryptoMetrics.isEnabled() )
         {
-            throw new AesEncryptionException( "Invalid HMAC key" );
+            cryptoMetrics.record( operation, payloadSize, System.nanoTime() - start, success );
         }
     }
 }
\ No newline at end of file
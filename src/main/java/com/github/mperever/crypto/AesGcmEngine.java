@@ -0,0 +1,245 @@
+package com.github.mperever.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Represents stateful AES256-GCM engine bound to one {@link EncryptedPrivateData}.
+ * Encryption and authentication are done in a single pass, so HMAC key is not used.
+ *
+ * <p>The engine is not thread-safe. Use one instance per thread
+ * or {@link #forCurrentThread(EncryptedPrivateData)}.
+ *
+ * <p>When the private keys are destroyed, the engine drops its key spec and overwrites
+ * the key of its cipher, and later operations fail.
+ *
+ * @author mperever
+ *
+ */
+public class AesGcmEngine
+{
+    static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static final EncryptionMode MODE = EncryptionMode.GCM;
+    private static final SecretKeySpec ZERO_AES_KEY =
+            new SecretKeySpec( new byte[32], AesHmacEngine.AES_KEY_ALGORITHM );
+    private static final ThreadLocal<AesGcmEngine> THREAD_ENGINE = new ThreadLocal<>();
+
+    private final EncryptedPrivateData privateData;
+    private final Cipher cipher;
+    private final KeyGuard guard;
+    private final EngineKey aesKey;
+
+    /**
+     * Constructor with private keys for encryption.
+     *
+     * @param privateData The private keys
+     * @throws AesEncryptionException if AES GCM algorithm is not found.
+     */
+    public AesGcmEngine( final EncryptedPrivateData privateData ) throws AesEncryptionException
+    {
+        this.privateData = privateData;
+        this.cipher = newCipher();
+        this.aesKey = privateData.withAesKey(
+                key -> new EngineKey( key.clone(), AesHmacEngine.AES_KEY_ALGORITHM ) );
+
+        this.guard = new KeyGuard( this::wipeKeys );
+        try
+        {
+            privateData.registerEngine( this.guard );
+        } catch ( AesEncryptionException ex )
+        {
+            wipeKeys();
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the engine of current thread for the specified private keys.
+     *
+     * @param privateData The private keys
+     * @return The engine confined to current thread
+     * @throws AesEncryptionException if AES GCM algorithm is not found.
+     * @see AesHmacEngine#forCurrentThread(EncryptedPrivateData)
+     */
+    public static AesGcmEngine forCurrentThread( final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final AesGcmEngine current = THREAD_ENGINE.get();
+        if ( current != null && current.privateData == privateData )
+        {
+            return current;
+        }
+
+        final AesGcmEngine engine = new AesGcmEngine( privateData );
+        THREAD_ENGINE.set( engine );
+        return engine;
+    }
+
+    /**
+     * Gets the private keys of the engine.
+     *
+     * @return The private keys
+     */
+    public EncryptedPrivateData getPrivateData()
+    {
+        return this.privateData;
+    }
+
+    /**
+     * Encrypts source bytes with specified nonce.
+     * The nonce must never be reused with the same key.
+     *
+     * @param source The source for encryption
+     * @param nonce Public 12 bytes nonce
+     * @return public information with encrypted source and authentication tag
+     * @throws AesEncryptionException if an error occurs during encryptions
+     */
+    public EncryptedPublicData encrypt( byte[] source, byte[] nonce ) throws AesEncryptionException
+    {
+        this.guard.acquire();
+        try
+        {
+            this.cipher.init( Cipher.ENCRYPT_MODE, this.aesKey, getParameterSpec( nonce ) );
+            final byte[] encryptedSourceWithTag = this.cipher.doFinal( source );
+
+            // Cipher appends authentication tag to the encrypted source
+            final byte[] encryptedSource = Arrays.copyOf( encryptedSourceWithTag, source.length );
+            final byte[] tag = Arrays.copyOfRange( encryptedSourceWithTag,
+                    source.length,
+                    encryptedSourceWithTag.length );
+
+            return EncryptedPublicData.wrap( encryptedSource, nonce.clone(), tag, MODE );
+
+        } catch ( InvalidKeyException
+                | InvalidAlgorithmParameterException
+                | BadPaddingException
+                | IllegalBlockSizeException ex )
+        {
+            throw new AesEncryptionException( ex );
+        } finally
+        {
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Decrypts encrypted source after authentication tag verification.
+     *
+     * @param publicData public information for decryption
+     * @return Decrypted source
+     * @throws AesEncryptionException if an error occurs during decryption
+     *     or authentication tag is invalid.
+     */
+    public byte[] decrypt( final EncryptedPublicData publicData ) throws AesEncryptionException
+    {
+        return decrypt( publicData.asView() );
+    }
+
+    /**
+     * Decrypts encrypted source of the view after authentication tag verification.
+     *
+     * @param publicData public information for decryption
+     * @return Decrypted source
+     * @throws AesEncryptionException if an error occurs during decryption
+     *     or authentication tag is invalid.
+     */
+    public byte[] decrypt( final EncryptedPublicDataView publicData ) throws AesEncryptionException
+    {
+        if ( publicData.getMode() != MODE )
+        {
+            throw new AesEncryptionException( "Unsupported encryption mode: " + publicData.getMode() );
+        }
+
+        // Sizes are checked before any cryptographic work
+        if ( publicData.getHmacSize() != MODE.getTagSize() )
+        {
+            throw new AesEncryptionException( "Invalid authentication tag size: " + publicData.getHmacSize() );
+        }
+        if ( publicData.getInitVectorSize() != MODE.getInitVectorSize() )
+        {
+            throw new AesEncryptionException( "Invalid nonce size: " + publicData.getInitVectorSize() );
+        }
+
+        final ByteBuffer initVector = publicData.getInitVectorBuffer();
+        final byte[] nonce = new byte[initVector.remaining()];
+        initVector.get( nonce );
+
+        // Writable buffers let cipher use backing arrays instead of copying
+        final ByteBuffer encryptedSource = publicData.getEncryptedDataBuffer();
+        final byte[] decrypted = new byte[encryptedSource.remaining()];
+        final ByteBuffer destination = ByteBuffer.wrap( decrypted );
+        this.guard.acquire();
+        try
+        {
+            this.cipher.init( Cipher.DECRYPT_MODE, this.aesKey, getParameterSpec( nonce ) );
+
+            // Cipher expects authentication tag after the encrypted source
+            this.cipher.update( encryptedSource, destination );
+            this.cipher.doFinal( publicData.getHmacBuffer(), destination );
+            return destination.hasRemaining()
+                    ? Arrays.copyOf( decrypted, destination.position() )
+                    : decrypted;
+
+        } catch ( InvalidKeyException
+                | InvalidAlgorithmParameterException
+                | ShortBufferException
+                | BadPaddingException
+                | IllegalBlockSizeException ex )
+        {
+            throw new AesEncryptionException( ex );
+        } finally
+        {
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Zeroes the AES key of the engine and overwrites the key of cipher, which keeps it until initialized
+     * with another key. Called by {@link KeyGuard} when the private keys are destroyed.
+     */
+    private void wipeKeys()
+    {
+        this.aesKey.destroy();
+        try
+        {
+            // Decryption mode is used, since encryption rejects reuse of the last nonce
+            this.cipher.init( Cipher.DECRYPT_MODE,
+                    ZERO_AES_KEY,
+                    new GCMParameterSpec( MODE.getTagSize() * 8, new byte[MODE.getInitVectorSize()] ) );
+        } catch ( InvalidKeyException | InvalidAlgorithmParameterException ex )
+        {
+            // Zero key is always accepted, and the engine is not used after the wipe anyway
+        }
+    }
+
+    private static GCMParameterSpec getParameterSpec( byte[] nonce ) throws AesEncryptionException
+    {
+        if ( nonce.length != MODE.getInitVectorSize() )
+        {
+            throw new AesEncryptionException( "Invalid nonce size: " + nonce.length );
+        }
+        return new GCMParameterSpec( MODE.getTagSize() * 8, nonce );
+    }
+
+    private static Cipher newCipher() throws AesEncryptionException
+    {
+        try
+        {
+            return CryptoProviders.newCipher( CIPHER_TRANSFORMATION );
+        } catch ( NoSuchAlgorithmException | NoSuchPaddingException ex )
+        {
+            throw new AesEncryptionException( ex );
+        }
+    }
+}
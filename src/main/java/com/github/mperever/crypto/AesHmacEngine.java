@@ -0,0 +1,1247 @@
+package com.github.mperever.crypto;
+
+import com.github.mperever.crypto.metrics.CryptoMetrics;
+import com.github.mperever.crypto.metrics.Operation;
+import com.github.mperever.utils.Base64Utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Represents stateful AES256 + HMAC engine bound to one {@link EncryptedPrivateData}.
+ * The {@link Cipher}, {@link Mac} and key specs are created once and only the
+ * initialization vector is changed per message.
+ *
+ * <p>The engine is not thread-safe. Use one instance per thread
+ * or {@link #forCurrentThread(EncryptedPrivateData)}.
+ *
+ * <p>When the private keys are destroyed, the engine drops its key specs and overwrites
+ * the keys of its cipher and MAC, and later operations fail.
+ *
+ * @author mperever
+ *
+ */
+public class AesHmacEngine
+{
+    static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    static final String AES_KEY_ALGORITHM = "AES";
+    static final String HMAC_ALGORITHM = "HmacSHA256";
+    static final int AES_BLOCK_SIZE = 16; // in bytes
+    static final int INIT_VECTOR_SIZE = 16; // in bytes
+    static final int HMAC_SIZE = 32; // in bytes
+    static final int STREAM_CHUNK_SIZE = 64 * 1024; // in bytes
+
+    private static final byte[] SYNTHETIC_IV_LABEL = "synthetic-iv".getBytes( StandardCharsets.US_ASCII );
+
+    // Domains of HMAC usage in segmented format
+    private static final byte SEGMENT_IV_DOMAIN = 1;
+    private static final byte SEGMENT_TAG_DOMAIN = 2;
+    private static final byte SEGMENTS_TAG_DOMAIN = 3;
+
+    // Keys which overwrite key material of cipher and MAC when the private keys are destroyed
+    private static final SecretKeySpec ZERO_AES_KEY = new SecretKeySpec( new byte[32], AES_KEY_ALGORITHM );
+    private static final SecretKeySpec ZERO_HMAC_KEY = new SecretKeySpec( new byte[32], HMAC_ALGORITHM );
+
+    private static final ThreadLocal<AesHmacEngine> THREAD_ENGINE = new ThreadLocal<>();
+    private static final ThreadLocal<Mac> THREAD_MAC = new ThreadLocal<>();
+
+    private final EncryptedPrivateData privateData;
+    private final Cipher cipher;
+    private final Mac mac;
+    private final KeyGuard guard;
+    private final EngineKey aesKey;
+    private final byte[] hmacScratch = new byte[HMAC_SIZE];
+    private final ByteBuffer longScratch = ByteBuffer.allocate( Long.BYTES );
+    private ByteBuffer segmentScratch;
+    private Mac syntheticIvMac;
+
+    /**
+     * Constructor with private keys for encryption.
+     *
+     * @param privateData The private keys
+     * @throws AesEncryptionException if AES or HMAC algorithm is not found
+     *     or the private keys are inappropriate.
+     */
+    public AesHmacEngine( final EncryptedPrivateData privateData ) throws AesEncryptionException
+    {
+        this.privateData = privateData;
+        this.cipher = newCipher();
+        this.mac = newMac();
+        this.aesKey = privateData.withAesKey( key -> new EngineKey( key.clone(), AES_KEY_ALGORITHM ) );
+        final EngineKey hmacKey = privateData.withHmacKey( key -> new EngineKey( key.clone(), HMAC_ALGORITHM ) );
+        try
+        {
+            this.mac.init( hmacKey );
+        } catch ( InvalidKeyException ex )
+        {
+            this.aesKey.destroy();
+            throw new AesEncryptionException( ex );
+        } finally
+        {
+            // MAC keeps its own padded key, so the engine copy is not needed after init
+            hmacKey.destroy();
+        }
+
+        this.guard = new KeyGuard( this::wipeKeys );
+        try
+        {
+            privateData.registerEngine( this.guard );
+        } catch ( AesEncryptionException ex )
+        {
+            wipeKeys();
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the engine of current thread for the specified private keys.
+     * The engine of the previous call is reused when private data is the same,
+     * otherwise a new engine replaces it. Each engine owns its cipher and MAC,
+     * so engines returned earlier keep working with their own keys.
+     *
+     * @param privateData The private keys
+     * @return The engine confined to current thread
+     * @throws AesEncryptionException if AES or HMAC algorithm is not found
+     *     or the private keys are inappropriate.
+     */
+    public static AesHmacEngine forCurrentThread( final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final AesHmacEngine current = THREAD_ENGINE.get();
+        if ( current != null && current.privateData == privateData )
+        {
+            return current;
+        }
+
+        final AesHmacEngine engine = new AesHmacEngine( privateData );
+        THREAD_ENGINE.set( engine );
+        return engine;
+    }
+
+    /**
+     * Generate HMAC for the specified source and HMAC key,
+     * using MAC instance of current thread.
+     *
+     * @param source The target source for generation
+     * @param hmacKey HMAC key
+     * @return HMAC bytes for source
+     * @throws AesEncryptionException if HMAC algorithm is not found
+     *     or given HMAC key is inappropriate for this MAC.
+     */
+    static byte[] threadHmac( byte[] source, byte[] hmacKey ) throws AesEncryptionException
+    {
+        Mac hmac = THREAD_MAC.get();
+        if ( hmac == null )
+        {
+            hmac = newMac();
+            THREAD_MAC.set( hmac );
+        }
+
+        try
+        {
+            hmac.init( new SecretKeySpec( hmacKey, HMAC_ALGORITHM ) );
+            return hmac.doFinal( source );
+
+        } catch ( InvalidKeyException ex )
+        {
+            throw new AesEncryptionException( ex );
+        }
+    }
+
+    /**
+     * Gets the private keys of the engine.
+     *
+     * @return The private keys
+     */
+    public EncryptedPrivateData getPrivateData()
+    {
+        return this.privateData;
+    }
+
+    /**
+     * Generate HMAC for the specified source.
+     *
+     * @param source The target source for generation
+     * @return HMAC bytes for source
+     * @throws IllegalStateException if the private keys are destroyed
+     */
+    public byte[] getHmac( byte[] source )
+    {
+        try
+        {
+            this.guard.acquire();
+        } catch ( AesEncryptionException ex )
+        {
+            throw new IllegalStateException( ex.getMessage(), ex );
+        }
+        try
+        {
+            this.mac.reset();
+            return this.mac.doFinal( source );
+        } finally
+        {
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Encrypts source bytes with specified initialization vector.
+     *
+     * @param source The source for encryption
+     * @param initVector Public initialization vector
+     * @return public information with encrypted source
+     * @throws AesEncryptionException if an error occurs during encryptions
+     */
+    public EncryptedPublicData encrypt( byte[] source, byte[] initVector ) throws AesEncryptionException
+    {
+        this.guard.acquire();
+        try
+        {
+            // Encrypt source bytes
+            this.cipher.init( Cipher.ENCRYPT_MODE, this.aesKey, new IvParameterSpec( initVector ) );
+            final byte[] encryptedSource = this.cipher.doFinal( source );
+
+            // Get HMAC for source
+            this.mac.reset();
+            final byte[] hmac = this.mac.doFinal( encryptedSource );
+
+            // Create public data
+            return EncryptedPublicData.wrap( encryptedSource,
+                    initVector.clone(),
+                    hmac,
+                    EncryptionMode.CBC_HMAC_SHA256 );
+
+        } catch ( InvalidKeyException
+                | InvalidAlgorithmParameterException
+                | BadPaddingException
+                | IllegalBlockSizeException ex )
+        {
+            throw new AesEncryptionException( ex );
+        } finally
+        {
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Encrypts source bytes deterministically with synthetic initialization vector,
+     * which is HMAC of the source, so equal sources produce equal encrypted data.
+     * The result has the same layout as with random initialization vector and is decrypted
+     * by {@link #decryptDeterministic(EncryptedPublicData)}.
+     *
+     * <p>Only equality of sources is revealed: different sources still get unpredictable
+     * initialization vectors. Synthetic initialization vector is computed with a key derived
+     * from HMAC key, so it is not HMAC of encrypted data under the same key.
+     *
+     * @param source The source for encryption
+     * @return public information with encrypted source
+     * @throws AesEncryptionException if an error occurs during encryption
+     */
+    public EncryptedPublicData encryptDeterministic( byte[] source ) throws AesEncryptionException
+    {
+        return encrypt( source, getSyntheticIv( source ) );
+    }
+
+    /**
+     * Decrypts encrypted source of {@link #encryptDeterministic(byte[])} after HMAC verification,
+     * and verifies its synthetic initialization vector. HMAC of the record covers encrypted data only,
+     * so the initialization vector is computed again from decrypted source and compared in constant time.
+     *
+     * @param publicData public information for decryption
+     * @return Decrypted source
+     * @throws AesEncryptionException if HMAC or synthetic initialization vector is invalid,
+     *     or an error occurs during decryption.
+     */
+    public byte[] decryptDeterministic( final EncryptedPublicData publicData ) throws AesEncryptionException
+    {
+        final byte[] source = decrypt( publicData );
+        boolean verified = false;
+        try
+        {
+            compareHmac( getSyntheticIv( source ), publicData.getInitVector(), source.length );
+            verified = true;
+            return source;
+        } finally
+        {
+            if ( !verified )
+            {
+                Arrays.fill( source, (byte) 0 );
+            }
+        }
+    }
+
+    /**
+     * Gets synthetic initialization vector of the source for deterministic encryption.
+     *
+     * @param source The source
+     * @return The initialization vector
+     * @throws AesEncryptionException if HMAC algorithm is not found
+     */
+    byte[] getSyntheticIv( byte[] source ) throws AesEncryptionException
+    {
+        this.guard.acquire();
+        try
+        {
+            if ( this.syntheticIvMac == null )
+            {
+                final Mac ivMac = newMac();
+                this.mac.reset();
+                final EngineKey ivKey = new EngineKey( this.mac.doFinal( SYNTHETIC_IV_LABEL ), HMAC_ALGORITHM );
+                try
+                {
+                    ivMac.init( ivKey );
+                } catch ( InvalidKeyException ex )
+                {
+                    throw new AesEncryptionException( ex );
+                } finally
+                {
+                    ivKey.destroy();
+                }
+                this.syntheticIvMac = ivMac;
+            }
+            return Arrays.copyOf( this.syntheticIvMac.doFinal( source ), INIT_VECTOR_SIZE );
+        } finally
+        {
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Decrypts encrypted source after HMAC verification.
+     *
+     * @param publicData public information for decryption
+     * @return Decrypted source
+     * @throws AesEncryptionException if an error occurs during decryption
+     */
+    public byte[] decrypt( final EncryptedPublicData publicData ) throws AesEncryptionException
+    {
+        return decrypt( publicData.asView() );
+    }
+
+    /**
+     * Decrypts encrypted source of the view after HMAC verification.
+     *
+     * @param publicData public information for decryption
+     * @return Decrypted source
+     * @throws AesEncryptionException if an error occurs during decryption
+     */
+    public byte[] decrypt( final EncryptedPublicDataView publicData ) throws AesEncryptionException
+    {
+        final byte[] decrypted = new byte[publicData.getEncryptedDataSize()];
+        final int decryptedSize = decrypt( publicData, ByteBuffer.wrap( decrypted ) );
+        return Arrays.copyOf( decrypted, decryptedSize );
+    }
+
+    /**
+     * Encrypts remaining bytes of source buffer into destination buffer.
+     * Encrypted data, HMAC and initialization vector are written to destination
+     * with the same layout as bytes of {@link EncryptedPublicData#saveToString()}.
+     * Both heap and direct buffers are supported.
+     *
+     * @param source The source buffer for encryption, its position is moved to limit
+     * @param destination The destination buffer, its position is moved after written bytes
+     * @param initVector Public initialization vector
+     * @return The number of bytes written to destination
+     * @throws AesEncryptionException if an error occurs during encryption
+     *     or destination buffer is too small.
+     */
+    public int encrypt( ByteBuffer source, ByteBuffer destination, byte[] initVector )
+            throws AesEncryptionException
+    {
+        return encrypt( source, destination, initVector, 0, initVector.length );
+    }
+
+    private int encrypt( ByteBuffer source,
+                         ByteBuffer destination,
+                         byte[] initVectors,
+                         int initVectorOffset,
+                         int initVectorSize )
+            throws AesEncryptionException
+    {
+        final int requiredSize = getEncryptedSize( source.remaining() ) + HMAC_SIZE + initVectorSize;
+        if ( destination.remaining() < requiredSize )
+        {
+            throw new AesEncryptionException( "Destination buffer is too small, required: " + requiredSize );
+        }
+
+        final int start = destination.position();
+        this.guard.acquire();
+        try
+        {
+            // Encrypt source bytes
+            this.cipher.init( Cipher.ENCRYPT_MODE,
+                    this.aesKey,
+                    new IvParameterSpec( initVectors, initVectorOffset, initVectorSize ) );
+            this.cipher.doFinal( source, destination );
+
+            // Get HMAC for encrypted bytes
+            final ByteBuffer encryptedSource = destination.duplicate();
+            encryptedSource.limit( destination.position() );
+            encryptedSource.position( start );
+            this.mac.reset();
+            this.mac.update( encryptedSource );
+            this.mac.doFinal( this.hmacScratch, 0 );
+
+            destination.put( this.hmacScratch );
+            destination.put( initVectors, initVectorOffset, initVectorSize );
+            return destination.position() - start;
+
+        } catch ( InvalidKeyException
+                | InvalidAlgorithmParameterException
+                | ShortBufferException
+                | BadPaddingException
+                | IllegalBlockSizeException ex )
+        {
+            throw new AesEncryptionException( ex );
+        } finally
+        {
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Decrypts remaining bytes of source buffer into destination buffer after HMAC verification.
+     * Source must have the layout written by {@link #encrypt(ByteBuffer, ByteBuffer, byte[])}.
+     *
+     * @param source The buffer with encrypted public data, its position is moved to limit
+     * @param destination The destination buffer, its position is moved after written bytes
+     * @return The number of bytes written to destination
+     * @throws AesEncryptionException if an error occurs during decryption
+     *     or destination buffer is too small.
+     */
+    public int decrypt( ByteBuffer source, ByteBuffer destination ) throws AesEncryptionException
+    {
+        final int decryptedSize = decrypt( EncryptedPublicDataView.wrap( source ), destination );
+        source.position( source.limit() );
+        return decryptedSize;
+    }
+
+    /**
+     * Decrypts encrypted source of the view into destination buffer after HMAC verification.
+     * Sizes of the parts are checked before any cryptographic work, and HMAC is compared
+     * in constant time before decryption.
+     *
+     * @param publicData public information for decryption
+     * @param destination The destination buffer, its position is moved after written bytes
+     * @return The number of bytes written to destination
+     * @throws AesEncryptionException if an error occurs during decryption
+     *     or destination buffer is too small.
+     */
+    public int decrypt( final EncryptedPublicDataView publicData, ByteBuffer destination )
+            throws AesEncryptionException
+    {
+        if ( publicData.getMode() != EncryptionMode.CBC_HMAC_SHA256 )
+        {
+            throw new AesEncryptionException( "Unsupported encryption mode: " + publicData.getMode() );
+        }
+
+        checkInitVectorSize( publicData.getInitVectorSize() );
+        checkHmacSize( publicData.getHmacSize() );
+        checkEncryptedSize( publicData.getEncryptedDataSize() );
+        if ( destination.remaining() < publicData.getEncryptedDataSize() )
+        {
+            throw new AesEncryptionException(
+                    "Destination buffer is too small, required: " + publicData.getEncryptedDataSize() );
+        }
+
+        // Writable buffers let cipher and MAC use backing arrays instead of copying
+        final ByteBuffer encryptedSource = publicData.getEncryptedDataBuffer();
+        this.guard.acquire();
+        try
+        {
+            this.mac.reset();
+            this.mac.update( encryptedSource.duplicate() );
+            this.mac.doFinal( this.hmacScratch, 0 );
+            compareHmac( this.hmacScratch, publicData.getHmacBuffer(), encryptedSource.remaining() );
+
+            this.cipher.init( Cipher.DECRYPT_MODE,
+                    this.aesKey,
+                    getIvParameterSpec( publicData.getInitVectorBuffer() ) );
+            return this.cipher.doFinal( encryptedSource, destination );
+
+        } catch ( InvalidKeyException
+                | InvalidAlgorithmParameterException
+                | ShortBufferException
+                | BadPaddingException
+                | IllegalBlockSizeException ex )
+        {
+            throw new AesEncryptionException( ex );
+        } finally
+        {
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Encrypts batch of sources. Cipher and MAC are initialized once for the batch.
+     *
+     * @param sources The sources for encryption
+     * @param initVectors Concatenated initialization vectors, one per source
+     * @return public information with encrypted sources in the same order
+     * @throws AesEncryptionException if an error occurs during encryption
+     */
+    public List<EncryptedPublicData> encryptBatch( List<byte[]> sources, byte[] initVectors )
+            throws AesEncryptionException
+    {
+        checkInitVectors( sources.size(), initVectors );
+
+        final List<EncryptedPublicData> encrypted = new ArrayList<>( sources.size() );
+        for ( int i = 0; i < sources.size(); i++ )
+        {
+            final byte[] initVector =
+                    Arrays.copyOfRange( initVectors, i * INIT_VECTOR_SIZE, ( i + 1 ) * INIT_VECTOR_SIZE );
+            encrypted.add( encrypt( sources.get( i ), initVector ) );
+        }
+        return encrypted;
+    }
+
+    /**
+     * Encrypts batch of sources into one contiguous buffer with an offset index,
+     * so no object is created per source.
+     *
+     * @param sources The sources for encryption
+     * @param initVectors Concatenated initialization vectors, one per source
+     * @return The packed encrypted public data in the same order
+     * @throws AesEncryptionException if an error occurs during encryption
+     */
+    public PackedEncryptedData encryptBatchPacked( List<byte[]> sources, byte[] initVectors )
+            throws AesEncryptionException
+    {
+        checkInitVectors( sources.size(), initVectors );
+
+        final int[] offsets = new int[sources.size() + 1];
+        long packedSize = 0;
+        for ( int i = 0; i < sources.size(); i++ )
+        {
+            offsets[i] = (int) packedSize;
+            packedSize += getEncryptedSize( sources.get( i ).length ) + HMAC_SIZE + INIT_VECTOR_SIZE;
+            if ( packedSize > Integer.MAX_VALUE - 8 )
+            {
+                throw new AesEncryptionException( "Packed batch is too large: " + packedSize );
+            }
+        }
+        offsets[sources.size()] = (int) packedSize;
+
+        final byte[] packed = new byte[(int) packedSize];
+        final ByteBuffer destination = ByteBuffer.wrap( packed );
+        for ( int i = 0; i < sources.size(); i++ )
+        {
+            encrypt( ByteBuffer.wrap( sources.get( i ) ),
+                    destination,
+                    initVectors,
+                    i * INIT_VECTOR_SIZE,
+                    INIT_VECTOR_SIZE );
+        }
+        return PackedEncryptedData.wrap( packed, offsets );
+    }
+
+    /**
+     * Encrypts batch of texts to strings in {@link EncryptedPublicData#saveToString()} format.
+     *
+     * @param texts The texts for encryption
+     * @param initVectors Concatenated initialization vectors, one per text
+     * @return Encrypted texts in the same order
+     * @throws AesEncryptionException if an error occurs during encryption
+     */
+    public List<String> encryptTextBatch( List<String> texts, byte[] initVectors ) throws AesEncryptionException
+    {
+        checkInitVectors( texts.size(), initVectors );
+
+        final List<String> encrypted = new ArrayList<>( texts.size() );
+        for ( int i = 0; i < texts.size(); i++ )
+        {
+            encrypted.add( encryptText( texts.get( i ), initVectors, i * INIT_VECTOR_SIZE, INIT_VECTOR_SIZE ) );
+        }
+        return encrypted;
+    }
+
+    /**
+     * Decrypts batch of encrypted public data.
+     *
+     * @param publicData public information for decryption
+     * @return Decrypted sources in the same order
+     * @throws AesEncryptionException if an error occurs during decryption of any source
+     */
+    public List<byte[]> decryptBatch( List<EncryptedPublicData> publicData ) throws AesEncryptionException
+    {
+        final List<byte[]> decrypted = new ArrayList<>( publicData.size() );
+        for ( EncryptedPublicData data : publicData )
+        {
+            decrypted.add( decrypt( data ) );
+        }
+        return decrypted;
+    }
+
+    /**
+     * Decrypts batch of packed encrypted public data.
+     *
+     * @param packedData The packed public information for decryption
+     * @return Decrypted sources in the same order
+     * @throws AesEncryptionException if an error occurs during decryption of any source
+     */
+    public List<byte[]> decryptBatch( final PackedEncryptedData packedData ) throws AesEncryptionException
+    {
+        final List<byte[]> decrypted = new ArrayList<>( packedData.size() );
+        for ( int i = 0; i < packedData.size(); i++ )
+        {
+            decrypted.add( decrypt( packedData.getView( i ) ) );
+        }
+        return decrypted;
+    }
+
+    /**
+     * Decrypts batch of texts in {@link EncryptedPublicData#saveToString()} format.
+     * Decrypted bytes are kept in reusable buffers of current thread.
+     *
+     * @param encryptedTexts The texts for decryption
+     * @return Decrypted texts in the same order
+     * @throws AesEncryptionException if an error occurs during decryption of any text
+     */
+    public List<String> decryptTextBatch( List<String> encryptedTexts ) throws AesEncryptionException
+    {
+        final List<String> decrypted = new ArrayList<>( encryptedTexts.size() );
+        for ( String encryptedText : encryptedTexts )
+        {
+            decrypted.add( decryptText( encryptedText ) );
+        }
+        return decrypted;
+    }
+
+    /**
+     * Encrypts text and appends it to the destination in {@link EncryptedPublicData#saveToString()} format.
+     * Text is encoded, encrypted and converted to Base64 in reusable buffers of current thread.
+     *
+     * @param text The text for encryption
+     * @param initVector Public initialization vector
+     * @param destination The destination to append encrypted text to
+     * @throws AesEncryptionException if an error occurs during encryption
+     * @throws IOException if the destination fails to append
+     */
+    public void encryptText( CharSequence text, byte[] initVector, Appendable destination )
+            throws AesEncryptionException, IOException
+    {
+        encryptText( text, initVector, 0, initVector.length, destination );
+    }
+
+    private void encryptText( CharSequence text,
+                              byte[] initVectors,
+                              int initVectorOffset,
+                              int initVectorSize,
+                              Appendable destination )
+            throws AesEncryptionException, IOException
+    {
+        final TextScratch scratch = TextScratch.forCurrentThread();
+        final ByteBuffer textBytes = scratch.getTextBytes(
+                (int) Math.ceil( text.length() * (double) scratch.encoder.maxBytesPerChar() ) );
+        try
+        {
+            scratch.encoder.reset();
+            scratch.encoder.encode( CharBuffer.wrap( text ), textBytes, true );
+            scratch.encoder.flush( textBytes );
+            textBytes.flip();
+
+            final ByteBuffer encryptedBytes = scratch.getEncryptedBytes(
+                    getEncryptedSize( textBytes.remaining() ) + HMAC_SIZE + initVectorSize );
+            final int encryptedSize =
+                    encrypt( textBytes, encryptedBytes, initVectors, initVectorOffset, initVectorSize );
+            Base64Utils.encode( encryptedBytes.array(), 0, encryptedSize, destination );
+        } finally
+        {
+            Arrays.fill( textBytes.array(), 0, textBytes.limit(), (byte) 0 );
+        }
+    }
+
+    /**
+     * Encrypts text to string in {@link EncryptedPublicData#saveToString()} format.
+     * The result string is the only allocation in steady state.
+     *
+     * @param text The text for encryption
+     * @param initVector Public initialization vector
+     * @return The encrypted text
+     * @throws AesEncryptionException if an error occurs during encryption
+     */
+    public String encryptText( CharSequence text, byte[] initVector ) throws AesEncryptionException
+    {
+        return encryptText( text, initVector, 0, initVector.length );
+    }
+
+    private String encryptText( CharSequence text, byte[] initVectors, int initVectorOffset, int initVectorSize )
+            throws AesEncryptionException
+    {
+        final StringBuilder builder = TextScratch.forCurrentThread().builder;
+        builder.setLength( 0 );
+        try
+        {
+            encryptText( text, initVectors, initVectorOffset, initVectorSize, builder );
+        } catch ( IOException ex )
+        {
+            // StringBuilder does not throw on append
+            throw new IllegalStateException( ex );
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decrypts text in {@link EncryptedPublicData#saveToString()} format after HMAC verification
+     * and appends it to the destination. Base64 conversion, decryption and decoding are done
+     * in reusable buffers of current thread.
+     *
+     * @param encryptedText The text for decryption
+     * @param destination The destination to append decrypted text to
+     * @throws AesEncryptionException if the text is not valid Base64, HMAC is invalid
+     *     or an error occurs during decryption.
+     * @throws IOException if the destination fails to append
+     */
+    public void decryptText( CharSequence encryptedText, Appendable destination )
+            throws AesEncryptionException, IOException
+    {
+        // Size is checked before decoding, so malformed text is rejected without any work
+        final int decodedSize = Base64Utils.getDecodedSize( encryptedText );
+        checkEncryptedSize( decodedSize - HMAC_SIZE - INIT_VECTOR_SIZE );
+
+        final TextScratch scratch = TextScratch.forCurrentThread();
+        final ByteBuffer encryptedBytes = scratch.getEncryptedBytes( decodedSize );
+        try
+        {
+            encryptedBytes.limit( Base64Utils.decode( encryptedText, encryptedBytes.array(), 0 ) );
+        } catch ( IllegalArgumentException ex )
+        {
+            throw new AesEncryptionException( ex );
+        }
+
+        // Arrays are used directly, because cipher and MAC copy read-only buffers of views
+        final byte[] encrypted = encryptedBytes.array();
+        final int encryptedSize = encryptedBytes.remaining() - HMAC_SIZE - INIT_VECTOR_SIZE;
+        final ByteBuffer textBytes = scratch.getTextBytes( encryptedSize );
+        this.guard.acquire();
+        try
+        {
+            this.mac.reset();
+            this.mac.update( encrypted, 0, encryptedSize );
+            this.mac.doFinal( this.hmacScratch, 0 );
+            compareHmac( this.hmacScratch, ByteBuffer.wrap( encrypted, encryptedSize, HMAC_SIZE ), encryptedSize );
+
+            this.cipher.init( Cipher.DECRYPT_MODE,
+                    this.aesKey,
+                    new IvParameterSpec( encrypted, encryptedSize + HMAC_SIZE, INIT_VECTOR_SIZE ) );
+            textBytes.limit( this.cipher.doFinal( encrypted, 0, encryptedSize, textBytes.array(), 0 ) );
+
+            final CharBuffer chars = scratch.getChars(
+                    (int) Math.ceil( textBytes.remaining() * (double) scratch.decoder.maxCharsPerByte() ) );
+            scratch.decoder.reset();
+            scratch.decoder.decode( textBytes, chars, true );
+            scratch.decoder.flush( chars );
+            chars.flip();
+            destination.append( chars );
+            Arrays.fill( chars.array(), 0, chars.limit(), '\0' );
+
+        } catch ( InvalidKeyException
+                | InvalidAlgorithmParameterException
+                | ShortBufferException
+                | BadPaddingException
+                | IllegalBlockSizeException ex )
+        {
+            throw new AesEncryptionException( ex );
+        } finally
+        {
+            this.guard.release();
+
+            // Cipher writes at most encrypted size, so the rest of the scratch is not touched by this call
+            Arrays.fill( textBytes.array(), 0, encryptedSize, (byte) 0 );
+        }
+    }
+
+    /**
+     * Decrypts text in {@link EncryptedPublicData#saveToString()} format after HMAC verification.
+     * The result string is the only allocation in steady state.
+     *
+     * @param encryptedText The text for decryption
+     * @return The decrypted text
+     * @throws AesEncryptionException if the text is not valid Base64, HMAC is invalid
+     *     or an error occurs during decryption.
+     */
+    public String decryptText( CharSequence encryptedText ) throws AesEncryptionException
+    {
+        final StringBuilder builder = TextScratch.forCurrentThread().builder;
+        builder.setLength( 0 );
+        try
+        {
+            decryptText( encryptedText, builder );
+        } catch ( IOException ex )
+        {
+            // StringBuilder does not throw on append
+            throw new IllegalStateException( ex );
+        }
+        return builder.toString();
+    }
+
+    private static void checkInitVectors( int sourceCount, byte[] initVectors ) throws AesEncryptionException
+    {
+        if ( initVectors.length != sourceCount * INIT_VECTOR_SIZE )
+        {
+            throw new AesEncryptionException( "Invalid size of initialization vectors: " + initVectors.length );
+        }
+    }
+
+    /**
+     * Gets size of encrypted data for the specified source size.
+     *
+     * @param sourceSize The source size in bytes
+     * @return The encrypted data size in bytes
+     */
+    public static int getEncryptedSize( int sourceSize )
+    {
+        // PKCS5 padding always adds from 1 to block size bytes
+        return ( sourceSize / AES_BLOCK_SIZE + 1 ) * AES_BLOCK_SIZE;
+    }
+
+    /**
+     * Encrypts the input stream into the output stream by fixed-size chunks.
+     * The output contains initialization vector as header, then encrypted source
+     * and HMAC of initialization vector and encrypted source as trailer.
+     * Streams are not closed.
+     *
+     * @param in The source stream for encryption
+     * @param out The stream to write encrypted source to
+     * @param initVector Public initialization vector
+     * @throws AesEncryptionException if an error occurs during encryption
+     * @throws IOException if an I/O error occurs
+     */
+    public void encrypt( InputStream in, OutputStream out, byte[] initVector )
+            throws AesEncryptionException, IOException
+    {
+        final byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+        final byte[] encryptedChunk = new byte[STREAM_CHUNK_SIZE + AES_BLOCK_SIZE];
+        this.guard.acquire();
+        try
+        {
+            this.cipher.init( Cipher.ENCRYPT_MODE, this.aesKey, new IvParameterSpec( initVector ) );
+            this.mac.reset();
+
+            // Header
+            this.mac.update( initVector );
+            out.write( initVector );
+
+            // Encrypted source
+            int read;
+            while ( ( read = in.read( chunk ) ) != -1 )
+            {
+                final int encrypted = this.cipher.update( chunk, 0, read, encryptedChunk );
+                this.mac.update( encryptedChunk, 0, encrypted );
+                out.write( encryptedChunk, 0, encrypted );
+            }
+            final int encrypted = this.cipher.doFinal( encryptedChunk, 0 );
+            this.mac.update( encryptedChunk, 0, encrypted );
+            out.write( encryptedChunk, 0, encrypted );
+
+            // Trailer
+            out.write( this.mac.doFinal() );
+
+        } catch ( InvalidKeyException
+                | InvalidAlgorithmParameterException
+                | ShortBufferException
+                | BadPaddingException
+                | IllegalBlockSizeException ex )
+        {
+            throw new AesEncryptionException( ex );
+        } finally
+        {
+            // Failed stream leaves partial state, which must not leak into the next operation
+            this.mac.reset();
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Decrypts the input stream created by {@link #encrypt(InputStream, OutputStream, byte[])}
+     * into the output stream by fixed-size chunks. Streams are not closed.
+     *
+     * <p>HMAC is verified when the end of input stream is reached, so decrypted chunks
+     * are written before verification. The output must be discarded if exception is thrown.
+     *
+     * @param in The stream with encrypted source
+     * @param out The stream to write decrypted source to
+     * @throws AesEncryptionException if an error occurs during decryption
+     * @throws IOException if an I/O error occurs
+     */
+    public void decrypt( InputStream in, OutputStream out ) throws AesEncryptionException, IOException
+    {
+        // Trailer is not known until the end of stream, so the last HMAC bytes are held back
+        final byte[] chunk = new byte[STREAM_CHUNK_SIZE + HMAC_SIZE];
+        final byte[] decryptedChunk = new byte[STREAM_CHUNK_SIZE + AES_BLOCK_SIZE];
+        this.guard.acquire();
+        try
+        {
+            // Header
+            final byte[] initVector = new byte[INIT_VECTOR_SIZE];
+            readFully( in, initVector );
+            this.cipher.init( Cipher.DECRYPT_MODE, this.aesKey, new IvParameterSpec( initVector ) );
+            this.mac.reset();
+            this.mac.update( initVector );
+
+            // Encrypted source
+            long encryptedSize = 0;
+            int pending = 0;
+            int read;
+            while ( ( read = in.read( chunk, pending, chunk.length - pending ) ) != -1 )
+            {
+                pending += read;
+                if ( pending == chunk.length )
+                {
+                    encryptedSize += STREAM_CHUNK_SIZE;
+                    final int decrypted = this.cipher.update( chunk, 0, STREAM_CHUNK_SIZE, decryptedChunk );
+                    this.mac.update( chunk, 0, STREAM_CHUNK_SIZE );
+                    out.write( decryptedChunk, 0, decrypted );
+
+                    System.arraycopy( chunk, STREAM_CHUNK_SIZE, chunk, 0, HMAC_SIZE );
+                    pending = HMAC_SIZE;
+                }
+            }
+            if ( pending < HMAC_SIZE )
+            {
+                throw new AesEncryptionException( "Encrypted stream is truncated" );
+            }
+            final int sourceSize = pending - HMAC_SIZE;
+            int decrypted = this.cipher.update( chunk, 0, sourceSize, decryptedChunk );
+            this.mac.update( chunk, 0, sourceSize );
+            out.write( decryptedChunk, 0, decrypted );
+
+            // Trailer is verified before padding is checked
+            this.mac.doFinal( this.hmacScratch, 0 );
+            compareHmac( this.hmacScratch, ByteBuffer.wrap( chunk, sourceSize, HMAC_SIZE ), encryptedSize + sourceSize );
+
+            decrypted = this.cipher.doFinal( decryptedChunk, 0 );
+            out.write( decryptedChunk, 0, decrypted );
+
+        } catch ( InvalidKeyException
+                | InvalidAlgorithmParameterException
+                | ShortBufferException
+                | BadPaddingException
+                | IllegalBlockSizeException ex )
+        {
+            throw new AesEncryptionException( ex );
+        } finally
+        {
+            // Failed stream leaves partial state, which must not leak into the next operation
+            this.mac.reset();
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Encrypts one segment of segmented format. Initialization vector of the segment
+     * is derived from the header and segment index. Encrypted segment and its HMAC
+     * (over the header, segment index and encrypted segment) are written to destination.
+     *
+     * @param header The header of segmented format
+     * @param index The segment index
+     * @param source The source segment, its position is moved to limit
+     * @param destination The destination buffer, its position is moved after written bytes
+     * @return HMAC of the segment
+     * @throws AesEncryptionException if an error occurs during encryption
+     */
+    byte[] encryptSegment( final SegmentHeader header, long index, ByteBuffer source, ByteBuffer destination )
+            throws AesEncryptionException
+    {
+        final int start = destination.position();
+        this.guard.acquire();
+        try
+        {
+            this.cipher.init( Cipher.ENCRYPT_MODE, this.aesKey, getSegmentIv( header, index ) );
+            this.cipher.doFinal( source, destination );
+
+            final ByteBuffer encryptedSegment = destination.duplicate();
+            encryptedSegment.limit( destination.position() );
+            encryptedSegment.position( start );
+            final byte[] tag = getSegmentTag( header, index, encryptedSegment );
+            destination.put( tag );
+            return tag;
+
+        } catch ( InvalidKeyException
+                | InvalidAlgorithmParameterException
+                | ShortBufferException
+                | BadPaddingException
+                | IllegalBlockSizeException ex )
+        {
+            throw new AesEncryptionException( ex );
+        } finally
+        {
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Verifies HMAC of one segment of segmented format and decrypts it.
+     *
+     * @param header The header of segmented format
+     * @param index The segment index
+     * @param source The encrypted segment followed by its HMAC
+     * @param destination The destination buffer, its position is moved after written bytes
+     * @return The number of bytes written to destination
+     * @throws AesEncryptionException if HMAC is invalid or an error occurs during decryption
+     */
+    int decryptSegment( final SegmentHeader header, long index, ByteBuffer source, ByteBuffer destination )
+            throws AesEncryptionException
+    {
+        final int encryptedSize = source.remaining() - SegmentHeader.TAG_SIZE;
+        if ( encryptedSize <= 0 || encryptedSize % AES_BLOCK_SIZE != 0 )
+        {
+            throw new AesEncryptionException( "Invalid encrypted segment size: " + encryptedSize );
+        }
+
+        final ByteBuffer encryptedSegment = source.duplicate();
+        encryptedSegment.limit( source.position() + encryptedSize );
+        final ByteBuffer expectedTag = source.duplicate();
+        expectedTag.position( source.position() + encryptedSize );
+
+        // Cipher requires output space for padding, so segment is decrypted to scratch buffer
+        if ( this.segmentScratch == null || this.segmentScratch.capacity() < encryptedSize )
+        {
+            this.segmentScratch = ByteBuffer.allocate( encryptedSize );
+        }
+        this.segmentScratch.clear();
+        this.guard.acquire();
+        try
+        {
+            compareHmac( getSegmentTag( header, index, encryptedSegment.duplicate() ), expectedTag, encryptedSize );
+
+            this.cipher.init( Cipher.DECRYPT_MODE, this.aesKey, getSegmentIv( header, index ) );
+            final int decryptedSize = this.cipher.doFinal( encryptedSegment, this.segmentScratch );
+            this.segmentScratch.flip();
+            destination.put( this.segmentScratch );
+            source.position( source.limit() );
+            return decryptedSize;
+
+        } catch ( InvalidKeyException
+                | InvalidAlgorithmParameterException
+                | ShortBufferException
+                | BadPaddingException
+                | IllegalBlockSizeException ex )
+        {
+            throw new AesEncryptionException( ex );
+        } finally
+        {
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Gets final HMAC of segmented format over the header and HMACs of all segments.
+     *
+     * @param header The header of segmented format
+     * @param segmentTags Concatenated HMACs of all segments
+     * @return The final HMAC
+     * @throws AesEncryptionException if the private keys are destroyed
+     */
+    byte[] getSegmentsTag( final SegmentHeader header, byte[] segmentTags ) throws AesEncryptionException
+    {
+        this.guard.acquire();
+        try
+        {
+            this.mac.reset();
+            this.mac.update( SEGMENTS_TAG_DOMAIN );
+            this.mac.update( header.getBytes() );
+            return this.mac.doFinal( segmentTags );
+        } finally
+        {
+            this.guard.release();
+        }
+    }
+
+    /**
+     * Verifies final HMAC of segmented format.
+     *
+     * @param header The header of segmented format
+     * @param segmentTags Concatenated HMACs of all segments
+     * @param expectedTag The final HMAC to verify
+     * @throws AesEncryptionException if HMAC is invalid
+     */
+    void checkSegmentsTag( final SegmentHeader header, byte[] segmentTags, ByteBuffer expectedTag )
+            throws AesEncryptionException
+    {
+        compareHmac( getSegmentsTag( header, segmentTags ), expectedTag, header.getSourceSize() );
+    }
+
+    private IvParameterSpec getSegmentIv( final SegmentHeader header, long index )
+    {
+        this.mac.reset();
+        this.mac.update( SEGMENT_IV_DOMAIN );
+        this.mac.update( header.getBytes() );
+        updateMac( index );
+        return new IvParameterSpec( this.mac.doFinal(), 0, INIT_VECTOR_SIZE );
+    }
+
+    private byte[] getSegmentTag( final SegmentHeader header, long index, ByteBuffer encryptedSegment )
+    {
+        this.mac.reset();
+        this.mac.update( SEGMENT_TAG_DOMAIN );
+        this.mac.update( header.getBytes() );
+        updateMac( index );
+        this.mac.update( encryptedSegment );
+        return this.mac.doFinal();
+    }
+
+    private void updateMac( long value )
+    {
+        this.longScratch.clear();
+        this.longScratch.putLong( value );
+        this.mac.update( this.longScratch.array() );
+    }
+
+    /**
+     * Zeroes the AES key of the engine and overwrites the keys of cipher and MAC, which keep them until
+     * initialized with other keys. Called by {@link KeyGuard} when the private keys are destroyed.
+     */
+    private void wipeKeys()
+    {
+        this.aesKey.destroy();
+        try
+        {
+            this.cipher.init( Cipher.ENCRYPT_MODE, ZERO_AES_KEY, new IvParameterSpec( new byte[INIT_VECTOR_SIZE] ) );
+            this.mac.init( ZERO_HMAC_KEY );
+            if ( this.syntheticIvMac != null )
+            {
+                this.syntheticIvMac.init( ZERO_HMAC_KEY );
+                this.syntheticIvMac = null;
+            }
+        } catch ( InvalidKeyException | InvalidAlgorithmParameterException ex )
+        {
+            // Zero keys are always accepted, and the engine is not used after the wipe anyway
+        }
+    }
+
+    private static void readFully( InputStream in, byte[] bytes ) throws IOException
+    {
+        int offset = 0;
+        while ( offset < bytes.length )
+        {
+            final int read = in.read( bytes, offset, bytes.length - offset );
+            if ( read == -1 )
+            {
+                throw new EOFException( "Encrypted stream is truncated" );
+            }
+            offset += read;
+        }
+    }
+
+    private static void checkInitVectorSize( int initVectorSize ) throws AesEncryptionException
+    {
+        if ( initVectorSize != INIT_VECTOR_SIZE )
+        {
+            throw new AesEncryptionException( "Invalid initialization vector size: " + initVectorSize );
+        }
+    }
+
+    private static void checkHmacSize( int hmacSize ) throws AesEncryptionException
+    {
+        if ( hmacSize != HMAC_SIZE )
+        {
+            throw new AesEncryptionException( "Invalid HMAC size: " + hmacSize );
+        }
+    }
+
+    private static void checkEncryptedSize( int encryptedSize ) throws AesEncryptionException
+    {
+        // PKCS5 padding always makes a positive multiple of block size
+        if ( encryptedSize <= 0 || encryptedSize % AES_BLOCK_SIZE != 0 )
+        {
+            throw new AesEncryptionException( "Invalid encrypted data size: " + encryptedSize );
+        }
+    }
+
+    private static IvParameterSpec getIvParameterSpec( ByteBuffer initVector )
+    {
+        if ( initVector.hasArray() )
+        {
+            return new IvParameterSpec( initVector.array(),
+                    initVector.arrayOffset() + initVector.position(),
+                    initVector.remaining() );
+        }
+        final byte[] initVectorBytes = new byte[initVector.remaining()];
+        initVector.get( initVectorBytes );
+        return new IvParameterSpec( initVectorBytes );
+    }
+
+    /**
+     * Compares HMACs in constant time, so time of a mismatch does not reveal its position.
+     */
+    private static void compareHmac( byte[] observedHmac, byte[] expectedHmac, long payloadSize )
+            throws AesEncryptionException
+    {
+        if ( !MessageDigest.isEqual( expectedHmac, observedHmac ) )
+        {
+            throw newInvalidHmacException( payloadSize );
+        }
+    }
+
+    /**
+     * Compares HMACs in constant time without copying the expected HMAC.
+     */
+    private static void compareHmac( byte[] observedHmac, ByteBuffer expectedHmac, long payloadSize )
+            throws AesEncryptionException
+    {
+        final int position = expectedHmac.position();
+        int difference = observedHmac.length ^ expectedHmac.remaining();
+        for ( int i = 0; i < observedHmac.length && i < expectedHmac.remaining(); i++ )
+        {
+            difference |= observedHmac[i] ^ expectedHmac.get( position + i );
+        }
+        if ( difference != 0 )
+        {
+            throw newInvalidHmacException( payloadSize );
+        }
+    }
+
+    private static AesEncryptionException newInvalidHmacException( long payloadSize )
+    {
+        // Only failures are recorded, since verification is a part of timed decryption
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        if ( metrics.isEnabled() )
+        {
+            metrics.record( Operation.HMAC_VERIFY, payloadSize, 0, false );
+        }
+        return new AesEncryptionException( "Invalid HMAC key" );
+    }
+
+    private static Cipher newCipher() throws AesEncryptionException
+    {
+        try
+        {
+            return CryptoProviders.newCipher( CIPHER_TRANSFORMATION );
+        } catch ( NoSuchAlgorithmException | NoSuchPaddingException ex )
+        {
+            throw new AesEncryptionException( ex );
+        }
+    }
+
+    private static Mac newMac() throws AesEncryptionException
+    {
+        try
+        {
+            return CryptoProviders.newMac( HMAC_ALGORITHM );
+        } catch ( NoSuchAlgorithmException ex )
+        {
+            throw new AesEncryptionException( ex );
+        }
+    }
+}
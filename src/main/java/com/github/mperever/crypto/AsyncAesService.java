@@ -0,0 +1,527 @@
+package com.github.mperever.crypto;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.mperever.crypto.AesHmacEngine.INIT_VECTOR_SIZE;
+
+/**
+ * Represents asynchronous encryption with one {@link EncryptedPrivateData}, so blocking
+ * encryption can be moved off latency-critical threads.
+ *
+ * <p>Number of pending requests is bounded, and {@link OverflowPolicy} defines what happens
+ * to a request above the bound. A request stops being pending as soon as its future is done,
+ * including cancellation by the caller, and cancelled requests are skipped. Small requests
+ * are collected into micro-batches which are processed by one task with one engine, so executor
+ * dispatch and initialization vector generation are amortized across concurrent callers.
+ *
+ * <p>The instance is thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public class AsyncAesService implements AutoCloseable
+{
+    public static final int DEFAULT_MAX_PENDING_REQUESTS = 10_000;
+    public static final int DEFAULT_BATCH_THRESHOLD = 4 * 1024; // in bytes
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final EncryptedPrivateData privateData;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final OverflowPolicy overflowPolicy;
+    private final int maxPendingRequests;
+    private final Semaphore pendingPermits;
+    private final int batchThreshold;
+    private final int maxBatchSize;
+    private final int maxDrainers;
+
+    private final Queue<AesHmacEngine> engines = new ConcurrentLinkedQueue<>();
+    private final Queue<Request<?>> smallRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger smallRequestCount = new AtomicInteger();
+    private final AtomicInteger activeDrainers = new AtomicInteger();
+
+    /**
+     * Constructor with default limits and {@link #newDefaultExecutor()},
+     * which is shut down on {@link #close()}.
+     *
+     * @param privateData The private keys
+     */
+    public AsyncAesService( final EncryptedPrivateData privateData )
+    {
+        this( privateData,
+                newDefaultExecutor(),
+                true,
+                DEFAULT_MAX_PENDING_REQUESTS,
+                OverflowPolicy.REJECT,
+                DEFAULT_BATCH_THRESHOLD,
+                DEFAULT_MAX_BATCH_SIZE );
+    }
+
+    /**
+     * Constructor with custom executor and limits. The executor is not shut down on {@link #close()}.
+     *
+     * @param privateData The private keys
+     * @param executor The executor to run encryption in
+     * @param maxPendingRequests The maximum number of accepted but not completed requests
+     * @param overflowPolicy The policy for requests above the maximum
+     * @param batchThreshold The maximum source size in bytes to collect a request into micro-batch,
+     *     0 to disable micro-batching
+     * @param maxBatchSize The maximum number of requests in micro-batch
+     */
+    public AsyncAesService( final EncryptedPrivateData privateData,
+                            Executor executor,
+                            int maxPendingRequests,
+                            OverflowPolicy overflowPolicy,
+                            int batchThreshold,
+                            int maxBatchSize )
+    {
+        this( privateData, executor, false, maxPendingRequests, overflowPolicy, batchThreshold, maxBatchSize );
+    }
+
+    private AsyncAesService( final EncryptedPrivateData privateData,
+                             Executor executor,
+                             boolean ownsExecutor,
+                             int maxPendingRequests,
+                             OverflowPolicy overflowPolicy,
+                             int batchThreshold,
+                             int maxBatchSize )
+    {
+        if ( maxPendingRequests <= 0 || maxBatchSize <= 0 )
+        {
+            throw new IllegalArgumentException( "Maximum pending requests and batch size must be positive" );
+        }
+        this.privateData = privateData;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.overflowPolicy = overflowPolicy;
+        this.maxPendingRequests = maxPendingRequests;
+        this.pendingPermits = new Semaphore( maxPendingRequests );
+        this.batchThreshold = batchThreshold;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDrainers = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Creates executor with virtual threads if the runtime supports them,
+     * otherwise bounded pool of platform threads, one per processor.
+     *
+     * @return The executor
+     */
+    public static ExecutorService newDefaultExecutor()
+    {
+        final ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+        return virtualThreadExecutor != null
+                ? virtualThreadExecutor
+                : newPlatformExecutor( Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY );
+    }
+
+    /**
+     * Creates pool of daemon platform threads with bounded queue.
+     * Tasks above the queue capacity are rejected.
+     *
+     * @param threads The number of threads
+     * @param queueCapacity The maximum number of queued tasks
+     * @return The executor
+     */
+    public static ExecutorService newPlatformExecutor( int threads, int queueCapacity )
+    {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final ThreadFactory threadFactory = runnable ->
+        {
+            final Thread thread = new Thread( runnable, "aes-async-" + threadNumber.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        };
+        return new ThreadPoolExecutor( threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>( queueCapacity ),
+                threadFactory,
+                new ThreadPoolExecutor.AbortPolicy() );
+    }
+
+    /**
+     * Creates executor which starts a virtual thread per task.
+     * Virtual threads are available since Java 21, so the executor is created by reflection.
+     *
+     * @return The executor, or null if the runtime does not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            final Method factory = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+            return (ExecutorService) factory.invoke( null );
+        } catch ( ReflectiveOperationException ex )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Encrypts source bytes asynchronously.
+     *
+     * @param source The source for encryption, must not be changed until the future is completed
+     * @return The future with public information for decryption. The future is completed
+     *     exceptionally with {@link RejectedExecutionException} if the request is rejected
+     *     or with {@link AesEncryptionException} if an error occurs during encryption.
+     */
+    public CompletableFuture<EncryptedPublicData> encrypt( byte[] source )
+    {
+        return submit( new Request<>( source, null ) );
+    }
+
+    /**
+     * Decrypts encrypted source asynchronously.
+     *
+     * @param publicData public information for decryption
+     * @return The future with decrypted source. The future is completed
+     *     exceptionally with {@link RejectedExecutionException} if the request is rejected
+     *     or with {@link AesEncryptionException} if HMAC is invalid or an error occurs during decryption.
+     */
+    public CompletableFuture<byte[]> decrypt( final EncryptedPublicData publicData )
+    {
+        return submit( new Request<>( null, publicData ) );
+    }
+
+    /**
+     * Gets number of accepted but not completed requests.
+     *
+     * @return The number of pending requests
+     */
+    public int getPendingRequestCount()
+    {
+        return this.maxPendingRequests - this.pendingPermits.availablePermits();
+    }
+
+    /**
+     * Shuts down the executor if it was created by the service.
+     * Already accepted requests are completed.
+     */
+    @Override
+    public void close()
+    {
+        if ( this.ownsExecutor )
+        {
+            ( (ExecutorService) this.executor ).shutdown();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit( Request<T> request )
+    {
+        if ( !acquirePermit() )
+        {
+            if ( this.overflowPolicy == OverflowPolicy.CALLER_RUNS )
+            {
+                runInline( request );
+                return request.future;
+            }
+            request.future.completeExceptionally( new RejectedExecutionException( "Too many pending requests" ) );
+            return request.future;
+        }
+
+        // Permit is released before completion, or once the future is cancelled by the caller
+        request.permitHeld.set( true );
+        request.future.whenComplete( ( result, ex ) -> releasePermit( request ) );
+        if ( request.getSourceSize() <= this.batchThreshold )
+        {
+            this.smallRequests.offer( request );
+            this.smallRequestCount.incrementAndGet();
+            scheduleDrain();
+            return request.future;
+        }
+
+        try
+        {
+            this.executor.execute( () -> runSingle( request ) );
+        } catch ( RejectedExecutionException ex )
+        {
+            fail( request, ex );
+        }
+        return request.future;
+    }
+
+    private boolean acquirePermit()
+    {
+        if ( this.overflowPolicy != OverflowPolicy.BLOCK )
+        {
+            return this.pendingPermits.tryAcquire();
+        }
+        try
+        {
+            this.pendingPermits.acquire();
+            return true;
+        } catch ( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void scheduleDrain()
+    {
+        while ( true )
+        {
+            // A new drainer is started when there is none or the running ones are behind by a full batch
+            final int drainers = this.activeDrainers.get();
+            if ( drainers >= this.maxDrainers
+                    || drainers > 0 && this.smallRequestCount.get() < this.maxBatchSize )
+            {
+                return;
+            }
+            if ( this.activeDrainers.compareAndSet( drainers, drainers + 1 ) )
+            {
+                break;
+            }
+        }
+
+        try
+        {
+            this.executor.execute( this::drain );
+        } catch ( RejectedExecutionException ex )
+        {
+            this.activeDrainers.decrementAndGet();
+            failQueued( ex );
+        }
+    }
+
+    private void drain()
+    {
+        final List<Request<?>> batch = new ArrayList<>( this.maxBatchSize );
+        Request<?> request;
+        while ( batch.size() < this.maxBatchSize && ( request = this.smallRequests.poll() ) != null )
+        {
+            this.smallRequestCount.decrementAndGet();
+            batch.add( request );
+        }
+
+        try
+        {
+            runBatch( batch );
+        } finally
+        {
+            // Requests queued after the poll are picked up by the next drainer
+            this.activeDrainers.decrementAndGet();
+            if ( this.smallRequestCount.get() > 0 )
+            {
+                scheduleDrain();
+            }
+        }
+    }
+
+    private void failQueued( RejectedExecutionException ex )
+    {
+        if ( this.activeDrainers.get() > 0 )
+        {
+            return;
+        }
+        Request<?> request;
+        while ( ( request = this.smallRequests.poll() ) != null )
+        {
+            this.smallRequestCount.decrementAndGet();
+            fail( request, ex );
+        }
+    }
+
+    private void runBatch( List<Request<?>> batch )
+    {
+        final List<Request<?>> encryptRequests = new ArrayList<>( batch.size() );
+        final List<byte[]> sources = new ArrayList<>( batch.size() );
+        for ( Request<?> request : batch )
+        {
+            // Cancelled requests are skipped
+            if ( request.source != null && !request.future.isDone() )
+            {
+                encryptRequests.add( request );
+                sources.add( request.source );
+            }
+        }
+
+        AesHmacEngine engine = null;
+        try
+        {
+            engine = borrowEngine();
+            if ( !sources.isEmpty() )
+            {
+                // Initialization vectors of the whole batch are generated at once
+                final byte[] initVectors = AesEncryptionUtils.getRandomIv( sources.size() * INIT_VECTOR_SIZE );
+                final List<EncryptedPublicData> encrypted = engine.encryptBatch( sources, initVectors );
+                for ( int i = 0; i < encryptRequests.size(); i++ )
+                {
+                    complete( encryptRequests.get( i ), encrypted.get( i ) );
+                }
+            }
+            for ( Request<?> request : batch )
+            {
+                if ( request.publicData != null )
+                {
+                    // Decryption is not batched, so invalid HMAC fails its own request only
+                    run( engine, request );
+                }
+            }
+        } catch ( AesEncryptionException | RuntimeException ex )
+        {
+            for ( Request<?> request : batch )
+            {
+                fail( request, ex );
+            }
+        } finally
+        {
+            releaseEngine( engine );
+        }
+    }
+
+    private void runSingle( Request<?> request )
+    {
+        AesHmacEngine engine = null;
+        try
+        {
+            engine = borrowEngine();
+            run( engine, request );
+        } catch ( AesEncryptionException | RuntimeException ex )
+        {
+            fail( request, ex );
+        } finally
+        {
+            releaseEngine( engine );
+        }
+    }
+
+    private void runInline( Request<?> request )
+    {
+        try
+        {
+            final AesHmacEngine engine = AesHmacEngine.forCurrentThread( this.privateData );
+            request.complete( request.source != null
+                    ? engine.encrypt( request.source, AesEncryptionUtils.getIv() )
+                    : engine.decrypt( request.publicData ) );
+        } catch ( AesEncryptionException | RuntimeException ex )
+        {
+            request.future.completeExceptionally( ex );
+        }
+    }
+
+    private void run( AesHmacEngine engine, Request<?> request )
+    {
+        if ( request.future.isDone() )
+        {
+            // Cancelled requests are skipped
+            return;
+        }
+        try
+        {
+            complete( request, request.source != null
+                    ? engine.encrypt( request.source, AesEncryptionUtils.getIv() )
+                    : engine.decrypt( request.publicData ) );
+        } catch ( AesEncryptionException | RuntimeException ex )
+        {
+            fail( request, ex );
+        }
+    }
+
+    private void complete( Request<?> request, Object result )
+    {
+        // Permit is released first, so the request is not pending when its future is done
+        releasePermit( request );
+        request.complete( result );
+    }
+
+    private void fail( Request<?> request, Throwable ex )
+    {
+        releasePermit( request );
+        request.future.completeExceptionally( ex );
+    }
+
+    private void releasePermit( Request<?> request )
+    {
+        if ( request.permitHeld.compareAndSet( true, false ) )
+        {
+            this.pendingPermits.release();
+        }
+    }
+
+    /**
+     * Borrows prepared engine or creates a new one. Engines are pooled instead of
+     * being thread-confined, because virtual threads are not reused between tasks.
+     */
+    private AesHmacEngine borrowEngine() throws AesEncryptionException
+    {
+        final AesHmacEngine engine = this.engines.poll();
+        return engine != null ? engine : new AesHmacEngine( this.privateData );
+    }
+
+    private void releaseEngine( AesHmacEngine engine )
+    {
+        if ( engine != null )
+        {
+            this.engines.offer( engine );
+        }
+    }
+
+    /**
+     * Represents policy for requests above the maximum number of pending requests.
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * The request future is completed with {@link RejectedExecutionException}.
+         */
+        REJECT,
+
+        /**
+         * The request is processed in the calling thread.
+         */
+        CALLER_RUNS,
+
+        /**
+         * The calling thread is blocked until a pending request is completed.
+         */
+        BLOCK
+    }
+
+    private static class Request<T>
+    {
+        private final byte[] source;
+        private final EncryptedPublicData publicData;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final AtomicBoolean permitHeld = new AtomicBoolean();
+
+        Request( byte[] source, final EncryptedPublicData publicData )
+        {
+            this.source = source;
+            this.publicData = publicData;
+        }
+
+        int getSourceSize()
+        {
+            return this.source != null
+                    ? this.source.length
+                    : this.publicData.getSerializedSize();
+        }
+
+        @SuppressWarnings( "unchecked" )
+        void complete( Object result )
+        {
+            this.future.complete( (T) result );
+        }
+    }
+}
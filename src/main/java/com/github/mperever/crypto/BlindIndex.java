@@ -0,0 +1,133 @@
+package com.github.mperever.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents in-memory blind index of records encrypted by
+ * {@link AesEncryptionUtils#encryptDeterministic(byte[], EncryptedPrivateData)}, which finds
+ * row ids of a value by equality.
+ *
+ * <p>Synthetic initialization vector of a deterministic record is keyed HMAC of its source,
+ * so it is used as the index token, and lookups compute the token of the searched value.
+ * HMAC of the record does not cover the initialization vector, so each record is verified by
+ * {@link AesHmacEngine#decryptDeterministic(EncryptedPublicData)} before it is indexed:
+ * records with a changed initialization vector, or encrypted with random one, are rejected.
+ *
+ * <p>The index is updated incrementally: putting a row id again moves it to the token
+ * of the new record. The instance is thread-safe, lookups do not block updates.
+ *
+ * @param <K> The row id type
+ * @author mperever
+ *
+ */
+public class BlindIndex<K>
+{
+    private final EncryptedPrivateData privateData;
+    private final Map<ByteBuffer, Set<K>> rowsByToken = new ConcurrentHashMap<>();
+    private final Map<K, ByteBuffer> tokensByRow = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor with private keys of indexed records, which are used for verification and lookups.
+     *
+     * @param privateData private information of deterministic encryption
+     */
+    public BlindIndex( final EncryptedPrivateData privateData )
+    {
+        this.privateData = privateData;
+    }
+
+    /**
+     * Verifies and adds or updates the record of the row.
+     *
+     * @param rowId The row id
+     * @param publicData The record encrypted deterministically
+     * @throws AesEncryptionException if HMAC or synthetic initialization vector of the record is invalid
+     */
+    public void put( K rowId, final EncryptedPublicData publicData ) throws AesEncryptionException
+    {
+        final byte[] source = AesHmacEngine.forCurrentThread( this.privateData ).decryptDeterministic( publicData );
+        Arrays.fill( source, (byte) 0 );
+        putToken( rowId, ByteBuffer.wrap( publicData.getInitVector() ) );
+    }
+
+    private synchronized void putToken( K rowId, ByteBuffer token )
+    {
+        final ByteBuffer previousToken = this.tokensByRow.put( rowId, token );
+        if ( token.equals( previousToken ) )
+        {
+            return;
+        }
+        if ( previousToken != null )
+        {
+            removeRow( previousToken, rowId );
+        }
+        this.rowsByToken.computeIfAbsent( token, key -> ConcurrentHashMap.newKeySet() ).add( rowId );
+    }
+
+    /**
+     * Removes the row from the index.
+     *
+     * @param rowId The row id
+     */
+    public synchronized void remove( K rowId )
+    {
+        final ByteBuffer token = this.tokensByRow.remove( rowId );
+        if ( token != null )
+        {
+            removeRow( token, rowId );
+        }
+    }
+
+    /**
+     * Finds rows with records of the value.
+     *
+     * @param value The searched value
+     * @return The row ids, empty if the value is not found
+     * @throws AesEncryptionException if the token of the value cannot be computed
+     */
+    public Set<K> find( byte[] value ) throws AesEncryptionException
+    {
+        final byte[] token = AesHmacEngine.forCurrentThread( this.privateData ).getSyntheticIv( value );
+        final Set<K> rows = this.rowsByToken.get( ByteBuffer.wrap( token ) );
+        return rows == null ? Collections.emptySet() : Collections.unmodifiableSet( new HashSet<>( rows ) );
+    }
+
+    /**
+     * Finds rows with records of the text, encrypted by
+     * {@link AesEncryptionUtils#encryptTextDeterministic(String, EncryptedPrivateData)}.
+     *
+     * @param text The searched text
+     * @return The row ids, empty if the text is not found
+     * @throws AesEncryptionException if the token of the text cannot be computed
+     */
+    public Set<K> findText( String text ) throws AesEncryptionException
+    {
+        return find( text.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Gets number of indexed rows.
+     *
+     * @return The number of rows
+     */
+    public int size()
+    {
+        return this.tokensByRow.size();
+    }
+
+    private void removeRow( ByteBuffer token, K rowId )
+    {
+        final Set<K> rows = this.rowsByToken.get( token );
+        if ( rows != null && rows.remove( rowId ) && rows.isEmpty() )
+        {
+            this.rowsByToken.remove( token );
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.github.mperever.crypto;
+
+import com.github.mperever.crypto.metrics.CryptoMetrics;
+import com.github.mperever.crypto.metrics.Operation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Represents encryption with compression stage: the source is compressed before encryption,
+ * so text such as JSON or logs is stored in fewer bytes, and fewer bytes are encrypted and MACed.
+ *
+ * <p>Compression is skipped for sources smaller than the minimum size, and for sources
+ * whose first {@value #SAMPLE_SIZE} bytes do not compress by at least 1/8 with the codec.
+ * Such sources, and sources that do not compress well as a whole, are stored as is.
+ *
+ * <p>Record layout is versioned format of {@link EncryptedPublicData#writeTo(ByteBuffer)}
+ * with format version 2 and the codec identifier after the encryption mode. The encrypted payload
+ * is the codec identifier (1 byte), source size (4 bytes) and compressed source. The header is not
+ * authenticated, so the codec is kept in the payload too, and a changed header codec is detected.
+ * Version 1 records are decrypted as well.
+ *
+ * <p>The instance is thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public class CompressingEncryption
+{
+    public static final int DEFAULT_MIN_SIZE = 256; // in bytes
+
+    static final byte FORMAT_VERSION = 2;
+    static final int HEADER_SIZE = 3; // version, mode and codec, in bytes
+
+    private static final int PAYLOAD_HEADER_SIZE = 5; // codec and source size, in bytes
+    private static final int SAMPLE_SIZE = 4096; // in bytes
+    private static final int MIN_SAVING_DIVISOR = 8; // compression must save 1/8 of the source
+
+    private final EncryptedPrivateData privateData;
+    private final EncryptionMode mode;
+    private final CompressionCodec codec;
+    private final int minSize;
+
+    /**
+     * Constructor with CBC mode, the fastest available codec and default minimum size.
+     *
+     * @param privateData private information for encryption
+     */
+    public CompressingEncryption( final EncryptedPrivateData privateData )
+    {
+        this( privateData, EncryptionMode.CBC_HMAC_SHA256, CompressionCodec.getDefault(), DEFAULT_MIN_SIZE );
+    }
+
+    /**
+     * Constructor with custom mode, codec and minimum size.
+     *
+     * @param privateData private information for encryption
+     * @param mode The encryption mode
+     * @param codec The compression codec
+     * @param minSize The minimum source size to compress, in bytes
+     * @throws IllegalArgumentException if the codec is not available
+     */
+    public CompressingEncryption( final EncryptedPrivateData privateData,
+                                  EncryptionMode mode,
+                                  CompressionCodec codec,
+                                  int minSize )
+    {
+        if ( !codec.isAvailable() )
+        {
+            throw new IllegalArgumentException( "Compression codec is not available: " + codec );
+        }
+        this.privateData = privateData;
+        this.mode = mode;
+        this.codec = codec;
+        this.minSize = Math.max( 1, minSize );
+    }
+
+    /**
+     * Compresses and encrypts the source.
+     *
+     * @param source The source for encryption
+     * @return The record with compressed and encrypted source
+     * @throws AesEncryptionException if an error occurs during compression or encryption
+     */
+    public byte[] encrypt( byte[] source ) throws AesEncryptionException
+    {
+        final byte[] payload = new byte[PAYLOAD_HEADER_SIZE + source.length];
+        byte[] compressed = null;
+        try
+        {
+            final int payloadSize = compress( source, payload );
+            compressed = Arrays.copyOf( payload, payloadSize );
+            final EncryptedPublicDataView publicData =
+                    AesEncryptionUtils.encrypt( compressed, this.privateData, this.mode ).asView();
+
+            final byte[] encrypted = new byte[HEADER_SIZE
+                    + this.mode.getInitVectorSize()
+                    + this.mode.getTagSize()
+                    + publicData.getEncryptedDataSize()];
+            ByteBuffer.wrap( encrypted )
+                    .put( FORMAT_VERSION )
+                    .put( this.mode.getId() )
+                    .put( payload[0] )
+                    .put( publicData.getInitVector() )
+                    .put( publicData.getHmac() )
+                    .put( publicData.getEncryptedData() );
+            return encrypted;
+        } finally
+        {
+            Arrays.fill( payload, (byte) 0 );
+            if ( compressed != null )
+            {
+                Arrays.fill( compressed, (byte) 0 );
+            }
+        }
+    }
+
+    /**
+     * Decrypts and decompresses the record created by {@link #encrypt(byte[])}
+     * or written by {@link EncryptedPublicData#writeTo(ByteBuffer)}.
+     *
+     * @param encrypted The record
+     * @return Decrypted source
+     * @throws AesEncryptionException if the record is malformed, its codec is not available
+     *     or an error occurs during decryption or decompression.
+     */
+    public byte[] decrypt( byte[] encrypted ) throws AesEncryptionException
+    {
+        if ( encrypted.length > 0 && encrypted[0] == EncryptedPublicData.FORMAT_VERSION )
+        {
+            return AesEncryptionUtils.decrypt(
+                    EncryptedPublicDataView.wrapVersioned( ByteBuffer.wrap( encrypted ) ), this.privateData );
+        }
+
+        final CompressionCodec recordCodec = getCodec( encrypted );
+        if ( !recordCodec.isAvailable() )
+        {
+            throw new AesEncryptionException( "Compression codec is not available: " + recordCodec );
+        }
+        final EncryptionMode recordMode;
+        try
+        {
+            recordMode = EncryptionMode.fromId( encrypted[1] );
+        } catch ( IllegalArgumentException ex )
+        {
+            throw new AesEncryptionException( ex.getMessage(), ex );
+        }
+
+        final int initVectorOffset = HEADER_SIZE;
+        final int hmacOffset = initVectorOffset + recordMode.getInitVectorSize();
+        final int encryptedDataOffset = hmacOffset + recordMode.getTagSize();
+        if ( encrypted.length < encryptedDataOffset )
+        {
+            throw new AesEncryptionException( "Encrypted public data is too short" );
+        }
+        final EncryptedPublicDataView publicData = new EncryptedPublicDataView(
+                ByteBuffer.wrap( encrypted, encryptedDataOffset, encrypted.length - encryptedDataOffset ).slice(),
+                ByteBuffer.wrap( encrypted, initVectorOffset, recordMode.getInitVectorSize() ).slice(),
+                ByteBuffer.wrap( encrypted, hmacOffset, recordMode.getTagSize() ).slice(),
+                recordMode );
+
+        final byte[] payload = AesEncryptionUtils.decrypt( publicData, this.privateData );
+        try
+        {
+            return decompress( recordCodec, payload );
+        } finally
+        {
+            Arrays.fill( payload, (byte) 0 );
+        }
+    }
+
+    /**
+     * Compresses and encrypts the text and returns the record as Base64 string.
+     *
+     * @param text The text for encryption
+     * @return The Base64 record
+     * @throws AesEncryptionException if an error occurs during compression or encryption
+     */
+    public String encryptText( String text ) throws AesEncryptionException
+    {
+        return Base64.getEncoder().encodeToString( encrypt( text.getBytes( StandardCharsets.UTF_8 ) ) );
+    }
+
+    /**
+     * Decrypts the Base64 record created by {@link #encryptText(String)}.
+     *
+     * @param encryptedText The Base64 record
+     * @return Decrypted text
+     * @throws AesEncryptionException if the record is malformed or an error occurs during decryption
+     */
+    public String decryptText( String encryptedText ) throws AesEncryptionException
+    {
+        final byte[] encrypted;
+        try
+        {
+            encrypted = Base64.getDecoder().decode( encryptedText );
+        } catch ( IllegalArgumentException ex )
+        {
+            throw new AesEncryptionException( ex.getMessage(), ex );
+        }
+        return new String( decrypt( encrypted ), StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Gets codec of the record from its header, without decrypting it.
+     *
+     * @param encrypted The record created by {@link #encrypt(byte[])}
+     * @return The compression codec
+     * @throws AesEncryptionException if format version or codec is unknown
+     */
+    public static CompressionCodec getCodec( byte[] encrypted ) throws AesEncryptionException
+    {
+        if ( encrypted.length < HEADER_SIZE || encrypted[0] != FORMAT_VERSION )
+        {
+            throw new AesEncryptionException( "Unknown format version" );
+        }
+        try
+        {
+            return CompressionCodec.fromId( encrypted[2] );
+        } catch ( IllegalArgumentException ex )
+        {
+            throw new AesEncryptionException( ex.getMessage(), ex );
+        }
+    }
+
+    private int compress( byte[] source, byte[] payload ) throws AesEncryptionException
+    {
+        int size = -1;
+        if ( source.length >= this.minSize && this.codec != CompressionCodec.NONE && isCompressible( source ) )
+        {
+            final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+            final long start = AesEncryptionUtils.startTimer( metrics );
+            size = this.codec.compress( source, 0, source.length,
+                    payload, PAYLOAD_HEADER_SIZE, getMaxCompressedSize( source.length ) );
+            AesEncryptionUtils.record( metrics, Operation.COMPRESSION, source.length, start, size >= 0 );
+        }
+
+        final CompressionCodec payloadCodec = size >= 0 ? this.codec : CompressionCodec.NONE;
+        if ( size < 0 )
+        {
+            size = CompressionCodec.NONE.compress( source, 0, source.length,
+                    payload, PAYLOAD_HEADER_SIZE, source.length );
+        }
+        payload[0] = payloadCodec.getId();
+        ByteBuffer.wrap( payload ).putInt( 1, source.length );
+        return PAYLOAD_HEADER_SIZE + size;
+    }
+
+    private boolean isCompressible( byte[] source ) throws AesEncryptionException
+    {
+        if ( source.length <= SAMPLE_SIZE )
+        {
+            // Small source is compressed once as a whole, and falls back to no compression
+            return true;
+        }
+        final byte[] sample = new byte[SAMPLE_SIZE];
+        return this.codec.compress( source, 0, SAMPLE_SIZE, sample, 0, getMaxCompressedSize( SAMPLE_SIZE ) ) >= 0;
+    }
+
+    private static int getMaxCompressedSize( int size )
+    {
+        return size - size / MIN_SAVING_DIVISOR;
+    }
+
+    private static byte[] decompress( CompressionCodec recordCodec, byte[] payload ) throws AesEncryptionException
+    {
+        if ( payload.length < PAYLOAD_HEADER_SIZE || payload[0] != recordCodec.getId() )
+        {
+            throw new AesEncryptionException( "Compression codec does not match the header" );
+        }
+        final int sourceSize = ByteBuffer.wrap( payload ).getInt( 1 );
+        if ( sourceSize < 0 )
+        {
+            throw new AesEncryptionException( "Source size is wrong: " + sourceSize );
+        }
+
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+        final byte[] source = new byte[sourceSize];
+        boolean success = false;
+        try
+        {
+            recordCodec.decompress( payload, PAYLOAD_HEADER_SIZE, payload.length - PAYLOAD_HEADER_SIZE, source );
+            success = true;
+            return source;
+        } finally
+        {
+            AesEncryptionUtils.record( metrics, Operation.DECOMPRESSION, sourceSize, start, success );
+            if ( !success )
+            {
+                // Partly decompressed source is wiped like the other buffers
+                Arrays.fill( source, (byte) 0 );
+            }
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.github.mperever.crypto;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Represents compression codecs applied before encryption by {@link CompressingEncryption}.
+ * Identifier of the codec is stored in the header of compressed records.
+ *
+ * <p>LZ4 (lz4-java) and Zstandard (zstd-jni) are optional: they are used through reflection
+ * when their libraries are on the classpath, and are not available otherwise.
+ *
+ * @author mperever
+ *
+ */
+public enum CompressionCodec
+{
+    /**
+     * Source is stored as is.
+     */
+    NONE( (byte) 0 )
+    {
+        @Override
+        int compress( byte[] source, int offset, int length, byte[] destination, int destinationOffset, int maxSize )
+        {
+            if ( length > maxSize )
+            {
+                return -1;
+            }
+            System.arraycopy( source, offset, destination, destinationOffset, length );
+            return length;
+        }
+
+        @Override
+        void decompress( byte[] source, int offset, int length, byte[] destination )
+                throws AesEncryptionException
+        {
+            if ( length != destination.length )
+            {
+                throw new AesEncryptionException( "Decompressed size is wrong" );
+            }
+            System.arraycopy( source, offset, destination, 0, length );
+        }
+    },
+
+    /**
+     * Deflate of java.util.zip with the fastest level, always available.
+     */
+    DEFLATE( (byte) 1 )
+    {
+        @Override
+        int compress( byte[] source, int offset, int length, byte[] destination, int destinationOffset, int maxSize )
+        {
+            final Deflater deflater = ZipHolder.borrowDeflater();
+            try
+            {
+                deflater.setInput( source, offset, length );
+                deflater.finish();
+                final int size = deflater.deflate( destination, destinationOffset, maxSize );
+                return deflater.finished() ? size : -1;
+            } finally
+            {
+                ZipHolder.releaseDeflater( deflater );
+            }
+        }
+
+        @Override
+        void decompress( byte[] source, int offset, int length, byte[] destination )
+                throws AesEncryptionException
+        {
+            final Inflater inflater = ZipHolder.borrowInflater();
+            try
+            {
+                inflater.setInput( source, offset, length );
+
+                // Source is inflated directly into the destination of known size
+                int size = 0;
+                while ( size < destination.length && !inflater.finished()
+                        && !inflater.needsInput() && !inflater.needsDictionary() )
+                {
+                    size += inflater.inflate( destination, size, destination.length - size );
+                }
+                if ( size != destination.length || !inflater.finished() )
+                {
+                    throw new AesEncryptionException( "Decompressed size is wrong" );
+                }
+            } catch ( DataFormatException ex )
+            {
+                throw new AesEncryptionException( ex );
+            } finally
+            {
+                ZipHolder.releaseInflater( inflater );
+            }
+        }
+    },
+
+    /**
+     * LZ4 block format with the fastest compressor, available with lz4-java on the classpath.
+     */
+    LZ4( (byte) 2 )
+    {
+        @Override
+        public boolean isAvailable()
+        {
+            return Lz4Holder.COMPRESSOR != null;
+        }
+
+        @Override
+        int compress( byte[] source, int offset, int length, byte[] destination, int destinationOffset, int maxSize )
+                throws AesEncryptionException
+        {
+            try
+            {
+                return (Integer) invoke( Lz4Holder.COMPRESS, Lz4Holder.COMPRESSOR,
+                        source, offset, length, destination, destinationOffset, maxSize );
+            } catch ( AesEncryptionException ex )
+            {
+                // LZ4 fails when the destination is too small, so the source is not compressible enough
+                return -1;
+            }
+        }
+
+        @Override
+        void decompress( byte[] source, int offset, int length, byte[] destination )
+                throws AesEncryptionException
+        {
+            final int size = (Integer) invoke( Lz4Holder.DECOMPRESS, Lz4Holder.DECOMPRESSOR,
+                    source, offset, length, destination, 0, destination.length );
+            if ( size != destination.length )
+            {
+                throw new AesEncryptionException( "Decompressed size is wrong" );
+            }
+        }
+    },
+
+    /**
+     * Zstandard with level 1, available with zstd-jni on the classpath.
+     */
+    ZSTD( (byte) 3 )
+    {
+        @Override
+        public boolean isAvailable()
+        {
+            return ZstdHolder.COMPRESS != null;
+        }
+
+        @Override
+        int compress( byte[] source, int offset, int length, byte[] destination, int destinationOffset, int maxSize )
+                throws AesEncryptionException
+        {
+            final long size = (Long) invoke( ZstdHolder.COMPRESS, null,
+                    destination, destinationOffset, maxSize, source, offset, length, ZstdHolder.LEVEL );
+
+            // Zstandard returns error code when the destination is too small
+            return (Boolean) invoke( ZstdHolder.IS_ERROR, null, size ) ? -1 : (int) size;
+        }
+
+        @Override
+        void decompress( byte[] source, int offset, int length, byte[] destination )
+                throws AesEncryptionException
+        {
+            final long size = (Long) invoke( ZstdHolder.DECOMPRESS, null,
+                    destination, 0, destination.length, source, offset, length );
+            if ( (Boolean) invoke( ZstdHolder.IS_ERROR, null, size ) || size != destination.length )
+            {
+                throw new AesEncryptionException( "Decompressed size is wrong" );
+            }
+        }
+    };
+
+    private final byte id;
+
+    CompressionCodec( byte id )
+    {
+        this.id = id;
+    }
+
+    /**
+     * Gets the codec by its identifier.
+     *
+     * @param id The codec identifier
+     * @return The compression codec
+     * @throws IllegalArgumentException if the codec is unknown
+     */
+    public static CompressionCodec fromId( byte id )
+    {
+        for ( CompressionCodec codec : values() )
+        {
+            if ( codec.id == id )
+            {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException( "Unknown compression codec: " + id );
+    }
+
+    /**
+     * Gets the fastest available codec: LZ4 if it is on the classpath, Deflate otherwise.
+     *
+     * @return The compression codec
+     */
+    public static CompressionCodec getDefault()
+    {
+        return LZ4.isAvailable() ? LZ4 : DEFLATE;
+    }
+
+    /**
+     * Gets the codec identifier.
+     *
+     * @return The codec identifier
+     */
+    public byte getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * Checks whether the codec library is on the classpath.
+     *
+     * @return true if the codec can be used
+     */
+    public boolean isAvailable()
+    {
+        return true;
+    }
+
+    /**
+     * Compresses the source into the destination if the result fits the maximum size.
+     *
+     * @return The compressed size, or -1 if it exceeds the maximum size
+     */
+    abstract int compress( byte[] source, int offset, int length, byte[] destination, int destinationOffset, int maxSize )
+            throws AesEncryptionException;
+
+    /**
+     * Decompresses the source into the whole destination, which has the size of original source.
+     */
+    abstract void decompress( byte[] source, int offset, int length, byte[] destination )
+            throws AesEncryptionException;
+
+    private static Object invoke( Method method, Object target, Object... arguments ) throws AesEncryptionException
+    {
+        try
+        {
+            return method.invoke( target, arguments );
+        } catch ( InvocationTargetException ex )
+        {
+            throw new AesEncryptionException( ex.getCause() );
+        } catch ( IllegalAccessException ex )
+        {
+            throw new AesEncryptionException( ex );
+        }
+    }
+
+    private static Method findMethod( String className, String methodName, Class<?>... parameterTypes )
+    {
+        try
+        {
+            return Class.forName( className ).getMethod( methodName, parameterTypes );
+        } catch ( ClassNotFoundException | NoSuchMethodException | LinkageError ex )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Keeps bounded pools of deflaters and inflaters, which hold native memory and are costly to create.
+     * Instances beyond the pool size are ended on release, so their native memory is freed
+     * at once rather than held by each thread, e.g. by short-lived virtual threads.
+     */
+    private static final class ZipHolder
+    {
+        private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+        private static final Queue<Deflater> DEFLATERS = new ArrayBlockingQueue<>( POOL_SIZE );
+        private static final Queue<Inflater> INFLATERS = new ArrayBlockingQueue<>( POOL_SIZE );
+
+        static Deflater borrowDeflater()
+        {
+            final Deflater deflater = DEFLATERS.poll();
+            return deflater != null ? deflater : new Deflater( Deflater.BEST_SPEED );
+        }
+
+        static void releaseDeflater( Deflater deflater )
+        {
+            deflater.reset();
+            if ( !DEFLATERS.offer( deflater ) )
+            {
+                deflater.end();
+            }
+        }
+
+        static Inflater borrowInflater()
+        {
+            final Inflater inflater = INFLATERS.poll();
+            return inflater != null ? inflater : new Inflater();
+        }
+
+        static void releaseInflater( Inflater inflater )
+        {
+            inflater.reset();
+            if ( !INFLATERS.offer( inflater ) )
+            {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Keeps thread-safe LZ4 compressor and decompressor, or nulls if lz4-java is not on the classpath.
+     */
+    private static final class Lz4Holder
+    {
+        static final Object COMPRESSOR;
+        static final Object DECOMPRESSOR;
+        static final Method COMPRESS;
+        static final Method DECOMPRESS;
+
+        static
+        {
+            Object compressor = null;
+            Object decompressor = null;
+            final Method fastestInstance = findMethod( "net.jpountz.lz4.LZ4Factory", "fastestInstance" );
+            final Method compress = findMethod( "net.jpountz.lz4.LZ4Compressor", "compress",
+                    byte[].class, int.class, int.class, byte[].class, int.class, int.class );
+            final Method decompress = findMethod( "net.jpountz.lz4.LZ4SafeDecompressor", "decompress",
+                    byte[].class, int.class, int.class, byte[].class, int.class, int.class );
+            if ( fastestInstance != null && compress != null && decompress != null )
+            {
+                try
+                {
+                    final Object factory = fastestInstance.invoke( null );
+                    compressor = factory.getClass().getMethod( "fastCompressor" ).invoke( factory );
+                    decompressor = factory.getClass().getMethod( "safeDecompressor" ).invoke( factory );
+                } catch ( ReflectiveOperationException | LinkageError ex )
+                {
+                    compressor = null;
+                    decompressor = null;
+                }
+            }
+            COMPRESSOR = compressor;
+            DECOMPRESSOR = decompressor;
+            COMPRESS = compress;
+            DECOMPRESS = decompress;
+        }
+    }
+
+    /**
+     * Keeps static methods of Zstandard, or nulls if zstd-jni is not on the classpath.
+     */
+    private static final class ZstdHolder
+    {
+        static final int LEVEL = 1;
+        static final Method COMPRESS;
+        static final Method DECOMPRESS;
+        static final Method IS_ERROR;
+
+        static
+        {
+            final Method compress = findMethod( "com.github.luben.zstd.Zstd", "compressByteArray",
+                    byte[].class, int.class, int.class, byte[].class, int.class, int.class, int.class );
+            final Method decompress = findMethod( "com.github.luben.zstd.Zstd", "decompressByteArray",
+                    byte[].class, int.class, int.class, byte[].class, int.class, int.class );
+            final Method isError = findMethod( "com.github.luben.zstd.Zstd", "isError", long.class );
+            final boolean available = compress != null && decompress != null && isError != null;
+            COMPRESS = available ? compress : null;
+            DECOMPRESS = available ? decompress : null;
+            IS_ERROR = available ? isError : null;
+        }
+    }
+}
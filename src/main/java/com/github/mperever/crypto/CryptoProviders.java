@@ -0,0 +1,325 @@
+package com.github.mperever.crypto;
+
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Represents selection of security providers for ciphers and MACs used by engines.
+ *
+ * <p>Each algorithm is probed once, on the first use: every installed provider of the algorithm
+ * is checked against known answer of the default provider, and when more than one provider is
+ * compliant, they are compared by a short self-benchmark and the fastest one is chosen.
+ * Probing can be disabled with system property {@value #PROBE_PROPERTY}{@code =false},
+ * then the default provider is used.
+ *
+ * @author mperever
+ *
+ */
+public final class CryptoProviders
+{
+    public static final String PROBE_PROPERTY = "com.github.mperever.crypto.probeProviders";
+
+    private static final int PROBE_SOURCE_SIZE = 16 * 1024; // in bytes
+    private static final long PROBE_TIME_NANOS = TimeUnit.MILLISECONDS.toNanos( 20 );
+    private static final int PROBE_WARMUP_ITERATIONS = 50;
+    private static final int GCM_NONCE_SIZE = 12; // in bytes
+    private static final int GCM_TAG_BITS = 128;
+
+    private static final ConcurrentMap<String, ProbeResult> RESULTS = new ConcurrentHashMap<>();
+
+    private CryptoProviders()
+    {
+    }
+
+    /**
+     * Gets the provider chosen for the cipher transformation, probing it on the first call.
+     *
+     * @param transformation The cipher transformation, e.g. "AES/CBC/PKCS5Padding"
+     * @return The probe result
+     */
+    public static ProbeResult getCipherProbe( String transformation )
+    {
+        return RESULTS.computeIfAbsent( "Cipher." + transformation,
+                key -> probe( getCipherProviders( transformation ), new CipherProbe( transformation ) ) );
+    }
+
+    /**
+     * Gets the provider chosen for the MAC algorithm, probing it on the first call.
+     *
+     * @param algorithm The MAC algorithm, e.g. "HmacSHA256"
+     * @return The probe result
+     */
+    public static ProbeResult getMacProbe( String algorithm )
+    {
+        return RESULTS.computeIfAbsent( "Mac." + algorithm,
+                key -> probe( getMacProviders( algorithm ), new MacProbe( algorithm ) ) );
+    }
+
+    /**
+     * Checks whether HotSpot uses AES intrinsics, which are backed by AES-NI or similar
+     * instructions of the processor.
+     *
+     * @return The flag value, or null if the virtual machine does not report it
+     */
+    public static Boolean isAesIntrinsicsEnabled()
+    {
+        try
+        {
+            final Object option = ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName( "com.sun.management:type=HotSpotDiagnostic" ),
+                    "getVMOption",
+                    new Object[] { "UseAESIntrinsics" },
+                    new String[] { String.class.getName() } );
+            return Boolean.valueOf( String.valueOf( ( (CompositeData) option ).get( "value" ) ) );
+        } catch ( Exception ex )
+        {
+            return null;
+        }
+    }
+
+    static Cipher newCipher( String transformation ) throws NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        final Provider provider = getCipherProbe( transformation ).getProvider();
+        return provider != null
+                ? Cipher.getInstance( transformation, provider )
+                : Cipher.getInstance( transformation );
+    }
+
+    static Mac newMac( String algorithm ) throws NoSuchAlgorithmException
+    {
+        final Provider provider = getMacProbe( algorithm ).getProvider();
+        return provider != null
+                ? Mac.getInstance( algorithm, provider )
+                : Mac.getInstance( algorithm );
+    }
+
+    private static List<Provider> getCipherProviders( String transformation )
+    {
+        final List<Provider> providers = new ArrayList<>();
+        for ( Provider provider : Security.getProviders() )
+        {
+            try
+            {
+                Cipher.getInstance( transformation, provider );
+                providers.add( provider );
+            } catch ( GeneralSecurityException ex )
+            {
+                // The provider does not support the transformation
+            }
+        }
+        return providers;
+    }
+
+    private static List<Provider> getMacProviders( String algorithm )
+    {
+        final List<Provider> providers = new ArrayList<>();
+        for ( Provider provider : Security.getProviders() )
+        {
+            try
+            {
+                Mac.getInstance( algorithm, provider );
+                providers.add( provider );
+            } catch ( GeneralSecurityException ex )
+            {
+                // The provider does not support the algorithm
+            }
+        }
+        return providers;
+    }
+
+    private static ProbeResult probe( List<Provider> providers, Probe probe )
+    {
+        if ( providers.isEmpty() || !Boolean.parseBoolean( System.getProperty( PROBE_PROPERTY, "true" ) ) )
+        {
+            return new ProbeResult( null, Double.NaN );
+        }
+
+        // The default provider is the reference of known answer, others must produce the same bytes
+        byte[] expected = null;
+        ProbeResult best = null;
+        for ( Provider provider : providers )
+        {
+            try
+            {
+                final byte[] actual = probe.run( provider, 0 );
+                if ( expected == null )
+                {
+                    expected = actual;
+                } else if ( !Arrays.equals( expected, actual ) )
+                {
+                    continue;
+                }
+
+                // A single compliant provider is chosen without benchmark
+                final double throughput = providers.size() > 1 ? benchmark( provider, probe ) : Double.NaN;
+                if ( best == null || throughput > best.getThroughput() )
+                {
+                    best = new ProbeResult( provider, throughput );
+                }
+            } catch ( GeneralSecurityException | RuntimeException ex )
+            {
+                // The provider is skipped if it fails the probe
+            }
+        }
+        return best != null ? best : new ProbeResult( null, Double.NaN );
+    }
+
+    private static double benchmark( Provider provider, Probe probe ) throws GeneralSecurityException
+    {
+        int iteration = 1;
+        for ( ; iteration <= PROBE_WARMUP_ITERATIONS; iteration++ )
+        {
+            probe.run( provider, iteration );
+        }
+
+        final long start = System.nanoTime();
+        long elapsed;
+        long processed = 0;
+        do
+        {
+            probe.run( provider, iteration++ );
+            processed += PROBE_SOURCE_SIZE;
+            elapsed = System.nanoTime() - start;
+        } while ( elapsed < PROBE_TIME_NANOS );
+        return processed * 1e9 / elapsed;
+    }
+
+    /**
+     * Represents chosen provider of an algorithm.
+     */
+    public static final class ProbeResult
+    {
+        private final Provider provider;
+        private final double throughput;
+
+        ProbeResult( Provider provider, double throughput )
+        {
+            this.provider = provider;
+            this.throughput = throughput;
+        }
+
+        /**
+         * Gets the chosen provider.
+         *
+         * @return The provider, or null if the default provider is used without probing
+         */
+        public Provider getProvider()
+        {
+            return this.provider;
+        }
+
+        /**
+         * Gets throughput of the chosen provider measured by the probe.
+         *
+         * @return The throughput in bytes per second, or NaN if providers were not compared
+         */
+        public double getThroughput()
+        {
+            return this.throughput;
+        }
+
+        @Override
+        public String toString()
+        {
+            return ( this.provider != null ? this.provider.getName() : "default" )
+                    + ( Double.isNaN( this.throughput ) ? "" : String.format( " (%.1f MB/s)", this.throughput / 1e6 ) );
+        }
+    }
+
+    private interface Probe
+    {
+        /**
+         * Processes fixed source with fixed key.
+         *
+         * @param provider The provider to probe
+         * @param iteration The iteration number, 0 for known answer
+         * @return The result bytes
+         */
+        byte[] run( Provider provider, int iteration ) throws GeneralSecurityException;
+    }
+
+    private static final class CipherProbe implements Probe
+    {
+        private final String transformation;
+        private final SecretKeySpec key;
+        private final byte[] source = new byte[PROBE_SOURCE_SIZE];
+        private final boolean gcm;
+        private Cipher cipher;
+
+        CipherProbe( String transformation )
+        {
+            this.transformation = transformation;
+            this.key = new SecretKeySpec( new byte[32], transformation.split( "/" )[0] );
+            this.gcm = transformation.contains( "/GCM/" );
+        }
+
+        @Override
+        public byte[] run( Provider provider, int iteration ) throws GeneralSecurityException
+        {
+            if ( this.cipher == null || this.cipher.getProvider() != provider )
+            {
+                this.cipher = Cipher.getInstance( this.transformation, provider );
+            }
+            this.cipher.init( Cipher.ENCRYPT_MODE, this.key, getParameterSpec( iteration ) );
+            return this.cipher.doFinal( this.source );
+        }
+
+        private AlgorithmParameterSpec getParameterSpec( int iteration )
+        {
+            // GCM nonce must not be reused with the same key, so each iteration has its own one
+            if ( this.gcm )
+            {
+                final byte[] nonce = new byte[GCM_NONCE_SIZE];
+                nonce[0] = (byte) iteration;
+                nonce[1] = (byte) ( iteration >>> 8 );
+                nonce[2] = (byte) ( iteration >>> 16 );
+                nonce[3] = (byte) ( iteration >>> 24 );
+                return new GCMParameterSpec( GCM_TAG_BITS, nonce );
+            }
+            return new IvParameterSpec( new byte[AesHmacEngine.INIT_VECTOR_SIZE] );
+        }
+    }
+
+    private static final class MacProbe implements Probe
+    {
+        private final String algorithm;
+        private final SecretKeySpec key;
+        private final byte[] source = new byte[PROBE_SOURCE_SIZE];
+        private Mac mac;
+
+        MacProbe( String algorithm )
+        {
+            this.algorithm = algorithm;
+            this.key = new SecretKeySpec( new byte[32], algorithm );
+        }
+
+        @Override
+        public byte[] run( Provider provider, int iteration ) throws GeneralSecurityException
+        {
+            if ( this.mac == null || this.mac.getProvider() != provider )
+            {
+                this.mac = Mac.getInstance( this.algorithm, provider );
+                this.mac.init( this.key );
+            }
+            return this.mac.doFinal( this.source );
+        }
+    }
+}
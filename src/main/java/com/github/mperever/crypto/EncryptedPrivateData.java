@@ -2,7 +2,13 @@ package com.github.mperever.crypto;
 
 import com.github.mperever.utils.ArraysUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * Represents class to keep encrypted private data.
@@ -17,12 +23,26 @@ public class EncryptedPrivateData
     private final byte[] aesKey;
     private final byte[] hmacKey;
 
+    // Guards of engines created with the keys, kept weakly so unused engines are collected
+    private final Set<KeyGuard> engineGuards = Collections.newSetFromMap( new WeakHashMap<>() );
+    private boolean enginesDropped;
+
     public EncryptedPrivateData( byte[] aesKey, byte[] hmacKey )
     {
         this.aesKey = aesKey.clone();
         this.hmacKey = hmacKey.clone();
     }
 
+    /**
+     * Constructor for subclasses which keep the private keys outside of heap arrays
+     * and override every method accessing them.
+     */
+    EncryptedPrivateData()
+    {
+        this.aesKey = null;
+        this.hmacKey = null;
+    }
+
     public static EncryptedPrivateData fromString( String source )
     {
         return fromString( source, DEFAULT_AES_KEY_SIZE );
@@ -61,6 +81,83 @@ public class EncryptedPrivateData
         return this.hmacKey.clone();
     }
 
+    /**
+     * Applies the function to AES key without cloning it.
+     * The key is borrowed for the call only and must not be kept or modified by the function.
+     *
+     * @param function The function to apply
+     * @param <T> The result type
+     * @return The function result
+     * @throws AesEncryptionException if the keys are not available or the function fails
+     */
+    <T> T withAesKey( KeyFunction<T> function ) throws AesEncryptionException
+    {
+        return function.apply( this.aesKey );
+    }
+
+    /**
+     * Applies the function to HMAC key without cloning it.
+     * The key is borrowed for the call only and must not be kept or modified by the function.
+     *
+     * @param function The function to apply
+     * @param <T> The result type
+     * @return The function result
+     * @throws AesEncryptionException if the keys are not available or the function fails
+     */
+    <T> T withHmacKey( KeyFunction<T> function ) throws AesEncryptionException
+    {
+        return function.apply( this.hmacKey );
+    }
+
+    /**
+     * Registers guard of an engine created with the keys, so the engine drops its keys
+     * when the keys are destroyed.
+     *
+     * @param guard The guard of the engine
+     * @throws AesEncryptionException if the keys are already destroyed
+     */
+    void registerEngine( KeyGuard guard ) throws AesEncryptionException
+    {
+        synchronized ( this.engineGuards )
+        {
+            if ( this.enginesDropped )
+            {
+                throw new AesEncryptionException( "Private keys are destroyed" );
+            }
+            this.engineGuards.add( guard );
+        }
+    }
+
+    /**
+     * Makes all engines created with the keys drop their copies of key material,
+     * including engines cached by threads and pools. Later engine creation fails.
+     */
+    final void dropEngineKeys()
+    {
+        final List<KeyGuard> guards;
+        synchronized ( this.engineGuards )
+        {
+            this.enginesDropped = true;
+            guards = new ArrayList<>( this.engineGuards );
+            this.engineGuards.clear();
+        }
+        for ( KeyGuard guard : guards )
+        {
+            guard.drop();
+        }
+    }
+
+    /**
+     * Zeroes the private keys, and makes engines created with them drop their key material.
+     * The instance must not be used after the call.
+     */
+    void destroy()
+    {
+        dropEngineKeys();
+        Arrays.fill( this.aesKey, (byte) 0 );
+        Arrays.fill( this.hmacKey, (byte) 0 );
+    }
+
     /**
      * Save current instance to string.
      *
@@ -71,4 +168,14 @@ public class EncryptedPrivateData
         final byte[] dataToSave = ArraysUtils.concat( this.aesKey, this.hmacKey );
         return Base64.getEncoder().encodeToString( dataToSave );
     }
-}
\ No newline at end of file
+
+    /**
+     * Represents function applied to a borrowed private key.
+     *
+     * @param <T> The result type
+     */
+    interface KeyFunction<T>
+    {
+        T apply( byte[] key ) throws AesEncryptionException;
+    }
+}
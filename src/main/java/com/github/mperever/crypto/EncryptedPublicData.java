@@ -1,7 +1,11 @@
 package com.github.mperever.crypto;
 
+import com.github.mperever.crypto.metrics.CryptoMetrics;
+import com.github.mperever.crypto.metrics.Operation;
 import com.github.mperever.utils.ArraysUtils;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Base64;
 
@@ -15,10 +19,13 @@ public class EncryptedPublicData
 {
     private static final int DEFAULT_INIT_VECTOR_SIZE = 16; // in bytes
     private static final int DEFAULT_HMAC_SIZE = 32; // in bytes
+    static final byte FORMAT_VERSION = 1;
+    static final int FORMAT_HEADER_SIZE = 2; // version and mode, in bytes
 
     private final byte[] encryptedData;
     private final byte[] initVector;
     private final byte[] hmac;
+    private final EncryptionMode mode;
 
     /**
      * Constructor with public information of encryption.
@@ -29,9 +36,43 @@ public class EncryptedPublicData
      */
     public EncryptedPublicData( byte[] encryptedData, byte[] initVector, byte[] hmac )
     {
-        this.encryptedData = encryptedData.clone();
-        this.initVector = initVector.clone();
-        this.hmac = hmac.clone();
+        this( encryptedData, initVector, hmac, EncryptionMode.CBC_HMAC_SHA256 );
+    }
+
+    /**
+     * Constructor with public information of encryption in the specified mode.
+     *
+     * @param encryptedData The encrypted data
+     * @param initVector The initialization vector (nonce) for encryption
+     * @param hmac HMAC (authentication tag) of encrypted data
+     * @param mode The encryption mode
+     */
+    public EncryptedPublicData( byte[] encryptedData, byte[] initVector, byte[] hmac, EncryptionMode mode )
+    {
+        this( mode, encryptedData.clone(), initVector.clone(), hmac.clone() );
+    }
+
+    private EncryptedPublicData( EncryptionMode mode, byte[] encryptedData, byte[] initVector, byte[] hmac )
+    {
+        this.encryptedData = encryptedData;
+        this.initVector = initVector;
+        this.hmac = hmac;
+        this.mode = mode;
+    }
+
+    /**
+     * Creates instance which owns the specified arrays without copying them.
+     * The arrays must not be changed after the call.
+     *
+     * @param encryptedData The encrypted data
+     * @param initVector The initialization vector for encryption
+     * @param hmac HMAC of encrypted data
+     * @param mode The encryption mode
+     * @return The instance of {@link EncryptedPublicData}.
+     */
+    static EncryptedPublicData wrap( byte[] encryptedData, byte[] initVector, byte[] hmac, EncryptionMode mode )
+    {
+        return new EncryptedPublicData( mode, encryptedData, initVector, hmac );
     }
 
     /**
@@ -56,6 +97,22 @@ public class EncryptedPublicData
      * @return The instance of {@link EncryptedPublicData}.
      */
     public static EncryptedPublicData fromString( String source, int initVectorSize, int hmacSize )
+    {
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+        boolean success = false;
+        try
+        {
+            final EncryptedPublicData publicData = parse( source, initVectorSize, hmacSize );
+            success = true;
+            return publicData;
+        } finally
+        {
+            AesEncryptionUtils.record( metrics, Operation.DESERIALIZATION, source.length(), start, success );
+        }
+    }
+
+    private static EncryptedPublicData parse( String source, int initVectorSize, int hmacSize )
     {
         // Convert source base64 string to bytes
         final byte[] dataToSplit = Base64.getDecoder().decode( source );
@@ -74,7 +131,58 @@ public class EncryptedPublicData
                 0,
                 initVectorSize );
 
-        return new EncryptedPublicData( encryptedData, initVector, hmac );
+        return wrap( encryptedData, initVector, hmac, EncryptionMode.CBC_HMAC_SHA256 );
+    }
+
+    /**
+     * Parse versioned source string, created by {@link #saveToVersionedString()},
+     * to create instance of {@link EncryptedPublicData}.
+     * Sizes of initialization vector and HMAC are defined by the encryption mode.
+     *
+     * @param source The parsable source string
+     * @return The instance of {@link EncryptedPublicData}.
+     * @throws IllegalArgumentException if format version or encryption mode is unknown
+     */
+    public static EncryptedPublicData fromVersionedString( String source )
+    {
+        // Convert source base64 string to bytes
+        final byte[] dataToSplit = Base64.getDecoder().decode( source );
+        try
+        {
+            return readFrom( ByteBuffer.wrap( dataToSplit ) );
+        } catch ( AesEncryptionException ex )
+        {
+            throw new IllegalArgumentException( ex.getMessage(), ex );
+        }
+    }
+
+    /**
+     * Reads remaining bytes of the buffer in versioned binary format,
+     * written by {@link #writeTo(ByteBuffer)}. The record is not length-prefixed,
+     * so the buffer must be limited to one record.
+     *
+     * @param source The buffer to read from, its position is moved to limit
+     * @return The instance of {@link EncryptedPublicData}.
+     * @throws AesEncryptionException if format version or encryption mode is unknown
+     *     or the record is too short.
+     * @see EncryptedPublicDataView#wrapVersioned(ByteBuffer)
+     */
+    public static EncryptedPublicData readFrom( ByteBuffer source ) throws AesEncryptionException
+    {
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+        final int size = source.remaining();
+        boolean success = false;
+        try
+        {
+            final EncryptedPublicData publicData = EncryptedPublicDataView.wrapVersioned( source ).toPublicData();
+            source.position( source.limit() );
+            success = true;
+            return publicData;
+        } finally
+        {
+            AesEncryptionUtils.record( metrics, Operation.DESERIALIZATION, size, start, success );
+        }
     }
 
     /**
@@ -87,6 +195,11 @@ public class EncryptedPublicData
         return this.encryptedData.clone();
     }
 
+    int getEncryptedDataSize()
+    {
+        return this.encryptedData.length;
+    }
+
     /**
      * Gets initialization vector.
      *
@@ -98,7 +211,7 @@ public class EncryptedPublicData
     }
 
     /**
-     * Gets the HMAC.
+     * Gets the HMAC (authentication tag for GCM mode).
      *
      * @return The HMAC
      */
@@ -108,15 +221,101 @@ public class EncryptedPublicData
     }
 
     /**
-     * Save current instance to string.
+     * Gets the encryption mode.
+     *
+     * @return The encryption mode
+     */
+    public EncryptionMode getMode()
+    {
+        return this.mode;
+    }
+
+    /**
+     * Gets read-only view of current instance without copying its bytes.
+     *
+     * @return The view of encrypted public data
+     */
+    public EncryptedPublicDataView asView()
+    {
+        return new EncryptedPublicDataView( ByteBuffer.wrap( this.encryptedData ),
+                ByteBuffer.wrap( this.initVector ),
+                ByteBuffer.wrap( this.hmac ),
+                this.mode );
+    }
+
+    /**
+     * Save current instance to string in legacy format: Base64 of encrypted data, HMAC and
+     * initialization vector. The format does not record the encryption mode, and is read back
+     * by {@link #fromString(String)} as CBC with HMAC only, so data of other modes, e.g. GCM,
+     * must be saved by {@link #saveToVersionedString()}.
      *
      * @return The string that represents current object
+     * @throws IllegalStateException if the encryption mode is not CBC with HMAC
      */
     public String saveToString()
     {
+        if ( this.mode != EncryptionMode.CBC_HMAC_SHA256 )
+        {
+            throw new IllegalStateException( "Legacy format supports CBC mode only, "
+                    + "use versioned format for mode: " + this.mode );
+        }
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+
         final byte[] dataToSave =
                 ArraysUtils.concatAll( this.encryptedData, this.hmac, this.initVector );
+        final String savedData = Base64.getEncoder().encodeToString( dataToSave );
+
+        AesEncryptionUtils.record( metrics, Operation.SERIALIZATION, dataToSave.length, start, true );
+        return savedData;
+    }
+
+    /**
+     * Gets size of versioned binary format of current instance.
+     *
+     * @return The size in bytes
+     */
+    public int getSerializedSize()
+    {
+        return FORMAT_HEADER_SIZE + this.initVector.length + this.hmac.length + this.encryptedData.length;
+    }
+
+    /**
+     * Writes current instance in versioned binary format: format version, encryption mode,
+     * initialization vector, HMAC and encrypted data. No intermediate arrays are created.
+     *
+     * @param destination The buffer to write to, its position is moved after written bytes
+     * @throws BufferOverflowException if the buffer is too small, nothing is written then
+     */
+    public void writeTo( ByteBuffer destination )
+    {
+        if ( destination.remaining() < getSerializedSize() )
+        {
+            throw new BufferOverflowException();
+        }
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+
+        destination.put( FORMAT_VERSION );
+        destination.put( this.mode.getId() );
+        destination.put( this.initVector );
+        destination.put( this.hmac );
+        destination.put( this.encryptedData );
+
+        AesEncryptionUtils.record( metrics, Operation.SERIALIZATION, getSerializedSize(), start, true );
+    }
+
+    /**
+     * Save current instance to versioned string, which is Base64 form
+     * of versioned binary format written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @return The string that represents current object
+     */
+    public String saveToVersionedString()
+    {
+        final byte[] dataToSave = new byte[getSerializedSize()];
+        writeTo( ByteBuffer.wrap( dataToSave ) );
 
         return Base64.getEncoder().encodeToString( dataToSave );
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,224 @@
+package com.github.mperever.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represents read-only view of encrypted public data.
+ * Unlike {@link EncryptedPublicData} the view does not copy the underlying bytes,
+ * so the owner of the buffer must not change them while the view is used.
+ *
+ * @author mperever
+ *
+ */
+public final class EncryptedPublicDataView
+{
+    private static final int DEFAULT_INIT_VECTOR_SIZE = 16; // in bytes
+    private static final int DEFAULT_HMAC_SIZE = 32; // in bytes
+
+    private final ByteBuffer encryptedData;
+    private final ByteBuffer initVector;
+    private final ByteBuffer hmac;
+    private final EncryptionMode mode;
+
+    EncryptedPublicDataView( ByteBuffer encryptedData, ByteBuffer initVector, ByteBuffer hmac, EncryptionMode mode )
+    {
+        // Buffers are kept writable, so cipher and MAC can use their backing arrays without copying
+        this.encryptedData = encryptedData.duplicate();
+        this.initVector = initVector.duplicate();
+        this.hmac = hmac.duplicate();
+        this.mode = mode;
+    }
+
+    /**
+     * Wraps remaining bytes of the buffer, which has the same layout as bytes of
+     * {@link EncryptedPublicData#saveToString()}: encrypted data, HMAC and initialization vector.
+     * Default size for initialization vector and HMAC will be used.
+     * Position of the buffer is not changed.
+     *
+     * @param source The buffer with encrypted public data
+     * @return The view of the buffer
+     * @throws AesEncryptionException if the buffer is too short
+     */
+    public static EncryptedPublicDataView wrap( ByteBuffer source ) throws AesEncryptionException
+    {
+        return wrap( source, DEFAULT_INIT_VECTOR_SIZE, DEFAULT_HMAC_SIZE );
+    }
+
+    /**
+     * Wraps remaining bytes of the buffer, using custom sizes of initialization vector and HMAC.
+     * Position of the buffer is not changed.
+     *
+     * @param source The buffer with encrypted public data
+     * @param initVectorSize The initialization vector size in bytes
+     * @param hmacSize The HMAC size in bytes
+     * @return The view of the buffer
+     * @throws AesEncryptionException if the buffer is too short
+     */
+    public static EncryptedPublicDataView wrap( ByteBuffer source, int initVectorSize, int hmacSize )
+            throws AesEncryptionException
+    {
+        final int start = source.position();
+        final int encryptedDataSize = source.remaining() - ( hmacSize + initVectorSize );
+        if ( encryptedDataSize < 0 )
+        {
+            throw new AesEncryptionException( "Encrypted public data is too short" );
+        }
+
+        return new EncryptedPublicDataView(
+                slice( source, start, encryptedDataSize ),
+                slice( source, start + encryptedDataSize + hmacSize, initVectorSize ),
+                slice( source, start + encryptedDataSize, hmacSize ),
+                EncryptionMode.CBC_HMAC_SHA256 );
+    }
+
+    /**
+     * Wraps remaining bytes of the buffer in versioned binary format, written by
+     * {@link EncryptedPublicData#writeTo(ByteBuffer)}. Initialization vector, HMAC and
+     * encrypted data are parsed as slices of the buffer without copying.
+     * Position of the buffer is not changed.
+     *
+     * @param source The buffer with one record of encrypted public data
+     * @return The view of the buffer
+     * @throws AesEncryptionException if format version or encryption mode is unknown
+     *     or the record is too short.
+     */
+    public static EncryptedPublicDataView wrapVersioned( ByteBuffer source ) throws AesEncryptionException
+    {
+        final int start = source.position();
+        if ( source.remaining() < EncryptedPublicData.FORMAT_HEADER_SIZE
+                || source.get( start ) != EncryptedPublicData.FORMAT_VERSION )
+        {
+            throw new AesEncryptionException( "Unknown format version" );
+        }
+
+        final EncryptionMode mode;
+        try
+        {
+            mode = EncryptionMode.fromId( source.get( start + 1 ) );
+        } catch ( IllegalArgumentException ex )
+        {
+            throw new AesEncryptionException( ex.getMessage(), ex );
+        }
+
+        final int initVectorOffset = start + EncryptedPublicData.FORMAT_HEADER_SIZE;
+        final int hmacOffset = initVectorOffset + mode.getInitVectorSize();
+        final int encryptedDataOffset = hmacOffset + mode.getTagSize();
+        if ( source.limit() < encryptedDataOffset )
+        {
+            throw new AesEncryptionException( "Encrypted public data is too short" );
+        }
+
+        return new EncryptedPublicDataView(
+                slice( source, encryptedDataOffset, source.limit() - encryptedDataOffset ),
+                slice( source, initVectorOffset, mode.getInitVectorSize() ),
+                slice( source, hmacOffset, mode.getTagSize() ),
+                mode );
+    }
+
+    private static ByteBuffer slice( ByteBuffer source, int offset, int size )
+    {
+        final ByteBuffer slice = source.duplicate();
+        slice.limit( offset + size ).position( offset );
+        return slice.slice();
+    }
+
+    /**
+     * Gets encrypted data.
+     *
+     * @return The read-only buffer with encrypted data
+     */
+    public ByteBuffer getEncryptedData()
+    {
+        return this.encryptedData.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets encrypted data for engines, which must not modify it.
+     * Unlike {@link #getEncryptedData()} the buffer is not read-only, so its backing array is accessible.
+     */
+    ByteBuffer getEncryptedDataBuffer()
+    {
+        return this.encryptedData.duplicate();
+    }
+
+    int getEncryptedDataSize()
+    {
+        return this.encryptedData.remaining();
+    }
+
+    /**
+     * Gets initialization vector.
+     *
+     * @return The read-only buffer with initialization vector
+     */
+    public ByteBuffer getInitVector()
+    {
+        return this.initVector.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets initialization vector for engines, which must not modify it.
+     */
+    ByteBuffer getInitVectorBuffer()
+    {
+        return this.initVector.duplicate();
+    }
+
+    int getInitVectorSize()
+    {
+        return this.initVector.remaining();
+    }
+
+    /**
+     * Gets the HMAC.
+     *
+     * @return The read-only buffer with HMAC
+     */
+    public ByteBuffer getHmac()
+    {
+        return this.hmac.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets the HMAC for engines, which must not modify it.
+     */
+    ByteBuffer getHmacBuffer()
+    {
+        return this.hmac.duplicate();
+    }
+
+    int getHmacSize()
+    {
+        return this.hmac.remaining();
+    }
+
+    /**
+     * Gets the encryption mode.
+     *
+     * @return The encryption mode
+     */
+    public EncryptionMode getMode()
+    {
+        return this.mode;
+    }
+
+    /**
+     * Copies the view to {@link EncryptedPublicData}.
+     *
+     * @return The encrypted public data
+     */
+    public EncryptedPublicData toPublicData()
+    {
+        return EncryptedPublicData.wrap( toArray( this.encryptedData ),
+                toArray( this.initVector ),
+                toArray( this.hmac ),
+                this.mode );
+    }
+
+    private static byte[] toArray( ByteBuffer buffer )
+    {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get( bytes );
+        return bytes;
+    }
+}
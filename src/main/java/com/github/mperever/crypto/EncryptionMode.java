@@ -0,0 +1,82 @@
+package com.github.mperever.crypto;
+
+/**
+ * Represents supported encryption modes.
+ * Identifier of the mode is stored in versioned serialized form of {@link EncryptedPublicData}.
+ *
+ * @author mperever
+ *
+ */
+public enum EncryptionMode
+{
+    /**
+     * AES256 in CBC mode with PKCS5 padding and HMAC-SHA256 of encrypted data.
+     */
+    CBC_HMAC_SHA256( (byte) 1, 16, 32 ),
+
+    /**
+     * AES256 in GCM mode: single-pass authenticated encryption
+     * with 12 bytes nonce and 16 bytes authentication tag.
+     */
+    GCM( (byte) 2, 12, 16 );
+
+    private final byte id;
+    private final int initVectorSize;
+    private final int tagSize;
+
+    EncryptionMode( byte id, int initVectorSize, int tagSize )
+    {
+        this.id = id;
+        this.initVectorSize = initVectorSize;
+        this.tagSize = tagSize;
+    }
+
+    /**
+     * Gets the mode by its identifier.
+     *
+     * @param id The mode identifier
+     * @return The encryption mode
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    public static EncryptionMode fromId( byte id )
+    {
+        for ( EncryptionMode mode : values() )
+        {
+            if ( mode.id == id )
+            {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException( "Unknown encryption mode: " + id );
+    }
+
+    /**
+     * Gets the mode identifier.
+     *
+     * @return The mode identifier
+     */
+    public byte getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * Gets size of initialization vector (nonce).
+     *
+     * @return The initialization vector size in bytes
+     */
+    public int getInitVectorSize()
+    {
+        return this.initVectorSize;
+    }
+
+    /**
+     * Gets size of HMAC (authentication tag).
+     *
+     * @return The HMAC size in bytes
+     */
+    public int getTagSize()
+    {
+        return this.tagSize;
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.mperever.crypto;
+
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import javax.crypto.SecretKey;
+
+/**
+ * Represents secret key owned by one engine. Unlike {@link javax.crypto.spec.SecretKeySpec},
+ * the key takes the array passed to it without cloning, so the engine knows the only array
+ * with its key bytes and zeroes it by {@link #destroy()} instead of leaving it to garbage collector.
+ *
+ * <p>{@link #getEncoded()} returns a copy as required by {@link java.security.Key},
+ * since providers may zero or keep the returned array.
+ *
+ * @author mperever
+ *
+ */
+final class EngineKey implements SecretKey
+{
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] key;
+    private final String algorithm;
+    private volatile boolean destroyed;
+
+    /**
+     * Constructor which takes ownership of the key array.
+     *
+     * @param key The key bytes, zeroed by {@link #destroy()}
+     * @param algorithm The key algorithm
+     */
+    EngineKey( byte[] key, String algorithm )
+    {
+        this.key = key;
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public String getAlgorithm()
+    {
+        return this.algorithm;
+    }
+
+    @Override
+    public String getFormat()
+    {
+        return "RAW";
+    }
+
+    /**
+     * Gets copy of the key bytes.
+     *
+     * @return The key bytes
+     * @throws IllegalStateException if the key is destroyed
+     */
+    @Override
+    public byte[] getEncoded()
+    {
+        if ( this.destroyed )
+        {
+            throw new IllegalStateException( "Key is destroyed" );
+        }
+        return this.key.clone();
+    }
+
+    /**
+     * Zeroes the key bytes. Repeated calls have no effect.
+     */
+    @Override
+    public void destroy()
+    {
+        this.destroyed = true;
+        Arrays.fill( this.key, (byte) 0 );
+    }
+
+    @Override
+    public boolean isDestroyed()
+    {
+        return this.destroyed;
+    }
+
+    private void writeObject( ObjectOutputStream out ) throws NotSerializableException
+    {
+        // Key material is never serialized
+        throw new NotSerializableException( EngineKey.class.getName() );
+    }
+}
@@ -0,0 +1,356 @@
+package com.github.mperever.crypto;
+
+import com.github.mperever.crypto.metrics.CryptoMetrics;
+import com.github.mperever.crypto.metrics.Operation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents envelope encryption: a master key encryption key (KEK) wraps short-lived
+ * data encryption keys (DEK), and each message is encrypted with the current DEK.
+ * The wrapped DEK is stored in the message header, so only the KEK has to be kept by callers.
+ *
+ * <p>A DEK is rotated after the configured number of messages or time. Unwrapped DEKs
+ * are kept in {@link KeyCache} by their wrapped form, so messages of the same DEK
+ * are decrypted without unwrapping it again.
+ *
+ * <p>Message layout is: format version (1 byte), wrapped DEK size (2 bytes), wrapped DEK,
+ * then encrypted source with the same layout as bytes of {@link EncryptedPublicData#saveToString()}.
+ * The wrapped DEK itself is the DEK encrypted with the KEK in the same layout.
+ *
+ * <p>The instance is thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public class EnvelopeEncryption
+{
+    public static final long DEFAULT_MAX_MESSAGES_PER_KEY = 1_000_000;
+    public static final long DEFAULT_MAX_KEY_AGE_MINUTES = 60;
+    public static final int DEFAULT_KEY_CACHE_SIZE = 1000;
+
+    static final byte FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 3; // in bytes
+
+    private static final int AES_KEY_SIZE = 32; // in bytes
+    private static final int HMAC_KEY_SIZE = 32; // in bytes
+
+    private final EncryptedPrivateData keyEncryptionKey;
+    private final long maxMessagesPerKey;
+    private final long maxKeyAgeNanos;
+    private final KeyCache keyCache;
+
+    private final Object rotationLock = new Object();
+    private final LongAdder rotationCount = new LongAdder();
+    private volatile DataKey currentKey;
+
+    /**
+     * Constructor with default rotation and cache size.
+     *
+     * @param keyEncryptionKey The master key to wrap data keys
+     */
+    public EnvelopeEncryption( final EncryptedPrivateData keyEncryptionKey )
+    {
+        this( keyEncryptionKey,
+                DEFAULT_MAX_MESSAGES_PER_KEY,
+                DEFAULT_MAX_KEY_AGE_MINUTES,
+                TimeUnit.MINUTES,
+                DEFAULT_KEY_CACHE_SIZE );
+    }
+
+    /**
+     * Constructor with custom rotation and cache size.
+     *
+     * @param keyEncryptionKey The master key to wrap data keys
+     * @param maxMessagesPerKey The maximum number of messages encrypted with one data key
+     * @param maxKeyAge The maximum time to encrypt with one data key
+     * @param unit The time unit of maximum key age
+     * @param keyCacheSize The maximum number of unwrapped data keys to cache
+     */
+    public EnvelopeEncryption( final EncryptedPrivateData keyEncryptionKey,
+                               long maxMessagesPerKey,
+                               long maxKeyAge,
+                               TimeUnit unit,
+                               int keyCacheSize )
+    {
+        if ( maxMessagesPerKey <= 0 || maxKeyAge <= 0 )
+        {
+            throw new IllegalArgumentException( "Key rotation limits must be positive" );
+        }
+        this.keyEncryptionKey = keyEncryptionKey;
+        this.maxMessagesPerKey = maxMessagesPerKey;
+        this.maxKeyAgeNanos = unit.toNanos( maxKeyAge );
+        this.keyCache = new KeyCache( keyCacheSize, this::loadDataKey );
+    }
+
+    /**
+     * Encrypts source with the current data key, which is rotated if it has reached the limits.
+     *
+     * @param source The source for encryption
+     * @return The message with wrapped data key and encrypted source
+     * @throws AesEncryptionException if an error occurs during encryption
+     */
+    public byte[] encrypt( byte[] source ) throws AesEncryptionException
+    {
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+        boolean success = false;
+        try
+        {
+            final DataKey dataKey = getDataKey();
+            final byte[] initVector = AesEncryptionUtils.getIv();
+            final byte[] encrypted = new byte[HEADER_SIZE
+                    + dataKey.wrappedKey.length
+                    + AesHmacEngine.getEncryptedSize( source.length )
+                    + AesHmacEngine.HMAC_SIZE
+                    + AesHmacEngine.INIT_VECTOR_SIZE];
+
+            final ByteBuffer destination = ByteBuffer.wrap( encrypted );
+            destination.put( FORMAT_VERSION );
+            destination.putShort( (short) dataKey.wrappedKey.length );
+            destination.put( dataKey.wrappedKey );
+            this.keyCache.withEngine( dataKey.keyId,
+                    engine -> engine.encrypt( ByteBuffer.wrap( source ), destination, initVector ) );
+
+            success = true;
+            return encrypted;
+        } finally
+        {
+            AesEncryptionUtils.record( metrics, Operation.ENCRYPT, source.length, start, success );
+        }
+    }
+
+    /**
+     * Decrypts the message created by {@link #encrypt(byte[])} with the same key encryption key.
+     *
+     * @param encrypted The message with wrapped data key and encrypted source
+     * @return Decrypted source
+     * @throws AesEncryptionException if the message is malformed, the data key cannot be unwrapped
+     *     or an error occurs during decryption.
+     */
+    public byte[] decrypt( byte[] encrypted ) throws AesEncryptionException
+    {
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+        boolean success = false;
+        try
+        {
+            if ( encrypted.length < HEADER_SIZE || encrypted[0] != FORMAT_VERSION )
+            {
+                throw new AesEncryptionException( "Unknown format version" );
+            }
+            final ByteBuffer source = ByteBuffer.wrap( encrypted );
+            final int wrappedKeySize = source.getShort( 1 ) & 0xffff;
+            if ( encrypted.length < HEADER_SIZE + wrappedKeySize )
+            {
+                throw new AesEncryptionException( "Encrypted message is too short" );
+            }
+
+            final String keyId = Base64.getEncoder().encodeToString(
+                    Arrays.copyOfRange( encrypted, HEADER_SIZE, HEADER_SIZE + wrappedKeySize ) );
+            source.position( HEADER_SIZE + wrappedKeySize );
+            final EncryptedPublicDataView payload = EncryptedPublicDataView.wrap( source );
+            final byte[] decrypted = this.keyCache.withEngine( keyId, engine -> engine.decrypt( payload ) );
+
+            success = true;
+            return decrypted;
+        } finally
+        {
+            AesEncryptionUtils.record( metrics, Operation.DECRYPT, encrypted.length, start, success );
+        }
+    }
+
+    /**
+     * Encrypts the text and returns the message as Base64 string.
+     *
+     * @param text The text for encryption
+     * @return The Base64 message with wrapped data key and encrypted text
+     * @throws AesEncryptionException if an error occurs during encryption
+     */
+    public String encryptText( String text ) throws AesEncryptionException
+    {
+        return Base64.getEncoder().encodeToString( encrypt( text.getBytes( StandardCharsets.UTF_8 ) ) );
+    }
+
+    /**
+     * Decrypts the Base64 message created by {@link #encryptText(String)}.
+     *
+     * @param encryptedText The Base64 message
+     * @return Decrypted text
+     * @throws AesEncryptionException if the message is malformed or an error occurs during decryption
+     */
+    public String decryptText( String encryptedText ) throws AesEncryptionException
+    {
+        final byte[] encrypted;
+        try
+        {
+            encrypted = Base64.getDecoder().decode( encryptedText );
+        } catch ( IllegalArgumentException ex )
+        {
+            throw new AesEncryptionException( ex.getMessage(), ex );
+        }
+        return new String( decrypt( encrypted ), StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Gets number of data keys generated by this instance.
+     *
+     * @return The number of rotations
+     */
+    public long getRotationCount()
+    {
+        return this.rotationCount.sum();
+    }
+
+    /**
+     * Gets the cache of unwrapped data keys, e.g. to read its statistics.
+     *
+     * @return The key cache
+     */
+    public KeyCache getKeyCache()
+    {
+        return this.keyCache;
+    }
+
+    private DataKey getDataKey() throws AesEncryptionException
+    {
+        final DataKey current = this.currentKey;
+        if ( current != null && current.tryUse( System.nanoTime() ) )
+        {
+            return current;
+        }
+
+        // One thread rotates, others wait and use the new key
+        synchronized ( this.rotationLock )
+        {
+            final DataKey latest = this.currentKey;
+            if ( latest != current && latest.tryUse( System.nanoTime() ) )
+            {
+                return latest;
+            }
+
+            final DataKey rotated = newDataKey();
+            rotated.tryUse( rotated.createdNanos );
+            this.currentKey = rotated;
+            this.rotationCount.increment();
+            if ( latest != null )
+            {
+                latest.destroy();
+            }
+            return rotated;
+        }
+    }
+
+    private DataKey newDataKey() throws AesEncryptionException
+    {
+        final byte[] keys = AesEncryptionUtils.getRandomKey( AES_KEY_SIZE + HMAC_KEY_SIZE );
+        try
+        {
+            final byte[] wrappedKey = new byte[AesHmacEngine.getEncryptedSize( keys.length )
+                    + AesHmacEngine.HMAC_SIZE
+                    + AesHmacEngine.INIT_VECTOR_SIZE];
+            AesHmacEngine.forCurrentThread( this.keyEncryptionKey )
+                    .encrypt( ByteBuffer.wrap( keys ), ByteBuffer.wrap( wrappedKey ), AesEncryptionUtils.getIv() );
+            return new DataKey( toPrivateData( keys ), wrappedKey, System.nanoTime() );
+        } finally
+        {
+            Arrays.fill( keys, (byte) 0 );
+        }
+    }
+
+    private EncryptedPrivateData loadDataKey( String keyId ) throws AesEncryptionException
+    {
+        // The current key is copied, so the encryption side does not unwrap its own key
+        final DataKey current = this.currentKey;
+        if ( current != null && current.keyId.equals( keyId ) )
+        {
+            final EncryptedPrivateData privateData = current.copyPrivateData();
+            if ( privateData != null )
+            {
+                return privateData;
+            }
+        }
+
+        final byte[] keys = AesHmacEngine.forCurrentThread( this.keyEncryptionKey )
+                .decrypt( EncryptedPublicDataView.wrap( ByteBuffer.wrap( Base64.getDecoder().decode( keyId ) ) ) );
+        try
+        {
+            if ( keys.length != AES_KEY_SIZE + HMAC_KEY_SIZE )
+            {
+                throw new AesEncryptionException( "Invalid size of data key" );
+            }
+            return toPrivateData( keys );
+        } finally
+        {
+            Arrays.fill( keys, (byte) 0 );
+        }
+    }
+
+    private static EncryptedPrivateData toPrivateData( byte[] keys )
+    {
+        final byte[] aesKey = Arrays.copyOfRange( keys, 0, AES_KEY_SIZE );
+        final byte[] hmacKey = Arrays.copyOfRange( keys, AES_KEY_SIZE, keys.length );
+        try
+        {
+            return new EncryptedPrivateData( aesKey, hmacKey );
+        } finally
+        {
+            Arrays.fill( aesKey, (byte) 0 );
+            Arrays.fill( hmacKey, (byte) 0 );
+        }
+    }
+
+    private final class DataKey
+    {
+        private final EncryptedPrivateData privateData;
+        private final byte[] wrappedKey;
+        private final String keyId;
+        private final long createdNanos;
+        private final AtomicLong useCount = new AtomicLong();
+        private boolean destroyed;
+
+        DataKey( final EncryptedPrivateData privateData, byte[] wrappedKey, long createdNanos )
+        {
+            this.privateData = privateData;
+            this.wrappedKey = wrappedKey;
+            this.keyId = Base64.getEncoder().encodeToString( wrappedKey );
+            this.createdNanos = createdNanos;
+        }
+
+        /**
+         * Counts one more message if the key has not reached the limits.
+         */
+        boolean tryUse( long now )
+        {
+            return now - this.createdNanos < EnvelopeEncryption.this.maxKeyAgeNanos
+                    && this.useCount.incrementAndGet() <= EnvelopeEncryption.this.maxMessagesPerKey;
+        }
+
+        /**
+         * Copies private keys for the key cache, which takes ownership of the copy.
+         *
+         * @return The copy, or null if the key is destroyed by rotation
+         */
+        synchronized EncryptedPrivateData copyPrivateData() throws AesEncryptionException
+        {
+            if ( this.destroyed )
+            {
+                return null;
+            }
+            return this.privateData.withAesKey( aesKey ->
+                    this.privateData.withHmacKey( hmacKey -> new EncryptedPrivateData( aesKey, hmacKey ) ) );
+        }
+
+        synchronized void destroy()
+        {
+            this.destroyed = true;
+            this.privateData.destroy();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.github.mperever.crypto;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents bounded cache of prepared engines by key id, for workloads with many keys.
+ * Each cached key keeps a pool of {@link AesHmacEngine} instances with initialized
+ * cipher and MAC state, so key expansion and HMAC key initialization are not repeated per request.
+ *
+ * <p>Least recently used keys are evicted when the cache is full, and keys can expire
+ * after access. Private keys of evicted entries are zeroed, and pooled engines of the entries
+ * drop their key specs and overwrite the keys of their cipher and MAC. Engines borrowed at
+ * the moment keep working until returned, and the keys are destroyed when the last one is returned.
+ *
+ * <p>Zeroing covers only key material owned by the cache: private data returned by the loader
+ * and engines created from it. Copies kept by the loader or its source are not zeroed.
+ *
+ * <p>The instance is thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public class KeyCache
+{
+    private final int maximumSize;
+    private final long expireAfterAccessNanos;
+    private final KeyLoader loader;
+    private final LinkedHashMap<String, CachedKey> keys;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * Constructor with maximum size, without expiration.
+     *
+     * @param maximumSize The maximum number of cached keys
+     * @param loader The loader of private keys
+     */
+    public KeyCache( int maximumSize, KeyLoader loader )
+    {
+        this( maximumSize, 0, TimeUnit.MILLISECONDS, loader );
+    }
+
+    /**
+     * Constructor with maximum size and expiration after access.
+     *
+     * @param maximumSize The maximum number of cached keys
+     * @param expireAfterAccess The time to keep a key after last access, 0 for no expiration
+     * @param unit The time unit of expiration
+     * @param loader The loader of private keys
+     */
+    public KeyCache( int maximumSize, long expireAfterAccess, TimeUnit unit, KeyLoader loader )
+    {
+        if ( maximumSize <= 0 )
+        {
+            throw new IllegalArgumentException( "Maximum size must be positive: " + maximumSize );
+        }
+        this.maximumSize = maximumSize;
+        this.expireAfterAccessNanos = unit.toNanos( expireAfterAccess );
+        this.loader = loader;
+        this.keys = new LinkedHashMap<>( 16, 0.75f, true );
+    }
+
+    /**
+     * Applies the function to an engine prepared for the specified key id.
+     * The engine is borrowed for the call only and must not be kept by the function.
+     *
+     * @param keyId The key id
+     * @param function The function to apply
+     * @param <T> The result type
+     * @return The function result
+     * @throws AesEncryptionException if the keys cannot be loaded or the function fails
+     */
+    public <T> T withEngine( String keyId, EngineFunction<T> function ) throws AesEncryptionException
+    {
+        while ( true )
+        {
+            final CachedKey cachedKey = getCachedKey( keyId );
+            final AesHmacEngine engine = cachedKey.borrowEngine();
+            if ( engine == null )
+            {
+                // The key has been evicted concurrently, so it is loaded again
+                continue;
+            }
+
+            try
+            {
+                return function.apply( engine );
+            } finally
+            {
+                cachedKey.releaseEngine( engine );
+            }
+        }
+    }
+
+    /**
+     * Removes the key from the cache and zeroes it.
+     *
+     * @param keyId The key id
+     */
+    public void invalidate( String keyId )
+    {
+        final CachedKey cachedKey;
+        synchronized ( this.keys )
+        {
+            cachedKey = this.keys.remove( keyId );
+        }
+        if ( cachedKey != null )
+        {
+            cachedKey.destroy();
+        }
+    }
+
+    /**
+     * Removes all keys from the cache and zeroes them.
+     */
+    public void invalidateAll()
+    {
+        final CachedKey[] cachedKeys;
+        synchronized ( this.keys )
+        {
+            cachedKeys = this.keys.values().toArray( new CachedKey[0] );
+            this.keys.clear();
+        }
+        for ( CachedKey cachedKey : cachedKeys )
+        {
+            cachedKey.destroy();
+        }
+    }
+
+    /**
+     * Gets number of cached keys.
+     *
+     * @return The number of keys
+     */
+    public int size()
+    {
+        synchronized ( this.keys )
+        {
+            return this.keys.size();
+        }
+    }
+
+    public long getHitCount()
+    {
+        return this.hitCount.sum();
+    }
+
+    public long getMissCount()
+    {
+        return this.missCount.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return this.evictionCount.sum();
+    }
+
+    private CachedKey getCachedKey( String keyId ) throws AesEncryptionException
+    {
+        final long now = System.nanoTime();
+        CachedKey expiredKey = null;
+        synchronized ( this.keys )
+        {
+            final CachedKey cachedKey = this.keys.get( keyId );
+            if ( cachedKey != null )
+            {
+                if ( !isExpired( cachedKey, now ) )
+                {
+                    cachedKey.lastAccessNanos = now;
+                    this.hitCount.increment();
+                    return cachedKey;
+                }
+                this.keys.remove( keyId );
+                expiredKey = cachedKey;
+            }
+        }
+        if ( expiredKey != null )
+        {
+            evict( expiredKey );
+        }
+
+        // Keys are loaded outside of the lock, so slow loading does not block other keys
+        this.missCount.increment();
+        final CachedKey loadedKey = new CachedKey( this.loader.load( keyId ), now );
+
+        CachedKey existingKey;
+        synchronized ( this.keys )
+        {
+            existingKey = this.keys.get( keyId );
+            if ( existingKey == null )
+            {
+                this.keys.put( keyId, loadedKey );
+            }
+        }
+        if ( existingKey != null )
+        {
+            loadedKey.destroy();
+            return existingKey;
+        }
+
+        evictOverflow( now );
+        return loadedKey;
+    }
+
+    private void evictOverflow( long now )
+    {
+        while ( true )
+        {
+            final CachedKey evictedKey;
+            synchronized ( this.keys )
+            {
+                final Iterator<Map.Entry<String, CachedKey>> iterator = this.keys.entrySet().iterator();
+                if ( !iterator.hasNext() )
+                {
+                    return;
+                }
+
+                // The eldest entry is the least recently used one
+                final CachedKey eldestKey = iterator.next().getValue();
+                if ( this.keys.size() <= this.maximumSize && !isExpired( eldestKey, now ) )
+                {
+                    return;
+                }
+                iterator.remove();
+                evictedKey = eldestKey;
+            }
+            evict( evictedKey );
+        }
+    }
+
+    private void evict( CachedKey cachedKey )
+    {
+        this.evictionCount.increment();
+        cachedKey.destroy();
+    }
+
+    private boolean isExpired( CachedKey cachedKey, long now )
+    {
+        return this.expireAfterAccessNanos > 0
+                && now - cachedKey.lastAccessNanos >= this.expireAfterAccessNanos;
+    }
+
+    /**
+     * Represents function applied to a borrowed engine.
+     *
+     * @param <T> The result type
+     */
+    public interface EngineFunction<T>
+    {
+        T apply( AesHmacEngine engine ) throws AesEncryptionException;
+    }
+
+    private static class CachedKey
+    {
+        private final EncryptedPrivateData privateData;
+        private final Queue<AesHmacEngine> engines = new ArrayDeque<>();
+        private int borrowedCount;
+        private boolean destroyed;
+        private volatile long lastAccessNanos;
+
+        CachedKey( final EncryptedPrivateData privateData, long now )
+        {
+            this.privateData = privateData;
+            this.lastAccessNanos = now;
+        }
+
+        /**
+         * Borrows prepared engine or creates a new one.
+         *
+         * @return The engine, or null if the key is destroyed
+         * @throws AesEncryptionException if the engine cannot be created
+         */
+        AesHmacEngine borrowEngine() throws AesEncryptionException
+        {
+            // Engine copies the keys, so it must not be borrowed or created from destroyed keys
+            synchronized ( this )
+            {
+                if ( this.destroyed )
+                {
+                    return null;
+                }
+                final AesHmacEngine pooledEngine = this.engines.poll();
+                final AesHmacEngine engine =
+                        pooledEngine != null ? pooledEngine : new AesHmacEngine( this.privateData );
+                this.borrowedCount++;
+                return engine;
+            }
+        }
+
+        void releaseEngine( AesHmacEngine engine )
+        {
+            synchronized ( this )
+            {
+                this.borrowedCount--;
+                if ( !this.destroyed )
+                {
+                    this.engines.offer( engine );
+                }
+                else if ( this.borrowedCount == 0 )
+                {
+                    // The last borrowed engine of evicted key is returned
+                    this.privateData.destroy();
+                }
+            }
+        }
+
+        /**
+         * Destroys the keys, which makes every engine created from them drop its key material.
+         * If engines are borrowed, the keys are destroyed when the last one is returned.
+         */
+        void destroy()
+        {
+            synchronized ( this )
+            {
+                if ( this.destroyed )
+                {
+                    return;
+                }
+                this.destroyed = true;
+                this.engines.clear();
+                if ( this.borrowedCount == 0 )
+                {
+                    this.privateData.destroy();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.github.mperever.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static com.github.mperever.crypto.AesHmacEngine.HMAC_ALGORITHM;
+
+/**
+ * Represents derivation of private keys from one master secret by context label,
+ * e.g. per-user or per-file keys, with HKDF-SHA256 (RFC 5869).
+ *
+ * <p>The master secret is extracted to pseudorandom key once, and AES and HMAC keys of a context
+ * are expanded from it with the context label as info, so only the master secret is stored.
+ * Derived keys are cached with prepared engines in bounded {@link KeyCache}, so repeated
+ * contexts cost neither derivation nor key initialization.
+ *
+ * <p>Derived keys depend on the master secret, the salt and the context label only,
+ * so keys of a context are the same across instances and restarts.
+ *
+ * <p>The instance is thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public class KeyDerivation implements AutoCloseable
+{
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private static final int MIN_MASTER_SECRET_SIZE = 32; // in bytes (256 bits)
+    private static final int AES_KEY_SIZE = 32; // in bytes (256 bits)
+    private static final int HMAC_KEY_SIZE = 32; // in bytes (256 bits)
+    private static final int HASH_SIZE = 32; // in bytes, output of HMAC-SHA256
+
+    // Separates keys derived by this class from other uses of the same master secret
+    private static final byte[] INFO_PREFIX = "EncryptedPrivateData:".getBytes( StandardCharsets.UTF_8 );
+
+    private final byte[] pseudoRandomKey;
+    private final Queue<Mac> macs = new ArrayDeque<>();
+    private final KeyCache keyCache;
+    private boolean closed;
+
+    /**
+     * Constructor without salt and with default cache size.
+     *
+     * @param masterSecret The master secret of at least 32 bytes, which is not kept by the instance
+     * @throws AesEncryptionException if HMAC algorithm is not found
+     */
+    public KeyDerivation( byte[] masterSecret ) throws AesEncryptionException
+    {
+        this( masterSecret, null, DEFAULT_CACHE_SIZE );
+    }
+
+    /**
+     * Constructor with salt and cache size.
+     *
+     * @param masterSecret The master secret of at least 32 bytes, which is not kept by the instance
+     * @param salt The non-secret salt, or null for no salt
+     * @param cacheSize The maximum number of cached derived keys
+     * @throws AesEncryptionException if HMAC algorithm is not found
+     */
+    public KeyDerivation( byte[] masterSecret, byte[] salt, int cacheSize ) throws AesEncryptionException
+    {
+        if ( masterSecret.length < MIN_MASTER_SECRET_SIZE )
+        {
+            throw new IllegalArgumentException( "Master secret must have at least "
+                    + MIN_MASTER_SECRET_SIZE + " bytes: " + masterSecret.length );
+        }
+        this.pseudoRandomKey = extract( salt, masterSecret );
+        this.keyCache = new KeyCache( cacheSize, this::derive );
+    }
+
+    /**
+     * Derives private keys of the context. The caller owns returned instance.
+     *
+     * @param context The context label, e.g. user or file id
+     * @return The derived private keys
+     * @throws AesEncryptionException if the instance is closed or HMAC fails
+     */
+    public EncryptedPrivateData derive( String context ) throws AesEncryptionException
+    {
+        final byte[] contextBytes = context.getBytes( StandardCharsets.UTF_8 );
+        final byte[] info = Arrays.copyOf( INFO_PREFIX, INFO_PREFIX.length + contextBytes.length );
+        System.arraycopy( contextBytes, 0, info, INFO_PREFIX.length, contextBytes.length );
+
+        final byte[] keys = new byte[AES_KEY_SIZE + HMAC_KEY_SIZE];
+        final byte[] aesKey = new byte[AES_KEY_SIZE];
+        final byte[] hmacKey = new byte[HMAC_KEY_SIZE];
+        final Mac mac = borrowMac();
+        try
+        {
+            expand( mac, info, keys );
+            System.arraycopy( keys, 0, aesKey, 0, AES_KEY_SIZE );
+            System.arraycopy( keys, AES_KEY_SIZE, hmacKey, 0, HMAC_KEY_SIZE );
+            return new EncryptedPrivateData( aesKey, hmacKey );
+        } finally
+        {
+            releaseMac( mac );
+
+            // Private data clones the keys, so the intermediate copies are zeroed
+            Arrays.fill( keys, (byte) 0 );
+            Arrays.fill( aesKey, (byte) 0 );
+            Arrays.fill( hmacKey, (byte) 0 );
+        }
+    }
+
+    /**
+     * Applies the function to an engine prepared with derived keys of the context.
+     * The engine is borrowed for the call only and must not be kept by the function.
+     *
+     * @param context The context label, e.g. user or file id
+     * @param function The function to apply
+     * @param <T> The result type
+     * @return The function result
+     * @throws AesEncryptionException if the keys cannot be derived or the function fails
+     */
+    public <T> T withEngine( String context, KeyCache.EngineFunction<T> function ) throws AesEncryptionException
+    {
+        return this.keyCache.withEngine( context, function );
+    }
+
+    /**
+     * Gets cache of derived keys by context label.
+     *
+     * @return The key cache
+     */
+    public KeyCache getKeyCache()
+    {
+        return this.keyCache;
+    }
+
+    /**
+     * Zeroes the pseudorandom key and cached derived keys, and wipes the pooled MACs keyed with it.
+     * Later derivation fails. MACs of derivations in progress are wiped when they finish.
+     */
+    @Override
+    public void close()
+    {
+        synchronized ( this )
+        {
+            this.closed = true;
+            for ( Mac mac = this.macs.poll(); mac != null; mac = this.macs.poll() )
+            {
+                wipeMac( mac );
+            }
+            Arrays.fill( this.pseudoRandomKey, (byte) 0 );
+        }
+        this.keyCache.invalidateAll();
+    }
+
+    /**
+     * Derives output keying material by HKDF-SHA256.
+     *
+     * @param salt The salt, or null for no salt
+     * @param inputKey The input keying material
+     * @param info The context and application specific information
+     * @param length The length of output keying material in bytes
+     * @return The output keying material
+     * @throws AesEncryptionException if HMAC algorithm is not found
+     */
+    static byte[] hkdf( byte[] salt, byte[] inputKey, byte[] info, int length ) throws AesEncryptionException
+    {
+        final byte[] pseudoRandomKey = extract( salt, inputKey );
+        try
+        {
+            final byte[] outputKey = new byte[length];
+            expand( newMac( pseudoRandomKey ), info, outputKey );
+            return outputKey;
+        } finally
+        {
+            Arrays.fill( pseudoRandomKey, (byte) 0 );
+        }
+    }
+
+    private Mac borrowMac() throws AesEncryptionException
+    {
+        // Pooled MACs are taken under the same lock as close, so none of them derives after close,
+        // and MAC copies the key, so it must not be created from zeroed key
+        synchronized ( this )
+        {
+            if ( this.closed )
+            {
+                throw new AesEncryptionException( "Key derivation is closed" );
+            }
+            final Mac mac = this.macs.poll();
+            return mac != null ? mac : newMac( this.pseudoRandomKey );
+        }
+    }
+
+    private void releaseMac( Mac mac )
+    {
+        synchronized ( this )
+        {
+            if ( !this.closed )
+            {
+                this.macs.offer( mac );
+                return;
+            }
+        }
+        // MAC borrowed before close is wiped instead of pooled
+        wipeMac( mac );
+    }
+
+    private static void wipeMac( Mac mac )
+    {
+        try
+        {
+            mac.init( new SecretKeySpec( new byte[HASH_SIZE], HMAC_ALGORITHM ) );
+        } catch ( InvalidKeyException ex )
+        {
+            // MAC is not pooled anyway, so it keeps the key until it is collected
+        }
+    }
+
+    private static byte[] extract( byte[] salt, byte[] inputKey ) throws AesEncryptionException
+    {
+        // HKDF uses zeroed key of hash length when salt is not provided
+        final Mac mac = newMac( salt == null || salt.length == 0 ? new byte[HASH_SIZE] : salt );
+        return mac.doFinal( inputKey );
+    }
+
+    private static void expand( Mac mac, byte[] info, byte[] outputKey )
+    {
+        if ( outputKey.length > 255 * HASH_SIZE )
+        {
+            throw new IllegalArgumentException( "Output key is too long: " + outputKey.length );
+        }
+
+        byte[] block = new byte[0];
+        int offset = 0;
+        for ( int counter = 1; offset < outputKey.length; counter++ )
+        {
+            mac.update( block );
+            mac.update( info );
+            mac.update( (byte) counter );
+            Arrays.fill( block, (byte) 0 );
+            block = mac.doFinal();
+
+            final int size = Math.min( block.length, outputKey.length - offset );
+            System.arraycopy( block, 0, outputKey, offset, size );
+            offset += size;
+        }
+        Arrays.fill( block, (byte) 0 );
+    }
+
+    private static Mac newMac( byte[] key ) throws AesEncryptionException
+    {
+        try
+        {
+            final Mac mac = CryptoProviders.newMac( HMAC_ALGORITHM );
+            mac.init( new SecretKeySpec( key, HMAC_ALGORITHM ) );
+            return mac;
+        } catch ( NoSuchAlgorithmException | InvalidKeyException ex )
+        {
+            throw new AesEncryptionException( ex );
+        }
+    }
+}
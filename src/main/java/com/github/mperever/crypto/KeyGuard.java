@@ -0,0 +1,86 @@
+package com.github.mperever.crypto;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Represents guard of key material kept by one engine, e.g. key specs and initialized
+ * cipher and MAC. The engine acquires the guard for each operation, and private data
+ * drops the guards of all its engines when the keys are destroyed.
+ *
+ * <p>Dropped idle engine is wiped at once by the dropping thread. Engine busy with an operation
+ * is wiped by its own thread when the operation ends, so the wipe never races with the operation.
+ * Later operations of dropped engine fail.
+ *
+ * @author mperever
+ *
+ */
+final class KeyGuard
+{
+    private static final int IDLE = 0;
+    private static final int BUSY = 1;
+    private static final int DROP_PENDING = 2;
+    private static final int DROPPED = 3;
+
+    private final AtomicInteger state = new AtomicInteger( IDLE );
+    private final Runnable wipe;
+
+    /**
+     * Constructor with wipe action of the engine.
+     *
+     * @param wipe The action which overwrites or releases key material of the engine
+     */
+    KeyGuard( Runnable wipe )
+    {
+        this.wipe = wipe;
+    }
+
+    /**
+     * Acquires the guard for one operation. Operations must not be nested.
+     *
+     * @throws AesEncryptionException if the keys are dropped
+     */
+    void acquire() throws AesEncryptionException
+    {
+        if ( !this.state.compareAndSet( IDLE, BUSY ) )
+        {
+            throw new AesEncryptionException( "Private keys are destroyed" );
+        }
+    }
+
+    /**
+     * Releases the guard after the operation, and wipes the keys if they were dropped meanwhile.
+     */
+    void release()
+    {
+        if ( !this.state.compareAndSet( BUSY, IDLE ) )
+        {
+            this.state.set( DROPPED );
+            this.wipe.run();
+        }
+    }
+
+    /**
+     * Drops the keys: wipes idle engine at once, or lets busy engine wipe itself on release.
+     * Repeated calls have no effect.
+     */
+    void drop()
+    {
+        while ( true )
+        {
+            final int current = this.state.get();
+            if ( current == IDLE && this.state.compareAndSet( IDLE, DROPPED ) )
+            {
+                this.wipe.run();
+                return;
+            }
+            if ( current == BUSY && this.state.compareAndSet( BUSY, DROP_PENDING ) )
+            {
+                return;
+            }
+            if ( current >= DROP_PENDING )
+            {
+                return;
+            }
+        }
+    }
+}
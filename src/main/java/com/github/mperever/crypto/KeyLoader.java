@@ -0,0 +1,21 @@
+package com.github.mperever.crypto;
+
+/**
+ * Represents loader of private keys by key id for {@link KeyCache}.
+ *
+ * @author mperever
+ *
+ */
+public interface KeyLoader
+{
+    /**
+     * Loads private keys for the specified key id.
+     * The cache takes ownership of returned instance and zeroes it on eviction,
+     * so a new instance must be returned on each call.
+     *
+     * @param keyId The key id
+     * @return The private keys
+     * @throws AesEncryptionException if the keys cannot be loaded
+     */
+    EncryptedPrivateData load( String keyId ) throws AesEncryptionException;
+}
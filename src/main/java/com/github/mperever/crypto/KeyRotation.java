@@ -0,0 +1,362 @@
+package com.github.mperever.crypto;
+
+import com.github.mperever.utils.Base64Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.github.mperever.crypto.AesHmacEngine.HMAC_SIZE;
+import static com.github.mperever.crypto.AesHmacEngine.INIT_VECTOR_SIZE;
+
+/**
+ * Represents re-encryption of records from old private keys to new ones, e.g. to rotate keys of a table.
+ *
+ * <p>Records are read in batches, and several batches are re-encrypted in parallel by the executor,
+ * while results are written to the sink in source order.
+ * Workers with engines of both keys and reusable buffers are pooled and borrowed by batches,
+ * so decrypted sources exist only in the buffers, which are zeroed after each record,
+ * and no intermediate strings are created.
+ *
+ * <p>Position of a record is its index in the source. After each batch is written, the listener gets
+ * position of the next record, which can be saved as checkpoint and passed to resume rotation.
+ *
+ * <p>Records are in {@link EncryptedPublicData#saveToString()} format, or its bytes for binary records.
+ * The instance is thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public class KeyRotation
+{
+    public static final int DEFAULT_BATCH_SIZE = 512;
+
+    private final EncryptedPrivateData oldPrivateData;
+    private final EncryptedPrivateData newPrivateData;
+    private final Executor executor;
+    private final int batchSize;
+    private final int maxBatchesInFlight;
+    private final Queue<Worker> workers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor with default batch size and the common fork-join pool.
+     *
+     * @param oldPrivateData private keys of the records
+     * @param newPrivateData private keys to re-encrypt the records with
+     */
+    public KeyRotation( final EncryptedPrivateData oldPrivateData, final EncryptedPrivateData newPrivateData )
+    {
+        this( oldPrivateData,
+                newPrivateData,
+                ForkJoinPool.commonPool(),
+                ForkJoinPool.getCommonPoolParallelism(),
+                DEFAULT_BATCH_SIZE );
+    }
+
+    /**
+     * Constructor with custom executor and batch size.
+     *
+     * @param oldPrivateData private keys of the records
+     * @param newPrivateData private keys to re-encrypt the records with
+     * @param executor The executor to re-encrypt batches in
+     * @param parallelism The number of threads of the executor to use
+     * @param batchSize The number of records in a batch
+     */
+    public KeyRotation( final EncryptedPrivateData oldPrivateData,
+                        final EncryptedPrivateData newPrivateData,
+                        Executor executor,
+                        int parallelism,
+                        int batchSize )
+    {
+        if ( parallelism <= 0 || batchSize <= 0 )
+        {
+            throw new IllegalArgumentException( "Parallelism and batch size must be positive" );
+        }
+        this.oldPrivateData = oldPrivateData;
+        this.newPrivateData = newPrivateData;
+        this.executor = executor;
+        this.batchSize = batchSize;
+
+        // Batches are read ahead, so workers do not wait for the source or the sink
+        this.maxBatchesInFlight = parallelism * 2;
+    }
+
+    /**
+     * Re-encrypts text records.
+     *
+     * @param source The records in {@link EncryptedPublicData#saveToString()} format
+     * @param resumePosition The position to resume from, the records before it are skipped, 0 to start
+     * @param sink The sink of re-encrypted records in source order
+     * @param listener The listener of progress, or null
+     * @return The position after the last record, which is the number of source records
+     * @throws AesEncryptionException if a record cannot be decrypted, the position is in the message
+     * @throws IOException if the sink fails to write
+     */
+    public long rotateText( Iterator<? extends CharSequence> source,
+                            long resumePosition,
+                            RecordSink<String> sink,
+                            ProgressListener listener )
+            throws AesEncryptionException, IOException
+    {
+        return rotate( source, resumePosition, sink, listener, Worker::rotateText );
+    }
+
+    /**
+     * Re-encrypts binary records.
+     *
+     * @param source The records with the same layout as bytes of {@link EncryptedPublicData#saveToString()}
+     * @param resumePosition The position to resume from, the records before it are skipped, 0 to start
+     * @param sink The sink of re-encrypted records in source order
+     * @param listener The listener of progress, or null
+     * @return The position after the last record, which is the number of source records
+     * @throws AesEncryptionException if a record cannot be decrypted, the position is in the message
+     * @throws IOException if the sink fails to write
+     */
+    public long rotate( Iterator<byte[]> source,
+                        long resumePosition,
+                        RecordSink<byte[]> sink,
+                        ProgressListener listener )
+            throws AesEncryptionException, IOException
+    {
+        return rotate( source, resumePosition, sink, listener, Worker::rotate );
+    }
+
+    private <S, T> long rotate( Iterator<? extends S> source,
+                                long resumePosition,
+                                RecordSink<T> sink,
+                                ProgressListener listener,
+                                RecordFunction<S, T> function )
+            throws AesEncryptionException, IOException
+    {
+        long position = 0;
+        while ( position < resumePosition && source.hasNext() )
+        {
+            source.next();
+            position++;
+        }
+
+        final long start = System.nanoTime();
+        final long startPosition = position;
+        long writtenPosition = position;
+        final Deque<CompletableFuture<List<T>>> batches = new ArrayDeque<>();
+        try
+        {
+            while ( source.hasNext() || !batches.isEmpty() )
+            {
+                if ( source.hasNext() && batches.size() < this.maxBatchesInFlight )
+                {
+                    final List<S> records = new ArrayList<>( this.batchSize );
+                    while ( records.size() < this.batchSize && source.hasNext() )
+                    {
+                        records.add( source.next() );
+                    }
+                    final long batchPosition = position;
+                    position += records.size();
+                    batches.add( CompletableFuture.supplyAsync(
+                            () -> rotateBatch( records, batchPosition, function ), this.executor ) );
+                    continue;
+                }
+
+                final List<T> batch = join( batches.poll() );
+                sink.write( batch );
+                writtenPosition += batch.size();
+                if ( listener != null )
+                {
+                    final long elapsed = Math.max( 1, System.nanoTime() - start );
+                    listener.onProgress( writtenPosition, ( writtenPosition - startPosition ) * 1e9 / elapsed );
+                }
+            }
+        } finally
+        {
+            // Remaining batches are not written, so they are cancelled on failure
+            for ( CompletableFuture<List<T>> batch : batches )
+            {
+                batch.cancel( false );
+            }
+        }
+        return position;
+    }
+
+    private <S, T> List<T> rotateBatch( List<S> records, long batchPosition, RecordFunction<S, T> function )
+    {
+        final List<T> rotated = new ArrayList<>( records.size() );
+        Worker worker = null;
+        try
+        {
+            worker = borrowWorker();
+            // Initialization vectors are generated once for the batch
+            final byte[] initVectors = AesEncryptionUtils.getRandomIv( records.size() * INIT_VECTOR_SIZE );
+            for ( int i = 0; i < records.size(); i++ )
+            {
+                try
+                {
+                    rotated.add( function.apply( worker, records.get( i ), initVectors, i * INIT_VECTOR_SIZE ) );
+                } catch ( AesEncryptionException ex )
+                {
+                    throw new AesEncryptionException(
+                            "Record at position " + ( batchPosition + i ) + " cannot be rotated: " + ex.getMessage(),
+                            ex );
+                }
+            }
+        } catch ( AesEncryptionException ex )
+        {
+            throw new CompletionException( ex );
+        } finally
+        {
+            if ( worker != null )
+            {
+                this.workers.offer( worker );
+            }
+        }
+        return rotated;
+    }
+
+    private Worker borrowWorker() throws AesEncryptionException
+    {
+        final Worker worker = this.workers.poll();
+        return worker != null
+                ? worker
+                : new Worker( new AesHmacEngine( this.oldPrivateData ), new AesHmacEngine( this.newPrivateData ) );
+    }
+
+    private static <T> T join( CompletableFuture<T> future ) throws AesEncryptionException
+    {
+        try
+        {
+            return future.join();
+        } catch ( CompletionException ex )
+        {
+            if ( ex.getCause() instanceof AesEncryptionException )
+            {
+                throw (AesEncryptionException) ex.getCause();
+            }
+            throw new AesEncryptionException( ex.getCause() );
+        }
+    }
+
+    /**
+     * Represents sink of re-encrypted records.
+     *
+     * @param <T> The record type
+     */
+    public interface RecordSink<T>
+    {
+        /**
+         * Writes the batch of records, which follows the previous batch in source order.
+         *
+         * @param records The re-encrypted records
+         * @throws IOException if the records cannot be written
+         */
+        void write( List<T> records ) throws IOException;
+    }
+
+    /**
+     * Represents listener of rotation progress.
+     */
+    public interface ProgressListener
+    {
+        /**
+         * Called after each batch is written to the sink.
+         *
+         * @param position The position of the next record to rotate, which can be saved as checkpoint
+         * @param recordsPerSecond The throughput since start or resume
+         */
+        void onProgress( long position, double recordsPerSecond );
+    }
+
+    private interface RecordFunction<S, T>
+    {
+        T apply( Worker worker, S record, byte[] initVectors, int initVectorOffset ) throws AesEncryptionException;
+    }
+
+    /**
+     * Represents engines and buffers used by one batch at a time.
+     */
+    private static final class Worker
+    {
+        private final AesHmacEngine oldEngine;
+        private final AesHmacEngine newEngine;
+        private final StringBuilder builder = new StringBuilder();
+        private byte[] encrypted = new byte[256];
+        private ByteBuffer decrypted = ByteBuffer.allocate( 256 );
+
+        Worker( AesHmacEngine oldEngine, AesHmacEngine newEngine )
+        {
+            this.oldEngine = oldEngine;
+            this.newEngine = newEngine;
+        }
+
+        String rotateText( CharSequence record, byte[] initVectors, int initVectorOffset )
+                throws AesEncryptionException
+        {
+            final int encryptedSize = Base64Utils.getDecodedSize( record );
+            if ( this.encrypted.length < encryptedSize )
+            {
+                this.encrypted = new byte[encryptedSize];
+            }
+            try
+            {
+                Base64Utils.decode( record, this.encrypted, 0 );
+            } catch ( IllegalArgumentException ex )
+            {
+                throw new AesEncryptionException( ex );
+            }
+
+            final byte[] rotated = rotate( ByteBuffer.wrap( this.encrypted, 0, encryptedSize ),
+                    initVectors, initVectorOffset );
+            this.builder.setLength( 0 );
+            try
+            {
+                Base64Utils.encode( rotated, 0, rotated.length, this.builder );
+            } catch ( IOException ex )
+            {
+                // StringBuilder does not throw on append
+                throw new IllegalStateException( ex );
+            }
+            return this.builder.toString();
+        }
+
+        byte[] rotate( byte[] record, byte[] initVectors, int initVectorOffset ) throws AesEncryptionException
+        {
+            return rotate( ByteBuffer.wrap( record ), initVectors, initVectorOffset );
+        }
+
+        private byte[] rotate( ByteBuffer record, byte[] initVectors, int initVectorOffset )
+                throws AesEncryptionException
+        {
+            final int maxDecryptedSize = Math.max( 0, record.remaining() - HMAC_SIZE - INIT_VECTOR_SIZE );
+            if ( this.decrypted.capacity() < maxDecryptedSize )
+            {
+                this.decrypted = ByteBuffer.allocate( maxDecryptedSize );
+            }
+            this.decrypted.clear();
+            try
+            {
+                this.oldEngine.decrypt( record, this.decrypted );
+                this.decrypted.flip();
+
+                final byte[] rotated = new byte[AesHmacEngine.getEncryptedSize( this.decrypted.remaining() )
+                        + HMAC_SIZE
+                        + INIT_VECTOR_SIZE];
+                this.newEngine.encrypt( this.decrypted,
+                        ByteBuffer.wrap( rotated ),
+                        Arrays.copyOfRange( initVectors, initVectorOffset, initVectorOffset + INIT_VECTOR_SIZE ) );
+                return rotated;
+            } finally
+            {
+                Arrays.fill( this.decrypted.array(), 0, maxDecryptedSize, (byte) 0 );
+            }
+        }
+    }
+}
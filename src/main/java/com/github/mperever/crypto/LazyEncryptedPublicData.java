@@ -0,0 +1,246 @@
+package com.github.mperever.crypto;
+
+import com.github.mperever.crypto.metrics.CryptoMetrics;
+import com.github.mperever.crypto.metrics.Operation;
+import com.github.mperever.utils.Base64Utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represents encrypted public data in {@link EncryptedPublicData#saveToString()} format,
+ * which is parsed lazily: the instance keeps the encoded string, and each region is decoded
+ * on first access only. Sizes are computed from the string length without decoding,
+ * so routing by size, or reading HMAC, does not decode encrypted data.
+ *
+ * <p>Regions are exposed as read-only buffers, and {@link #asView()} decodes the whole string
+ * at once into a single array for decryption without further copying.
+ *
+ * <p>The instance is thread-safe. Concurrent first access may decode a region more than once.
+ *
+ * @author mperever
+ *
+ */
+public final class LazyEncryptedPublicData
+{
+    private static final int DEFAULT_INIT_VECTOR_SIZE = 16; // in bytes
+    private static final int DEFAULT_HMAC_SIZE = 32; // in bytes
+
+    private final String source;
+    private final int encryptedDataSize;
+    private final int initVectorSize;
+    private final int hmacSize;
+
+    private volatile ByteBuffer encryptedData;
+    private volatile ByteBuffer initVector;
+    private volatile ByteBuffer hmac;
+
+    private LazyEncryptedPublicData( String source, int encryptedDataSize, int initVectorSize, int hmacSize )
+    {
+        this.source = source;
+        this.encryptedDataSize = encryptedDataSize;
+        this.initVectorSize = initVectorSize;
+        this.hmacSize = hmacSize;
+    }
+
+    /**
+     * Wraps source string without decoding it.
+     * Default size for initialization vector and HMAC will be used.
+     *
+     * @param source The source string in {@link EncryptedPublicData#saveToString()} format
+     * @return The lazily parsed public data
+     * @throws IllegalArgumentException if the source is too short
+     */
+    public static LazyEncryptedPublicData fromString( String source )
+    {
+        return fromString( source, DEFAULT_INIT_VECTOR_SIZE, DEFAULT_HMAC_SIZE );
+    }
+
+    /**
+     * Wraps source string without decoding it, using custom sizes of initialization vector and HMAC.
+     *
+     * @param source The source string in {@link EncryptedPublicData#saveToString()} format
+     * @param initVectorSize The initialization vector size in bytes
+     * @param hmacSize The HMAC size in bytes
+     * @return The lazily parsed public data
+     * @throws IllegalArgumentException if the source is too short
+     */
+    public static LazyEncryptedPublicData fromString( String source, int initVectorSize, int hmacSize )
+    {
+        final int encryptedDataSize = Base64Utils.getDecodedSize( source ) - initVectorSize - hmacSize;
+        if ( encryptedDataSize < 0 )
+        {
+            throw new IllegalArgumentException( "Encrypted public data is too short" );
+        }
+        return new LazyEncryptedPublicData( source, encryptedDataSize, initVectorSize, hmacSize );
+    }
+
+    /**
+     * Gets size of encrypted data without decoding it.
+     *
+     * @return The size in bytes
+     */
+    public int getEncryptedDataSize()
+    {
+        return this.encryptedDataSize;
+    }
+
+    /**
+     * Gets encrypted data, decoding it on first access.
+     *
+     * @return The read-only buffer with encrypted data
+     * @throws IllegalArgumentException if the region is not valid Base64
+     */
+    public ByteBuffer getEncryptedData()
+    {
+        return getEncryptedDataBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets HMAC, decoding it on first access.
+     *
+     * @return The read-only buffer with HMAC
+     * @throws IllegalArgumentException if the region is not valid Base64
+     */
+    public ByteBuffer getHmac()
+    {
+        return getHmacBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets initialization vector, decoding it on first access.
+     *
+     * @return The read-only buffer with initialization vector
+     * @throws IllegalArgumentException if the region is not valid Base64
+     */
+    public ByteBuffer getInitVector()
+    {
+        return getInitVectorBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets the encryption mode, which is always CBC with HMAC for this format.
+     *
+     * @return The encryption mode
+     */
+    public EncryptionMode getMode()
+    {
+        return EncryptionMode.CBC_HMAC_SHA256;
+    }
+
+    /**
+     * Gets view of the public data for decryption. Regions which are not decoded yet
+     * are decoded at once, so the view is backed by arrays without further copying.
+     *
+     * @return The view of encrypted public data
+     * @throws AesEncryptionException if the source is not valid Base64
+     */
+    public EncryptedPublicDataView asView() throws AesEncryptionException
+    {
+        if ( this.encryptedData == null && this.hmac == null && this.initVector == null )
+        {
+            decodeAll();
+        }
+        try
+        {
+            // Buffers are not read-only, so engines use their backing arrays without copying
+            return new EncryptedPublicDataView( getEncryptedDataBuffer(),
+                    getInitVectorBuffer(),
+                    getHmacBuffer(),
+                    getMode() );
+        } catch ( IllegalArgumentException ex )
+        {
+            throw new AesEncryptionException( ex.getMessage(), ex );
+        }
+    }
+
+    /**
+     * Gets the source string, which is not encoded again.
+     *
+     * @return The string in {@link EncryptedPublicData#saveToString()} format
+     */
+    public String saveToString()
+    {
+        return this.source;
+    }
+
+    private ByteBuffer getEncryptedDataBuffer()
+    {
+        ByteBuffer buffer = this.encryptedData;
+        if ( buffer == null )
+        {
+            buffer = decodeRegion( 0, this.encryptedDataSize );
+            this.encryptedData = buffer;
+        }
+        return buffer;
+    }
+
+    private ByteBuffer getHmacBuffer()
+    {
+        ByteBuffer buffer = this.hmac;
+        if ( buffer == null )
+        {
+            buffer = decodeRegion( this.encryptedDataSize, this.hmacSize );
+            this.hmac = buffer;
+        }
+        return buffer;
+    }
+
+    private ByteBuffer getInitVectorBuffer()
+    {
+        ByteBuffer buffer = this.initVector;
+        if ( buffer == null )
+        {
+            buffer = decodeRegion( this.encryptedDataSize + this.hmacSize, this.initVectorSize );
+            this.initVector = buffer;
+        }
+        return buffer;
+    }
+
+    private void decodeAll() throws AesEncryptionException
+    {
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+        boolean success = false;
+        try
+        {
+            final byte[] decoded = new byte[this.encryptedDataSize + this.hmacSize + this.initVectorSize];
+            Base64Utils.decode( this.source, decoded, 0 );
+
+            final ByteBuffer buffer = ByteBuffer.wrap( decoded );
+            this.encryptedData = slice( buffer, 0, this.encryptedDataSize );
+            this.hmac = slice( buffer, this.encryptedDataSize, this.hmacSize );
+            this.initVector = slice( buffer, this.encryptedDataSize + this.hmacSize, this.initVectorSize );
+            success = true;
+        } catch ( IllegalArgumentException ex )
+        {
+            throw new AesEncryptionException( ex.getMessage(), ex );
+        } finally
+        {
+            AesEncryptionUtils.record( metrics, Operation.DESERIALIZATION, this.source.length(), start, success );
+        }
+    }
+
+    private ByteBuffer decodeRegion( int offset, int size )
+    {
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+        boolean success = false;
+        try
+        {
+            final byte[] region = new byte[size];
+            Base64Utils.decode( this.source, offset, size, region, 0 );
+            success = true;
+            return ByteBuffer.wrap( region );
+        } finally
+        {
+            AesEncryptionUtils.record( metrics, Operation.DESERIALIZATION, size, start, success );
+        }
+    }
+
+    private static ByteBuffer slice( ByteBuffer buffer, int offset, int size )
+    {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit( offset + size ).position( offset );
+        return slice.slice();
+    }
+}
@@ -0,0 +1,262 @@
+package com.github.mperever.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Represents private keys kept in direct buffer outside of the heap, so key material
+ * is not copied by garbage collector and can be wiped deterministically by {@link #close()}.
+ *
+ * <p>Engines borrow the keys without cloning them: each key is copied to a temporary array
+ * only for the time of creating engine key, and the array is zeroed right after.
+ * Engines, cipher and MAC instances keep their own copies of the keys while engines are used,
+ * and {@link #close()} makes every engine created with the keys zero and overwrite them,
+ * so later operations fail.
+ *
+ * <p>The instance can be used wherever {@link EncryptedPrivateData} is accepted.
+ * {@link #getAesKey()} and {@link #getHmacKey()} return heap copies and should be avoided.
+ *
+ * <p>The instance is thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public final class OffHeapPrivateData extends EncryptedPrivateData implements AutoCloseable
+{
+    private static final int AES_KEY_SIZE = 32; // in bytes
+
+    private final ByteBuffer keys;
+    private final int aesKeySize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    /**
+     * Constructor with private keys, which are copied outside of the heap.
+     * Caller should zero the source arrays after the call.
+     *
+     * @param aesKey AES key
+     * @param hmacKey HMAC key
+     */
+    public OffHeapPrivateData( byte[] aesKey, byte[] hmacKey )
+    {
+        this.aesKeySize = aesKey.length;
+        this.keys = ByteBuffer.allocateDirect( aesKey.length + hmacKey.length );
+        this.keys.put( aesKey ).put( hmacKey ).clear();
+    }
+
+    private OffHeapPrivateData( byte[] keyBytes, int aesKeySize )
+    {
+        this.aesKeySize = aesKeySize;
+        this.keys = ByteBuffer.allocateDirect( keyBytes.length );
+        this.keys.put( keyBytes ).clear();
+    }
+
+    /**
+     * Generates new random AES and HMAC keys outside of the heap.
+     *
+     * @return The private keys
+     * @throws AesEncryptionException if random keys cannot be generated
+     */
+    public static OffHeapPrivateData generate() throws AesEncryptionException
+    {
+        final byte[] aesKey = AesEncryptionUtils.getAesKey();
+        final byte[] hmacKey = AesEncryptionUtils.getHmacKey();
+        try
+        {
+            return new OffHeapPrivateData( aesKey, hmacKey );
+        } finally
+        {
+            Arrays.fill( aesKey, (byte) 0 );
+            Arrays.fill( hmacKey, (byte) 0 );
+        }
+    }
+
+    /**
+     * Copies private keys outside of the heap.
+     *
+     * @param privateData The private keys to copy
+     * @return The private keys outside of the heap
+     * @throws AesEncryptionException if the private keys are not available
+     */
+    public static OffHeapPrivateData copyOf( final EncryptedPrivateData privateData ) throws AesEncryptionException
+    {
+        return privateData.withAesKey( aesKey ->
+                privateData.withHmacKey( hmacKey -> new OffHeapPrivateData( aesKey, hmacKey ) ) );
+    }
+
+    /**
+     * Parse source string, in {@link EncryptedPrivateData#saveToString()} format with 32 bytes AES key.
+     * Decoded bytes are zeroed after copying outside of the heap, the source string is not.
+     *
+     * Keys are copied from decoded bytes directly, without intermediate arrays.
+     *
+     * @param source The parsable source string
+     * @return The private keys outside of the heap
+     * @throws IllegalArgumentException if the source is not valid Base64 or is too short
+     */
+    public static OffHeapPrivateData fromString( String source )
+    {
+        final byte[] decoded = Base64.getDecoder().decode( source );
+        try
+        {
+            if ( decoded.length < AES_KEY_SIZE )
+            {
+                throw new IllegalArgumentException( "Private keys are too short: " + decoded.length );
+            }
+            return new OffHeapPrivateData( decoded, AES_KEY_SIZE );
+        } finally
+        {
+            Arrays.fill( decoded, (byte) 0 );
+        }
+    }
+
+    @Override
+    <T> T withAesKey( KeyFunction<T> function ) throws AesEncryptionException
+    {
+        return withKey( 0, this.aesKeySize, function );
+    }
+
+    @Override
+    <T> T withHmacKey( KeyFunction<T> function ) throws AesEncryptionException
+    {
+        return withKey( this.aesKeySize, this.keys.capacity() - this.aesKeySize, function );
+    }
+
+    /**
+     * Gets heap copy of AES key, which is not wiped by {@link #close()}.
+     *
+     * @return AES key bytes
+     * @throws IllegalStateException if the keys are closed
+     */
+    @Override
+    public byte[] getAesKey()
+    {
+        return copyKey( 0, this.aesKeySize );
+    }
+
+    /**
+     * Gets heap copy of HMAC key, which is not wiped by {@link #close()}.
+     *
+     * @return HMAC key bytes
+     * @throws IllegalStateException if the keys are closed
+     */
+    @Override
+    public byte[] getHmacKey()
+    {
+        return copyKey( this.aesKeySize, this.keys.capacity() - this.aesKeySize );
+    }
+
+    @Override
+    public String saveToString()
+    {
+        final byte[] keyBytes = copyKey( 0, this.keys.capacity() );
+        try
+        {
+            return Base64.getEncoder().encodeToString( keyBytes );
+        } finally
+        {
+            Arrays.fill( keyBytes, (byte) 0 );
+        }
+    }
+
+    /**
+     * Checks whether the keys are zeroed by {@link #close()}.
+     *
+     * @return true if the keys are closed
+     */
+    public boolean isClosed()
+    {
+        this.lock.readLock().lock();
+        try
+        {
+            return this.closed;
+        } finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Zeroes the private keys and makes engines created with them drop their key material.
+     * Waits for current borrowers of the keys, and later borrowing fails.
+     * Engines busy with an operation drop the keys when the operation ends.
+     * Repeated calls have no effect.
+     */
+    @Override
+    public void close()
+    {
+        dropEngineKeys();
+        this.lock.writeLock().lock();
+        try
+        {
+            for ( int i = 0; i < this.keys.capacity(); i++ )
+            {
+                this.keys.put( i, (byte) 0 );
+            }
+            this.closed = true;
+        } finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    void destroy()
+    {
+        close();
+    }
+
+    private <T> T withKey( int offset, int size, KeyFunction<T> function ) throws AesEncryptionException
+    {
+        this.lock.readLock().lock();
+        try
+        {
+            if ( this.closed )
+            {
+                throw new AesEncryptionException( "Private keys are closed" );
+            }
+
+            // JCE accepts keys as arrays only, so the array lives for the call only
+            final byte[] key = new byte[size];
+            try
+            {
+                getKey( offset, key );
+                return function.apply( key );
+            } finally
+            {
+                Arrays.fill( key, (byte) 0 );
+            }
+        } finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private byte[] copyKey( int offset, int size )
+    {
+        this.lock.readLock().lock();
+        try
+        {
+            if ( this.closed )
+            {
+                throw new IllegalStateException( "Private keys are closed" );
+            }
+            final byte[] key = new byte[size];
+            getKey( offset, key );
+            return key;
+        } finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private void getKey( int offset, byte[] key )
+    {
+        final ByteBuffer source = this.keys.duplicate();
+        source.position( offset );
+        source.get( key );
+    }
+}
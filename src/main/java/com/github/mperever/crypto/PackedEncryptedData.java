@@ -0,0 +1,104 @@
+package com.github.mperever.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represents batch of encrypted public data packed into one contiguous buffer with an offset index.
+ * Each entry has the same layout as bytes of {@link EncryptedPublicData#saveToString()}:
+ * encrypted data, HMAC and initialization vector.
+ *
+ * @author mperever
+ *
+ */
+public final class PackedEncryptedData
+{
+    private final byte[] data;
+    private final int[] offsets;
+
+    /**
+     * Constructor with packed entries and their offsets.
+     *
+     * @param data The packed entries
+     * @param offsets The start offset of each entry followed by the end offset of the last entry
+     */
+    public PackedEncryptedData( byte[] data, int[] offsets )
+    {
+        this( offsets.clone(), data.clone() );
+    }
+
+    private PackedEncryptedData( int[] offsets, byte[] data )
+    {
+        if ( offsets.length == 0 || offsets[offsets.length - 1] > data.length )
+        {
+            throw new IllegalArgumentException( "Invalid offsets of packed entries" );
+        }
+        this.data = data;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Creates instance which owns the specified arrays without copying them.
+     *
+     * @param data The packed entries
+     * @param offsets The start offset of each entry followed by the end offset of the last entry
+     * @return The instance of {@link PackedEncryptedData}.
+     */
+    static PackedEncryptedData wrap( byte[] data, int[] offsets )
+    {
+        return new PackedEncryptedData( offsets, data );
+    }
+
+    /**
+     * Gets number of packed entries.
+     *
+     * @return The number of entries
+     */
+    public int size()
+    {
+        return this.offsets.length - 1;
+    }
+
+    /**
+     * Gets offset of the entry in packed buffer.
+     *
+     * @param index The entry index
+     * @return The entry offset
+     */
+    public int getOffset( int index )
+    {
+        return this.offsets[index];
+    }
+
+    /**
+     * Gets size of the entry in packed buffer.
+     *
+     * @param index The entry index
+     * @return The entry size in bytes
+     */
+    public int getSize( int index )
+    {
+        return this.offsets[index + 1] - this.offsets[index];
+    }
+
+    /**
+     * Gets read-only buffer with all packed entries.
+     *
+     * @return The packed buffer
+     */
+    public ByteBuffer asByteBuffer()
+    {
+        return ByteBuffer.wrap( this.data, 0, this.offsets[size()] ).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets read-only view of the entry without copying its bytes.
+     *
+     * @param index The entry index
+     * @return The view of encrypted public data
+     * @throws AesEncryptionException if the entry is too short
+     */
+    public EncryptedPublicDataView getView( int index ) throws AesEncryptionException
+    {
+        return EncryptedPublicDataView.wrap( ByteBuffer.wrap( this.data, getOffset( index ), getSize( index ) ) );
+    }
+}
@@ -0,0 +1,18 @@
+package com.github.mperever.crypto;
+
+/**
+ * Represents source of random bytes for initialization vectors and keys.
+ * Implementations must be thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public interface RandomSource
+{
+    /**
+     * Fills the specified array with random bytes.
+     *
+     * @param bytes The array to fill
+     */
+    void nextBytes( byte[] bytes );
+}
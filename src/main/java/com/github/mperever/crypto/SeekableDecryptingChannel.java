@@ -0,0 +1,217 @@
+package com.github.mperever.crypto;
+
+import com.github.mperever.crypto.metrics.CryptoMetrics;
+import com.github.mperever.crypto.metrics.Operation;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Represents read-only channel with random access to decrypted source in segmented format,
+ * written by {@link SegmentedAesEncryption}. Only segments touched by a read are read,
+ * verified and decrypted, so cost of a read is proportional to the requested bytes.
+ *
+ * <p>Offset of any segment is known from the header, so no separate segment index is stored.
+ * Each segment HMAC covers the header and segment index, so a segment cannot be moved or
+ * taken from another source, and the encrypted size is checked against the header on open.
+ *
+ * <p>The channel is not thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public class SeekableDecryptingChannel implements SeekableByteChannel
+{
+    private final SeekableByteChannel encrypted;
+    private final AesHmacEngine engine;
+    private final SegmentHeader header;
+
+    private final ByteBuffer encryptedSegment;
+    private final ByteBuffer decryptedSegment;
+    private long decryptedIndex = -1;
+    private long position;
+
+    /**
+     * Constructor with encrypted channel. The header is read and verified against channel size.
+     *
+     * @param encrypted The channel with encrypted source in segmented format, closed with this channel
+     * @param privateData private information for decryption
+     * @throws AesEncryptionException if the format is invalid
+     * @throws IOException if an I/O error occurs
+     */
+    public SeekableDecryptingChannel( SeekableByteChannel encrypted, final EncryptedPrivateData privateData )
+            throws AesEncryptionException, IOException
+    {
+        this.encrypted = encrypted;
+        this.engine = new AesHmacEngine( privateData );
+
+        final ByteBuffer headerBytes = ByteBuffer.allocate( SegmentHeader.SIZE );
+        readFully( 0, headerBytes );
+        headerBytes.flip();
+        this.header = SegmentHeader.read( headerBytes );
+        if ( encrypted.size() != this.header.getEncryptedSize() )
+        {
+            throw new AesEncryptionException( "Invalid size of encrypted source" );
+        }
+
+        this.encryptedSegment = ByteBuffer.allocate( this.header.getEncryptedSegmentSize( 0 ) );
+        this.decryptedSegment = ByteBuffer.allocate( this.header.getSegmentSize() );
+    }
+
+    /**
+     * Reads decrypted bytes from current position. Segments are verified before decryption,
+     * so the read fails with {@link IOException} caused by {@link AesEncryptionException}
+     * if HMAC of any touched segment is invalid.
+     *
+     * @param destination The buffer to read to
+     * @return The number of read bytes, or -1 at the end of source
+     * @throws IOException if an I/O error occurs or a segment cannot be verified or decrypted
+     */
+    @Override
+    public int read( ByteBuffer destination ) throws IOException
+    {
+        checkOpen();
+        if ( this.position >= this.header.getSourceSize() )
+        {
+            return -1;
+        }
+
+        int read = 0;
+        while ( destination.hasRemaining() && this.position < this.header.getSourceSize() )
+        {
+            final long index = this.position / this.header.getSegmentSize();
+            loadSegment( index );
+
+            final ByteBuffer segment = this.decryptedSegment.duplicate();
+            segment.position( (int) ( this.position - this.header.getSourceSegmentOffset( index ) ) );
+            if ( segment.remaining() > destination.remaining() )
+            {
+                segment.limit( segment.position() + destination.remaining() );
+            }
+
+            read += segment.remaining();
+            this.position += segment.remaining();
+            destination.put( segment );
+        }
+        return read;
+    }
+
+    @Override
+    public int write( ByteBuffer source )
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException
+    {
+        checkOpen();
+        return this.position;
+    }
+
+    @Override
+    public SeekableDecryptingChannel position( long newPosition ) throws IOException
+    {
+        checkOpen();
+        if ( newPosition < 0 )
+        {
+            throw new IllegalArgumentException( "Negative position: " + newPosition );
+        }
+        this.position = newPosition;
+        return this;
+    }
+
+    /**
+     * Gets size of decrypted source.
+     *
+     * @return The source size in bytes
+     * @throws IOException if the channel is closed
+     */
+    @Override
+    public long size() throws IOException
+    {
+        checkOpen();
+        return this.header.getSourceSize();
+    }
+
+    @Override
+    public SeekableByteChannel truncate( long size )
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return this.encrypted.isOpen();
+    }
+
+    /**
+     * Closes the encrypted channel and zeroes the decrypted segment.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException
+    {
+        Arrays.fill( this.decryptedSegment.array(), (byte) 0 );
+        this.decryptedIndex = -1;
+        this.encrypted.close();
+    }
+
+    private void loadSegment( long index ) throws IOException
+    {
+        if ( this.decryptedIndex == index )
+        {
+            return;
+        }
+
+        this.decryptedIndex = -1;
+        this.encryptedSegment.clear().limit( this.header.getEncryptedSegmentSize( index ) );
+        readFully( this.header.getEncryptedSegmentOffset( index ), this.encryptedSegment );
+        this.encryptedSegment.flip();
+
+        this.decryptedSegment.clear();
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+        boolean success = false;
+        try
+        {
+            this.engine.decryptSegment( this.header, index, this.encryptedSegment, this.decryptedSegment );
+            success = true;
+        } catch ( AesEncryptionException ex )
+        {
+            throw new IOException( "Segment " + index + " cannot be decrypted", ex );
+        } finally
+        {
+            AesEncryptionUtils.record( metrics, Operation.DECRYPT, this.encryptedSegment.limit(), start, success );
+        }
+        this.decryptedSegment.flip();
+        this.decryptedIndex = index;
+    }
+
+    private void readFully( long offset, ByteBuffer destination ) throws IOException
+    {
+        this.encrypted.position( offset );
+        while ( destination.hasRemaining() )
+        {
+            if ( this.encrypted.read( destination ) < 0 )
+            {
+                throw new EOFException( "Encrypted source is truncated" );
+            }
+        }
+    }
+
+    private void checkOpen() throws ClosedChannelException
+    {
+        if ( !isOpen() )
+        {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.mperever.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represents header of segmented encryption format.
+ *
+ * <p>The format is: header, then segments, then final tag. Each segment contains
+ * encrypted source segment followed by its HMAC. All segments except the last one
+ * have the same size, so offset of any segment is known from the header.
+ *
+ * <p>The header is: format version (1 byte), encryption mode (1 byte),
+ * source segment size (4 bytes), source size (8 bytes) and random nonce (16 bytes).
+ *
+ * @author mperever
+ *
+ */
+final class SegmentHeader
+{
+    static final byte FORMAT_VERSION = 1;
+    static final int NONCE_SIZE = 16; // in bytes
+    static final int SIZE = 1 + 1 + 4 + 8 + NONCE_SIZE; // in bytes
+    static final int TAG_SIZE = AesHmacEngine.HMAC_SIZE; // in bytes
+    static final int MAX_SEGMENT_SIZE = 1 << 30; // in bytes
+
+    private static final EncryptionMode MODE = EncryptionMode.CBC_HMAC_SHA256;
+
+    private final int segmentSize;
+    private final long sourceSize;
+    private final byte[] bytes;
+
+    SegmentHeader( int segmentSize, long sourceSize, byte[] nonce )
+    {
+        checkSegmentSize( segmentSize );
+        if ( sourceSize < 0 )
+        {
+            throw new IllegalArgumentException( "Invalid source size: " + sourceSize );
+        }
+        this.segmentSize = segmentSize;
+        this.sourceSize = sourceSize;
+
+        final ByteBuffer buffer = ByteBuffer.allocate( SIZE );
+        buffer.put( FORMAT_VERSION );
+        buffer.put( MODE.getId() );
+        buffer.putInt( segmentSize );
+        buffer.putLong( sourceSize );
+        buffer.put( nonce, 0, NONCE_SIZE );
+        this.bytes = buffer.array();
+    }
+
+    /**
+     * Reads header from the current position of the buffer.
+     *
+     * @param source The buffer to read header from
+     * @return The segment header
+     * @throws AesEncryptionException if the header is truncated or has unknown version or mode
+     */
+    static SegmentHeader read( ByteBuffer source ) throws AesEncryptionException
+    {
+        if ( source.remaining() < SIZE )
+        {
+            throw new AesEncryptionException( "Segment header is truncated" );
+        }
+        if ( source.get() != FORMAT_VERSION )
+        {
+            throw new AesEncryptionException( "Unknown format version" );
+        }
+        if ( source.get() != MODE.getId() )
+        {
+            throw new AesEncryptionException( "Unsupported encryption mode" );
+        }
+
+        final int segmentSize = source.getInt();
+        final long sourceSize = source.getLong();
+        final byte[] nonce = new byte[NONCE_SIZE];
+        source.get( nonce );
+        try
+        {
+            return new SegmentHeader( segmentSize, sourceSize, nonce );
+        } catch ( IllegalArgumentException ex )
+        {
+            throw new AesEncryptionException( ex );
+        }
+    }
+
+    static void checkSegmentSize( int segmentSize )
+    {
+        if ( segmentSize <= 0
+                || segmentSize > MAX_SEGMENT_SIZE
+                || segmentSize % AesHmacEngine.AES_BLOCK_SIZE != 0 )
+        {
+            throw new IllegalArgumentException( "Segment size must be positive multiple of "
+                    + AesHmacEngine.AES_BLOCK_SIZE + ": " + segmentSize );
+        }
+    }
+
+    /**
+     * Gets header bytes. The array must not be changed.
+     *
+     * @return The header bytes
+     */
+    byte[] getBytes()
+    {
+        return this.bytes;
+    }
+
+    int getSegmentSize()
+    {
+        return this.segmentSize;
+    }
+
+    long getSourceSize()
+    {
+        return this.sourceSize;
+    }
+
+    /**
+     * Gets number of segments. Empty source has one empty segment.
+     *
+     * @return The number of segments
+     */
+    long getSegmentCount()
+    {
+        return Math.max( 1, ( this.sourceSize + this.segmentSize - 1 ) / this.segmentSize );
+    }
+
+    long getSourceSegmentOffset( long index )
+    {
+        return index * this.segmentSize;
+    }
+
+    int getSourceSegmentSize( long index )
+    {
+        return (int) Math.min( this.segmentSize, this.sourceSize - getSourceSegmentOffset( index ) );
+    }
+
+    long getEncryptedSegmentOffset( long index )
+    {
+        return SIZE + index * ( AesHmacEngine.getEncryptedSize( this.segmentSize ) + TAG_SIZE );
+    }
+
+    int getEncryptedSegmentSize( long index )
+    {
+        return AesHmacEngine.getEncryptedSize( getSourceSegmentSize( index ) ) + TAG_SIZE;
+    }
+
+    /**
+     * Gets total size of the encrypted form: header, segments and final tag.
+     *
+     * @return The encrypted size in bytes
+     */
+    long getEncryptedSize()
+    {
+        final long lastIndex = getSegmentCount() - 1;
+        return getEncryptedSegmentOffset( lastIndex ) + getEncryptedSegmentSize( lastIndex ) + TAG_SIZE;
+    }
+}
@@ -0,0 +1,541 @@
+package com.github.mperever.crypto;
+
+import com.github.mperever.crypto.metrics.CryptoMetrics;
+import com.github.mperever.crypto.metrics.Operation;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Represents encryption of large sources in segmented format.
+ * Source is split into independent fixed-size segments, each one has its own
+ * derived initialization vector and HMAC, and the final HMAC covers the whole
+ * sequence of segments. Sources above the parallel threshold are encrypted and
+ * decrypted by segments in {@link ForkJoinPool}. Files are processed through memory-mapped
+ * windows, so large files are never loaded to heap.
+ *
+ * <p>The instance is thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public class SegmentedAesEncryption
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024; // in bytes
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1024 * 1024; // in bytes
+
+    private static final int SEGMENTS_PER_TASK = 4;
+    private static final int MAPPED_WINDOW_SIZE = 64 * 1024 * 1024; // in bytes
+
+    private final int segmentSize;
+    private final int parallelThreshold;
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor with default segment size and parallel threshold,
+     * using common {@link ForkJoinPool}.
+     */
+    public SegmentedAesEncryption()
+    {
+        this( DEFAULT_SEGMENT_SIZE, DEFAULT_PARALLEL_THRESHOLD, ForkJoinPool.commonPool() );
+    }
+
+    /**
+     * Constructor with custom segment size, parallel threshold and pool.
+     *
+     * @param segmentSize The source segment size in bytes, positive multiple of 16
+     * @param parallelThreshold The minimal source size in bytes to process segments in parallel
+     * @param pool The pool to process segments in
+     */
+    public SegmentedAesEncryption( int segmentSize, int parallelThreshold, ForkJoinPool pool )
+    {
+        SegmentHeader.checkSegmentSize( segmentSize );
+        this.segmentSize = segmentSize;
+        this.parallelThreshold = parallelThreshold;
+        this.pool = pool;
+    }
+
+    /**
+     * Gets size of segmented format for the specified source size.
+     *
+     * @param sourceSize The source size in bytes
+     * @return The encrypted size in bytes
+     */
+    public long getEncryptedSize( long sourceSize )
+    {
+        return new SegmentHeader( this.segmentSize, sourceSize, new byte[SegmentHeader.NONCE_SIZE] )
+                .getEncryptedSize();
+    }
+
+    /**
+     * Encrypts source bytes into segmented format.
+     *
+     * @param source The source for encryption
+     * @param privateData private information for encryption
+     * @return The encrypted source in segmented format
+     * @throws AesEncryptionException if an error occurs during encryption
+     *     or encrypted source does not fit into array.
+     */
+    public byte[] encrypt( byte[] source, final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+        boolean success = false;
+        try
+        {
+            final byte[] encrypted = encryptSegments( source, privateData );
+            success = true;
+            return encrypted;
+        } finally
+        {
+            AesEncryptionUtils.record( metrics, Operation.ENCRYPT, source.length, start, success );
+        }
+    }
+
+    private byte[] encryptSegments( byte[] source, final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final SegmentHeader header = new SegmentHeader( this.segmentSize,
+                source.length,
+                AesEncryptionUtils.getRandomIv( SegmentHeader.NONCE_SIZE ) );
+        final long encryptedSize = header.getEncryptedSize();
+        if ( encryptedSize > Integer.MAX_VALUE - 8 )
+        {
+            throw new AesEncryptionException( "Encrypted source is too large: " + encryptedSize );
+        }
+
+        final byte[] encrypted = new byte[(int) encryptedSize];
+        System.arraycopy( header.getBytes(), 0, encrypted, 0, SegmentHeader.SIZE );
+
+        final int segmentCount = (int) header.getSegmentCount();
+        final byte[] segmentTags = new byte[segmentCount * SegmentHeader.TAG_SIZE];
+        processSegments( source.length, segmentCount, ( engine, index ) ->
+        {
+            final ByteBuffer sourceSegment = ByteBuffer.wrap( source,
+                    (int) header.getSourceSegmentOffset( index ),
+                    header.getSourceSegmentSize( index ) );
+            final ByteBuffer encryptedSegment = ByteBuffer.wrap( encrypted,
+                    (int) header.getEncryptedSegmentOffset( index ),
+                    header.getEncryptedSegmentSize( index ) );
+
+            final byte[] tag = engine.encryptSegment( header, index, sourceSegment, encryptedSegment );
+            System.arraycopy( tag, 0, segmentTags, index * SegmentHeader.TAG_SIZE, SegmentHeader.TAG_SIZE );
+        }, privateData );
+
+        final byte[] segmentsTag = AesHmacEngine.forCurrentThread( privateData )
+                .getSegmentsTag( header, segmentTags );
+        System.arraycopy( segmentsTag, 0, encrypted, encrypted.length - SegmentHeader.TAG_SIZE, SegmentHeader.TAG_SIZE );
+        return encrypted;
+    }
+
+    /**
+     * Verifies and decrypts source in segmented format.
+     * Segment size is taken from the encrypted source.
+     *
+     * @param encrypted The encrypted source in segmented format
+     * @param privateData private information for decryption
+     * @return Decrypted source
+     * @throws AesEncryptionException if the format is invalid, any HMAC is invalid
+     *     or an error occurs during decryption.
+     */
+    public byte[] decrypt( byte[] encrypted, final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+        boolean success = false;
+        try
+        {
+            final byte[] decrypted = decryptSegments( encrypted, privateData );
+            success = true;
+            return decrypted;
+        } finally
+        {
+            AesEncryptionUtils.record( metrics, Operation.DECRYPT, encrypted.length, start, success );
+        }
+    }
+
+    private byte[] decryptSegments( byte[] encrypted, final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        final SegmentHeader header = SegmentHeader.read( ByteBuffer.wrap( encrypted ) );
+        if ( header.getEncryptedSize() != encrypted.length )
+        {
+            throw new AesEncryptionException( "Invalid size of encrypted source" );
+        }
+
+        // Final HMAC is verified before any segment is decrypted
+        final int segmentCount = (int) header.getSegmentCount();
+        final byte[] segmentTags = new byte[segmentCount * SegmentHeader.TAG_SIZE];
+        for ( int index = 0; index < segmentCount; index++ )
+        {
+            final int tagOffset = (int) header.getEncryptedSegmentOffset( index )
+                    + header.getEncryptedSegmentSize( index ) - SegmentHeader.TAG_SIZE;
+            System.arraycopy( encrypted, tagOffset, segmentTags, index * SegmentHeader.TAG_SIZE, SegmentHeader.TAG_SIZE );
+        }
+        AesHmacEngine.forCurrentThread( privateData ).checkSegmentsTag( header,
+                segmentTags,
+                ByteBuffer.wrap( encrypted, encrypted.length - SegmentHeader.TAG_SIZE, SegmentHeader.TAG_SIZE ) );
+
+        final byte[] decrypted = new byte[(int) header.getSourceSize()];
+        processSegments( decrypted.length, segmentCount, ( engine, index ) ->
+        {
+            final ByteBuffer encryptedSegment = ByteBuffer.wrap( encrypted,
+                    (int) header.getEncryptedSegmentOffset( index ),
+                    header.getEncryptedSegmentSize( index ) );
+            final ByteBuffer decryptedSegment = ByteBuffer.wrap( decrypted,
+                    (int) header.getSourceSegmentOffset( index ),
+                    header.getSourceSegmentSize( index ) );
+
+            engine.decryptSegment( header, index, encryptedSegment, decryptedSegment );
+        }, privateData );
+
+        return decrypted;
+    }
+
+    /**
+     * Encrypts file into segmented format. Source and encrypted files are mapped to memory
+     * by windows of whole segments, so the files are not loaded to heap and may be larger than 2 GB.
+     * The encrypted file is deleted if encryption fails.
+     *
+     * @param source The source file
+     * @param destination The encrypted file, created or truncated
+     * @param privateData private information for encryption
+     * @throws AesEncryptionException if an error occurs during encryption
+     * @throws IOException if an I/O error occurs
+     */
+    public void encryptFile( Path source, Path destination, final EncryptedPrivateData privateData )
+            throws AesEncryptionException, IOException
+    {
+        boolean encrypted = false;
+        try ( FileChannel in = FileChannel.open( source, StandardOpenOption.READ );
+              FileChannel out = FileChannel.open( destination,
+                      StandardOpenOption.READ,
+                      StandardOpenOption.WRITE,
+                      StandardOpenOption.CREATE,
+                      StandardOpenOption.TRUNCATE_EXISTING ) )
+        {
+            final long sourceSize = in.size();
+            final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+            final long start = AesEncryptionUtils.startTimer( metrics );
+            try
+            {
+                encryptFile( in, out, sourceSize, privateData );
+                encrypted = true;
+            } finally
+            {
+                AesEncryptionUtils.record( metrics, Operation.ENCRYPT, sourceSize, start, encrypted );
+            }
+        } finally
+        {
+            // Partly written file would look like a valid container until it is decrypted
+            if ( !encrypted )
+            {
+                Files.deleteIfExists( destination );
+            }
+        }
+    }
+
+    private void encryptFile( FileChannel in, FileChannel out, long sourceSize, final EncryptedPrivateData privateData )
+            throws AesEncryptionException, IOException
+    {
+        final SegmentHeader header = new SegmentHeader( this.segmentSize,
+                sourceSize,
+                AesEncryptionUtils.getRandomIv( SegmentHeader.NONCE_SIZE ) );
+        final long segmentCount = header.getSegmentCount();
+        final byte[] segmentTags = newSegmentTags( segmentCount );
+
+        // Encrypted file is preallocated, so mapped windows do not extend it one by one
+        final long encryptedSize = header.getEncryptedSize();
+        writeFully( out, ByteBuffer.allocate( 1 ), encryptedSize - 1 );
+        writeFully( out, ByteBuffer.wrap( header.getBytes() ), 0 );
+
+        final int windowSegments = getWindowSegments( header );
+        for ( long first = 0; first < segmentCount; first += windowSegments )
+        {
+            final long windowFirst = first;
+            final int count = (int) Math.min( windowSegments, segmentCount - first );
+            final ByteBuffer sourceWindow = mapSourceWindow( in, header, first, count, FileChannel.MapMode.READ_ONLY );
+            final ByteBuffer encryptedWindow = mapEncryptedWindow( out, header, first, count, FileChannel.MapMode.READ_WRITE );
+            final long sourceOffset = header.getSourceSegmentOffset( first );
+            final long encryptedOffset = header.getEncryptedSegmentOffset( first );
+
+            processSegments( sourceWindow.remaining(), count, ( engine, index ) ->
+            {
+                final long segmentIndex = windowFirst + index;
+                final ByteBuffer sourceSegment = slice( sourceWindow,
+                        header.getSourceSegmentOffset( segmentIndex ) - sourceOffset,
+                        header.getSourceSegmentSize( segmentIndex ) );
+                final ByteBuffer encryptedSegment = slice( encryptedWindow,
+                        header.getEncryptedSegmentOffset( segmentIndex ) - encryptedOffset,
+                        header.getEncryptedSegmentSize( segmentIndex ) );
+
+                final byte[] tag = engine.encryptSegment( header, segmentIndex, sourceSegment, encryptedSegment );
+                System.arraycopy( tag, 0, segmentTags, (int) segmentIndex * SegmentHeader.TAG_SIZE, SegmentHeader.TAG_SIZE );
+            }, privateData );
+        }
+
+        final byte[] segmentsTag = AesHmacEngine.forCurrentThread( privateData )
+                .getSegmentsTag( header, segmentTags );
+        writeFully( out, ByteBuffer.wrap( segmentsTag ), encryptedSize - SegmentHeader.TAG_SIZE );
+    }
+
+    /**
+     * Verifies and decrypts file in segmented format. Encrypted and decrypted files are mapped
+     * to memory by windows of whole segments, so the files are not loaded to heap and may be larger than 2 GB.
+     * Final HMAC is verified before any segment is decrypted. The decrypted file is deleted
+     * if verification or decryption fails.
+     *
+     * @param source The encrypted file in segmented format
+     * @param destination The decrypted file, created or truncated
+     * @param privateData private information for decryption
+     * @throws AesEncryptionException if the format is invalid, any HMAC is invalid
+     *     or an error occurs during decryption.
+     * @throws IOException if an I/O error occurs
+     */
+    public void decryptFile( Path source, Path destination, final EncryptedPrivateData privateData )
+            throws AesEncryptionException, IOException
+    {
+        final CryptoMetrics metrics = AesEncryptionUtils.getMetrics();
+        final long start = AesEncryptionUtils.startTimer( metrics );
+        long encryptedFileSize = 0;
+        boolean decrypted = false;
+        try ( FileChannel in = FileChannel.open( source, StandardOpenOption.READ );
+              FileChannel out = FileChannel.open( destination,
+                      StandardOpenOption.READ,
+                      StandardOpenOption.WRITE,
+                      StandardOpenOption.CREATE,
+                      StandardOpenOption.TRUNCATE_EXISTING ) )
+        {
+            encryptedFileSize = in.size();
+            final ByteBuffer headerBytes = ByteBuffer.allocate( SegmentHeader.SIZE );
+            readFully( in, headerBytes, 0 );
+            headerBytes.flip();
+            final SegmentHeader header = SegmentHeader.read( headerBytes );
+            final long encryptedSize = header.getEncryptedSize();
+            if ( encryptedFileSize != encryptedSize )
+            {
+                throw new AesEncryptionException( "Invalid size of encrypted source" );
+            }
+
+            // Only segment HMACs are read to verify the final HMAC
+            final long segmentCount = header.getSegmentCount();
+            final byte[] segmentTags = newSegmentTags( segmentCount );
+            for ( long index = 0; index < segmentCount; index++ )
+            {
+                final long tagOffset = header.getEncryptedSegmentOffset( index )
+                        + header.getEncryptedSegmentSize( index ) - SegmentHeader.TAG_SIZE;
+                readFully( in,
+                        ByteBuffer.wrap( segmentTags, (int) index * SegmentHeader.TAG_SIZE, SegmentHeader.TAG_SIZE ),
+                        tagOffset );
+            }
+            final ByteBuffer expectedTag = ByteBuffer.allocate( SegmentHeader.TAG_SIZE );
+            readFully( in, expectedTag, encryptedSize - SegmentHeader.TAG_SIZE );
+            expectedTag.flip();
+            AesHmacEngine.forCurrentThread( privateData ).checkSegmentsTag( header, segmentTags, expectedTag );
+
+            if ( header.getSourceSize() > 0 )
+            {
+                writeFully( out, ByteBuffer.allocate( 1 ), header.getSourceSize() - 1 );
+            }
+
+            final int windowSegments = getWindowSegments( header );
+            for ( long first = 0; first < segmentCount; first += windowSegments )
+            {
+                final long windowFirst = first;
+                final int count = (int) Math.min( windowSegments, segmentCount - first );
+                final ByteBuffer encryptedWindow = mapEncryptedWindow( in, header, first, count, FileChannel.MapMode.READ_ONLY );
+                final ByteBuffer decryptedWindow = mapSourceWindow( out, header, first, count, FileChannel.MapMode.READ_WRITE );
+                final long sourceOffset = header.getSourceSegmentOffset( first );
+                final long encryptedOffset = header.getEncryptedSegmentOffset( first );
+
+                processSegments( decryptedWindow.remaining(), count, ( engine, index ) ->
+                {
+                    final long segmentIndex = windowFirst + index;
+                    final ByteBuffer encryptedSegment = slice( encryptedWindow,
+                            header.getEncryptedSegmentOffset( segmentIndex ) - encryptedOffset,
+                            header.getEncryptedSegmentSize( segmentIndex ) );
+                    final ByteBuffer decryptedSegment = slice( decryptedWindow,
+                            header.getSourceSegmentOffset( segmentIndex ) - sourceOffset,
+                            header.getSourceSegmentSize( segmentIndex ) );
+
+                    engine.decryptSegment( header, segmentIndex, encryptedSegment, decryptedSegment );
+                }, privateData );
+            }
+            decrypted = true;
+        } finally
+        {
+            AesEncryptionUtils.record( metrics, Operation.DECRYPT, encryptedFileSize, start, decrypted );
+            if ( !decrypted )
+            {
+                Files.deleteIfExists( destination );
+            }
+        }
+    }
+
+    private int getWindowSegments( final SegmentHeader header )
+    {
+        return Math.max( 1, MAPPED_WINDOW_SIZE / header.getEncryptedSegmentSize( 0 ) );
+    }
+
+    private static byte[] newSegmentTags( long segmentCount ) throws AesEncryptionException
+    {
+        if ( segmentCount > ( Integer.MAX_VALUE - 8 ) / SegmentHeader.TAG_SIZE )
+        {
+            throw new AesEncryptionException( "Too many segments: " + segmentCount );
+        }
+        return new byte[(int) segmentCount * SegmentHeader.TAG_SIZE];
+    }
+
+    private static ByteBuffer mapSourceWindow( FileChannel channel,
+                                               final SegmentHeader header,
+                                               long first,
+                                               int count,
+                                               FileChannel.MapMode mapMode )
+            throws IOException
+    {
+        final long last = first + count - 1;
+        final long offset = header.getSourceSegmentOffset( first );
+        final long size = header.getSourceSegmentOffset( last ) + header.getSourceSegmentSize( last ) - offset;
+        return channel.map( mapMode, offset, size );
+    }
+
+    private static ByteBuffer mapEncryptedWindow( FileChannel channel,
+                                                  final SegmentHeader header,
+                                                  long first,
+                                                  int count,
+                                                  FileChannel.MapMode mapMode )
+            throws IOException
+    {
+        final long last = first + count - 1;
+        final long offset = header.getEncryptedSegmentOffset( first );
+        final long size = header.getEncryptedSegmentOffset( last ) + header.getEncryptedSegmentSize( last ) - offset;
+        return channel.map( mapMode, offset, size );
+    }
+
+    private static ByteBuffer slice( ByteBuffer window, long offset, int size )
+    {
+        final ByteBuffer slice = window.duplicate();
+        slice.limit( (int) offset + size ).position( (int) offset );
+        return slice;
+    }
+
+    private static void readFully( FileChannel channel, ByteBuffer destination, long position ) throws IOException
+    {
+        long offset = position;
+        while ( destination.hasRemaining() )
+        {
+            final int read = channel.read( destination, offset );
+            if ( read < 0 )
+            {
+                throw new EOFException( "Encrypted source is truncated" );
+            }
+            offset += read;
+        }
+    }
+
+    private static void writeFully( FileChannel channel, ByteBuffer source, long position ) throws IOException
+    {
+        long offset = position;
+        while ( source.hasRemaining() )
+        {
+            offset += channel.write( source, offset );
+        }
+    }
+
+    private void processSegments( int sourceSize,
+                                  int segmentCount,
+                                  SegmentProcessor processor,
+                                  final EncryptedPrivateData privateData )
+            throws AesEncryptionException
+    {
+        if ( sourceSize < this.parallelThreshold || segmentCount <= SEGMENTS_PER_TASK )
+        {
+            final AesHmacEngine engine = AesHmacEngine.forCurrentThread( privateData );
+            for ( int index = 0; index < segmentCount; index++ )
+            {
+                processor.process( engine, index );
+            }
+            return;
+        }
+
+        try
+        {
+            this.pool.invoke( new SegmentsTask( 0, segmentCount, processor, privateData ) );
+        } catch ( SegmentException ex )
+        {
+            throw ex.getCause();
+        }
+    }
+
+    private interface SegmentProcessor
+    {
+        void process( AesHmacEngine engine, int index ) throws AesEncryptionException;
+    }
+
+    private static class SegmentsTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final transient SegmentProcessor processor;
+        private final transient EncryptedPrivateData privateData;
+
+        SegmentsTask( int from, int to, SegmentProcessor processor, final EncryptedPrivateData privateData )
+        {
+            this.from = from;
+            this.to = to;
+            this.processor = processor;
+            this.privateData = privateData;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if ( this.to - this.from <= SEGMENTS_PER_TASK )
+            {
+                try
+                {
+                    final AesHmacEngine engine = AesHmacEngine.forCurrentThread( this.privateData );
+                    for ( int index = this.from; index < this.to; index++ )
+                    {
+                        this.processor.process( engine, index );
+                    }
+                } catch ( AesEncryptionException ex )
+                {
+                    throw new SegmentException( ex );
+                }
+                return;
+            }
+
+            final int middle = ( this.from + this.to ) >>> 1;
+            invokeAll( new SegmentsTask( this.from, middle, this.processor, this.privateData ),
+                    new SegmentsTask( middle, this.to, this.processor, this.privateData ) );
+        }
+    }
+
+    private static class SegmentException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        SegmentException( AesEncryptionException cause )
+        {
+            super( cause );
+        }
+
+        @Override
+        public synchronized AesEncryptionException getCause()
+        {
+            return (AesEncryptionException) super.getCause();
+        }
+    }
+}
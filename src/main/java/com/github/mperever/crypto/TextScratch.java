@@ -0,0 +1,118 @@
+package com.github.mperever.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Represents reusable buffers of current thread for text encryption, so encoding,
+ * encryption and Base64 conversion of a text do not allocate intermediate arrays.
+ * Buffers grow to the largest text processed by the thread.
+ *
+ * @author mperever
+ *
+ */
+final class TextScratch
+{
+    private static final ThreadLocal<TextScratch> THREAD_SCRATCH = ThreadLocal.withInitial( TextScratch::new );
+
+    final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+    final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+    final StringBuilder builder = new StringBuilder();
+    final byte[] initVector = new byte[AesHmacEngine.INIT_VECTOR_SIZE];
+
+    private ByteBuffer textBytes = ByteBuffer.allocate( 256 );
+    private ByteBuffer encryptedBytes = ByteBuffer.allocate( 512 );
+    private CharBuffer chars = CharBuffer.allocate( 256 );
+
+    private TextScratch()
+    {
+    }
+
+    static TextScratch forCurrentThread()
+    {
+        return THREAD_SCRATCH.get();
+    }
+
+    /**
+     * Gets size of the text encoded to UTF-8 by {@link #encoder}, without encoding it.
+     * Unpaired surrogates are counted as one replacement byte.
+     */
+    static int getEncodedSize( CharSequence text )
+    {
+        int size = 0;
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            final char ch = text.charAt( i );
+            if ( ch < 0x80 )
+            {
+                size++;
+            }
+            else if ( ch < 0x800 )
+            {
+                size += 2;
+            }
+            else if ( !Character.isSurrogate( ch ) )
+            {
+                size += 3;
+            }
+            else if ( Character.isHighSurrogate( ch ) && i + 1 < text.length()
+                    && Character.isLowSurrogate( text.charAt( i + 1 ) ) )
+            {
+                size += 4;
+                i++;
+            }
+            else
+            {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Gets cleared buffer for text bytes with at least the specified capacity.
+     */
+    ByteBuffer getTextBytes( int capacity )
+    {
+        if ( this.textBytes.capacity() < capacity )
+        {
+            this.textBytes = ByteBuffer.allocate( capacity );
+        }
+        this.textBytes.clear();
+        return this.textBytes;
+    }
+
+    /**
+     * Gets cleared buffer for encrypted bytes with at least the specified capacity.
+     */
+    ByteBuffer getEncryptedBytes( int capacity )
+    {
+        if ( this.encryptedBytes.capacity() < capacity )
+        {
+            this.encryptedBytes = ByteBuffer.allocate( capacity );
+        }
+        this.encryptedBytes.clear();
+        return this.encryptedBytes;
+    }
+
+    /**
+     * Gets cleared buffer for decoded characters with at least the specified capacity.
+     */
+    CharBuffer getChars( int capacity )
+    {
+        if ( this.chars.capacity() < capacity )
+        {
+            this.chars = CharBuffer.allocate( capacity );
+        }
+        this.chars.clear();
+        return this.chars;
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.mperever.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Represents {@link RandomSource} with one {@link SecureRandom} per thread,
+ * so threads do not contend on a shared generator. Each generator is seeded once
+ * and replaced with a freshly seeded one after the reseed interval.
+ *
+ * <p>By default DRBG is used if it is available (Java 9+), otherwise SHA1PRNG.
+ * SHA1PRNG generators are seeded from a shared non-blocking generator instead of
+ * the system seed source, which can block for a long time on hosts with little entropy.
+ *
+ * @author mperever
+ *
+ */
+public class ThreadLocalRandomSource implements RandomSource
+{
+    public static final long DEFAULT_RESEED_INTERVAL = 1L << 30; // in bytes
+
+    private static final String[] DEFAULT_ALGORITHMS = new String[] { "DRBG", "SHA1PRNG" };
+    private static final String SEEDED_ALGORITHM = "SHA1PRNG";
+    private static final int SEED_SIZE = 32; // in bytes
+
+    private final String algorithm;
+    private final long reseedInterval;
+    private final SecureRandom seedSource = new SecureRandom();
+    private final ThreadLocal<ThreadRandom> threadRandom = new ThreadLocal<>();
+
+    /**
+     * Constructor with default algorithm and reseed interval.
+     *
+     * @throws AesEncryptionException if no default random algorithm is found
+     */
+    public ThreadLocalRandomSource() throws AesEncryptionException
+    {
+        this( getDefaultAlgorithm(), DEFAULT_RESEED_INTERVAL );
+    }
+
+    /**
+     * Constructor with custom algorithm and reseed interval.
+     *
+     * @param algorithm The {@link SecureRandom} algorithm
+     * @param reseedInterval The number of bytes generated by one thread before reseeding
+     * @throws AesEncryptionException if random algorithm is not found
+     */
+    public ThreadLocalRandomSource( String algorithm, long reseedInterval ) throws AesEncryptionException
+    {
+        if ( reseedInterval <= 0 )
+        {
+            throw new IllegalArgumentException( "Reseed interval must be positive: " + reseedInterval );
+        }
+        this.algorithm = algorithm;
+        this.reseedInterval = reseedInterval;
+
+        // Fail fast if the algorithm is not available
+        newSecureRandom();
+    }
+
+    /**
+     * Gets the {@link SecureRandom} algorithm of generators.
+     *
+     * @return The random algorithm
+     */
+    public String getAlgorithm()
+    {
+        return this.algorithm;
+    }
+
+    @Override
+    public void nextBytes( byte[] bytes )
+    {
+        ThreadRandom random = this.threadRandom.get();
+        if ( random == null || random.generated >= this.reseedInterval )
+        {
+            random = new ThreadRandom( newSecureRandomUnchecked() );
+            this.threadRandom.set( random );
+        }
+        random.secureRandom.nextBytes( bytes );
+        random.generated += bytes.length;
+    }
+
+    private SecureRandom newSecureRandomUnchecked()
+    {
+        try
+        {
+            return newSecureRandom();
+        } catch ( AesEncryptionException ex )
+        {
+            // The algorithm is checked in constructor
+            throw new IllegalStateException( ex );
+        }
+    }
+
+    private SecureRandom newSecureRandom() throws AesEncryptionException
+    {
+        try
+        {
+            final SecureRandom secureRandom = SecureRandom.getInstance( this.algorithm );
+            if ( SEEDED_ALGORITHM.equals( this.algorithm ) )
+            {
+                // Seeding before the first use prevents self-seeding from the system seed source
+                final byte[] seed = new byte[SEED_SIZE];
+                this.seedSource.nextBytes( seed );
+                secureRandom.setSeed( seed );
+            }
+            return secureRandom;
+        } catch ( NoSuchAlgorithmException ex )
+        {
+            throw new AesEncryptionException( ex );
+        }
+    }
+
+    private static String getDefaultAlgorithm() throws AesEncryptionException
+    {
+        for ( String algorithm : DEFAULT_ALGORITHMS )
+        {
+            try
+            {
+                SecureRandom.getInstance( algorithm );
+                return algorithm;
+            } catch ( NoSuchAlgorithmException ex )
+            {
+                // try next algorithm
+            }
+        }
+        throw new AesEncryptionException( "No random algorithm is found" );
+    }
+
+    private static class ThreadRandom
+    {
+        private final SecureRandom secureRandom;
+        private long generated;
+
+        ThreadRandom( SecureRandom secureRandom )
+        {
+            this.secureRandom = secureRandom;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.mperever.crypto.metrics;
+
+/**
+ * Represents receiver of measurements of crypto operations.
+ * Implementations must be thread-safe and cheap, because they are called on every operation.
+ *
+ * @author mperever
+ *
+ */
+public interface CryptoMetrics
+{
+    /**
+     * Metrics which ignore all measurements, used by default.
+     */
+    CryptoMetrics NOOP = new CryptoMetrics()
+    {
+        @Override
+        public boolean isEnabled()
+        {
+            return false;
+        }
+
+        @Override
+        public void record( Operation operation, long payloadSize, long durationNanos, boolean success )
+        {
+        }
+    };
+
+    /**
+     * Checks whether measurements are recorded. Operations are not timed when the metrics are disabled.
+     *
+     * @return true if measurements are recorded
+     */
+    boolean isEnabled();
+
+    /**
+     * Records one operation.
+     *
+     * @param operation The operation
+     * @param payloadSize The size of processed data in bytes
+     * @param durationNanos The duration in nanoseconds, 0 for events which are not timed
+     * @param success false if the operation failed
+     */
+    void record( Operation operation, long payloadSize, long durationNanos, boolean success );
+}
@@ -0,0 +1,151 @@
+package com.github.mperever.crypto.metrics;
+
+import java.lang.management.ManagementFactory;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Represents metrics which keep counters and latency histograms per operation and
+ * payload size bucket, and expose them as JMX MBeans named
+ * {@code <domain>:type=CryptoMetrics,operation=<operation>,payloadSize=<bucket>}.
+ *
+ * <p>The instance is thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public class JmxCryptoMetrics implements CryptoMetrics
+{
+    public static final String DEFAULT_DOMAIN = "com.github.mperever.crypto";
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final PayloadSizeBucket[] BUCKETS = PayloadSizeBucket.values();
+
+    private final String domain;
+    private final OperationMetrics[][] metrics = new OperationMetrics[OPERATIONS.length][BUCKETS.length];
+
+    /**
+     * Constructor with default JMX domain.
+     */
+    public JmxCryptoMetrics()
+    {
+        this( DEFAULT_DOMAIN );
+    }
+
+    /**
+     * Constructor with custom JMX domain, e.g. to separate several instances.
+     *
+     * @param domain The JMX domain
+     */
+    public JmxCryptoMetrics( String domain )
+    {
+        this.domain = domain;
+        for ( int i = 0; i < OPERATIONS.length; i++ )
+        {
+            for ( int j = 0; j < BUCKETS.length; j++ )
+            {
+                this.metrics[i][j] = new OperationMetrics();
+            }
+        }
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return true;
+    }
+
+    @Override
+    public void record( Operation operation, long payloadSize, long durationNanos, boolean success )
+    {
+        this.metrics[operation.ordinal()][PayloadSizeBucket.of( payloadSize ).ordinal()]
+                .record( durationNanos, success );
+    }
+
+    /**
+     * Gets measurements of the operation in the payload size bucket.
+     *
+     * @param operation The operation
+     * @param bucket The payload size bucket
+     * @return The measurements
+     */
+    public OperationMetrics getMetrics( Operation operation, PayloadSizeBucket bucket )
+    {
+        return this.metrics[operation.ordinal()][bucket.ordinal()];
+    }
+
+    /**
+     * Registers MBeans in the platform MBean server.
+     *
+     * @throws JMException if MBeans with the same names are already registered
+     */
+    public void register() throws JMException
+    {
+        register( ManagementFactory.getPlatformMBeanServer() );
+    }
+
+    /**
+     * Registers MBeans in the MBean server.
+     *
+     * @param server The MBean server
+     * @throws JMException if MBeans with the same names are already registered
+     */
+    public void register( MBeanServer server ) throws JMException
+    {
+        for ( Operation operation : OPERATIONS )
+        {
+            for ( PayloadSizeBucket bucket : BUCKETS )
+            {
+                server.registerMBean( getMetrics( operation, bucket ), getObjectName( operation, bucket ) );
+            }
+        }
+    }
+
+    /**
+     * Unregisters MBeans from the platform MBean server.
+     */
+    public void unregister()
+    {
+        unregister( ManagementFactory.getPlatformMBeanServer() );
+    }
+
+    /**
+     * Unregisters MBeans from the MBean server. Missing MBeans are ignored.
+     *
+     * @param server The MBean server
+     */
+    public void unregister( MBeanServer server )
+    {
+        for ( Operation operation : OPERATIONS )
+        {
+            for ( PayloadSizeBucket bucket : BUCKETS )
+            {
+                try
+                {
+                    final ObjectName name = getObjectName( operation, bucket );
+                    if ( server.isRegistered( name ) )
+                    {
+                        server.unregisterMBean( name );
+                    }
+                } catch ( InstanceNotFoundException ex )
+                {
+                    // unregistered concurrently
+                } catch ( JMException ex )
+                {
+                    throw new IllegalStateException( ex );
+                }
+            }
+        }
+    }
+
+    private ObjectName getObjectName( Operation operation, PayloadSizeBucket bucket )
+            throws MalformedObjectNameException
+    {
+        return new ObjectName( this.domain
+                + ":type=CryptoMetrics,operation=" + operation
+                + ",payloadSize=" + bucket );
+    }
+}
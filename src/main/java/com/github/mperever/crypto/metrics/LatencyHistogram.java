@@ -0,0 +1,121 @@
+package com.github.mperever.crypto.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents histogram of latencies with log-linear buckets, similar to HdrHistogram.
+ * Each power of two is split into 8 linear buckets, so recorded values are kept
+ * with relative error below 12.5%. Recording is lock-free and does not allocate.
+ *
+ * <p>The instance is thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = ( Long.SIZE - SUB_BUCKET_BITS ) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKET_COUNT );
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Records one value.
+     *
+     * @param value The non-negative value, e.g. latency in nanoseconds
+     */
+    public void record( long value )
+    {
+        final long recorded = Math.max( 0, value );
+        this.counts.incrementAndGet( getIndex( recorded ) );
+        this.totalCount.increment();
+        this.totalValue.add( recorded );
+
+        long max = this.maxValue.get();
+        while ( recorded > max && !this.maxValue.compareAndSet( max, recorded ) )
+        {
+            max = this.maxValue.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return this.totalCount.sum();
+    }
+
+    public long getMax()
+    {
+        return this.maxValue.get();
+    }
+
+    /**
+     * Gets mean of recorded values.
+     *
+     * @return The mean, or 0 if nothing is recorded
+     */
+    public double getMean()
+    {
+        final long count = this.totalCount.sum();
+        return count == 0 ? 0 : (double) this.totalValue.sum() / count;
+    }
+
+    /**
+     * Gets value at the percentile. The value is the upper bound of the bucket
+     * where the percentile falls, but not more than the maximum recorded value.
+     *
+     * @param percentile The percentile from 0 to 100
+     * @return The value, or 0 if nothing is recorded
+     */
+    public long getValueAtPercentile( double percentile )
+    {
+        long total = 0;
+        for ( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            total += this.counts.get( i );
+        }
+        if ( total == 0 )
+        {
+            return 0;
+        }
+
+        final long target = Math.max( 1, (long) Math.ceil( percentile / 100 * total ) );
+        long cumulative = 0;
+        for ( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            cumulative += this.counts.get( i );
+            if ( cumulative >= target )
+            {
+                return Math.min( getUpperBound( i ), getMax() );
+            }
+        }
+        return getMax();
+    }
+
+    static int getIndex( long value )
+    {
+        if ( value < SUB_BUCKET_COUNT )
+        {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros( value );
+        final int subBucket = (int) ( value >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKET_COUNT - 1 );
+        return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long getUpperBound( int index )
+    {
+        if ( index < SUB_BUCKET_COUNT )
+        {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        final long lowerBound = (long) ( SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT ) << ( exponent - SUB_BUCKET_BITS );
+        return lowerBound + ( 1L << ( exponent - SUB_BUCKET_BITS ) ) - 1;
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.mperever.crypto.metrics;
+
+/**
+ * Represents measured crypto operation.
+ *
+ * @author mperever
+ *
+ */
+public enum Operation
+{
+    ENCRYPT,
+    DECRYPT,
+
+    /**
+     * HMAC verification, only failures are recorded and they are not timed.
+     */
+    HMAC_VERIFY,
+
+    KEY_GENERATION,
+
+    /**
+     * Generation of random initialization vectors and nonces, recorded apart from key generation.
+     */
+    IV_GENERATION,
+
+    SERIALIZATION,
+    DESERIALIZATION,
+    COMPRESSION,
+    DECOMPRESSION
+}
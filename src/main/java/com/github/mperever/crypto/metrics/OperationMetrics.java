@@ -0,0 +1,86 @@
+package com.github.mperever.crypto.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents measurements of one operation in one payload size bucket:
+ * counters of successes and failures and histogram of latencies.
+ *
+ * <p>The instance is thread-safe.
+ *
+ * @author mperever
+ *
+ */
+public class OperationMetrics implements OperationMetricsMBean
+{
+    private final LongAdder successCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    void record( long durationNanos, boolean success )
+    {
+        if ( success )
+        {
+            this.successCount.increment();
+        } else
+        {
+            this.failureCount.increment();
+        }
+        if ( durationNanos > 0 )
+        {
+            this.latency.record( durationNanos );
+        }
+    }
+
+    /**
+     * Gets histogram of latencies of both successful and failed operations.
+     *
+     * @return The histogram in nanoseconds
+     */
+    public LatencyHistogram getLatency()
+    {
+        return this.latency;
+    }
+
+    @Override
+    public long getSuccessCount()
+    {
+        return this.successCount.sum();
+    }
+
+    @Override
+    public long getFailureCount()
+    {
+        return this.failureCount.sum();
+    }
+
+    @Override
+    public double getMeanNanos()
+    {
+        return this.latency.getMean();
+    }
+
+    @Override
+    public long getP50Nanos()
+    {
+        return this.latency.getValueAtPercentile( 50 );
+    }
+
+    @Override
+    public long getP99Nanos()
+    {
+        return this.latency.getValueAtPercentile( 99 );
+    }
+
+    @Override
+    public long getP999Nanos()
+    {
+        return this.latency.getValueAtPercentile( 99.9 );
+    }
+
+    @Override
+    public long getMaxNanos()
+    {
+        return this.latency.getMax();
+    }
+}
@@ -0,0 +1,24 @@
+package com.github.mperever.crypto.metrics;
+
+/**
+ * Represents JMX view of measurements of one operation in one payload size bucket.
+ *
+ * @author mperever
+ *
+ */
+public interface OperationMetricsMBean
+{
+    long getSuccessCount();
+
+    long getFailureCount();
+
+    double getMeanNanos();
+
+    long getP50Nanos();
+
+    long getP99Nanos();
+
+    long getP999Nanos();
+
+    long getMaxNanos();
+}
@@ -0,0 +1,52 @@
+package com.github.mperever.crypto.metrics;
+
+/**
+ * Represents range of payload sizes which operations are grouped by.
+ *
+ * @author mperever
+ *
+ */
+public enum PayloadSizeBucket
+{
+    UP_TO_1KB( 1024 ),
+    UP_TO_64KB( 64 * 1024 ),
+    UP_TO_1MB( 1024 * 1024 ),
+    ABOVE_1MB( Long.MAX_VALUE );
+
+    private static final PayloadSizeBucket[] BUCKETS = values();
+
+    private final long maxSize;
+
+    PayloadSizeBucket( long maxSize )
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets the bucket of the payload size.
+     *
+     * @param payloadSize The payload size in bytes
+     * @return The bucket
+     */
+    public static PayloadSizeBucket of( long payloadSize )
+    {
+        for ( PayloadSizeBucket bucket : BUCKETS )
+        {
+            if ( payloadSize <= bucket.maxSize )
+            {
+                return bucket;
+            }
+        }
+        return ABOVE_1MB;
+    }
+
+    /**
+     * Gets the maximum payload size of the bucket.
+     *
+     * @return The maximum size in bytes
+     */
+    public long getMaxSize()
+    {
+        return this.maxSize;
+    }
+}
@@ -0,0 +1,187 @@
+package com.github.mperever.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Represents Base64 encoding with basic alphabet and padding, the same as
+ * {@link java.util.Base64#getEncoder()}, which works with character sequences and
+ * appendables instead of intermediate arrays and strings.
+ *
+ * @author mperever
+ *
+ */
+public class Base64Utils
+{
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] INDEXES = new int[128];
+    private static final char PADDING = '=';
+
+    static
+    {
+        Arrays.fill( INDEXES, -1 );
+        for ( int i = 0; i < ALPHABET.length; i++ )
+        {
+            INDEXES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64Utils()
+    {
+    }
+
+    /**
+     * Encode bytes to Base64 and append them to the destination.
+     *
+     * @param source The source bytes
+     * @param offset The offset of the first byte to encode
+     * @param length The number of bytes to encode
+     * @param destination The destination to append characters to
+     * @throws IOException if the destination fails to append.
+     */
+    public static void encode( byte[] source, int offset, int length, Appendable destination ) throws IOException
+    {
+        final int end = offset + length;
+        int i = offset;
+        for ( ; i + 3 <= end; i += 3 )
+        {
+            final int bits = ( source[i] & 0xff ) << 16 | ( source[i + 1] & 0xff ) << 8 | source[i + 2] & 0xff;
+            destination.append( ALPHABET[bits >>> 18] )
+                    .append( ALPHABET[bits >>> 12 & 0x3f] )
+                    .append( ALPHABET[bits >>> 6 & 0x3f] )
+                    .append( ALPHABET[bits & 0x3f] );
+        }
+
+        final int rest = end - i;
+        if ( rest == 1 )
+        {
+            final int bits = ( source[i] & 0xff ) << 16;
+            destination.append( ALPHABET[bits >>> 18] )
+                    .append( ALPHABET[bits >>> 12 & 0x3f] )
+                    .append( PADDING )
+                    .append( PADDING );
+        } else if ( rest == 2 )
+        {
+            final int bits = ( source[i] & 0xff ) << 16 | ( source[i + 1] & 0xff ) << 8;
+            destination.append( ALPHABET[bits >>> 18] )
+                    .append( ALPHABET[bits >>> 12 & 0x3f] )
+                    .append( ALPHABET[bits >>> 6 & 0x3f] )
+                    .append( PADDING );
+        }
+    }
+
+    /**
+     * Get number of bytes decoded from Base64 characters.
+     * Characters are not validated.
+     *
+     * @param source The Base64 characters
+     * @return The number of decoded bytes.
+     */
+    public static int getDecodedSize( CharSequence source )
+    {
+        int length = source.length();
+        while ( length > 0 && source.charAt( length - 1 ) == PADDING )
+        {
+            length--;
+        }
+        return (int) ( length * 6L / 8 );
+    }
+
+    /**
+     * Decode Base64 characters to the destination array.
+     * Padding is optional, the same as for {@link java.util.Base64#getDecoder()}.
+     *
+     * @param source The Base64 characters
+     * @param destination The destination array, must fit {@link #getDecodedSize(CharSequence)} bytes
+     * @param offset The offset in the destination array
+     * @return The number of decoded bytes.
+     * @throws IllegalArgumentException if the source is not valid Base64.
+     */
+    public static int decode( CharSequence source, byte[] destination, int offset )
+    {
+        int length = source.length();
+        int padding = 0;
+        while ( length > 0 && source.charAt( length - 1 ) == PADDING && padding < 2 )
+        {
+            length--;
+            padding++;
+        }
+        if ( length % 4 == 1 || padding > 0 && ( length + padding ) % 4 != 0 )
+        {
+            throw new IllegalArgumentException( "Invalid Base64 length: " + source.length() );
+        }
+
+        int position = offset;
+        int bits = 0;
+        int bitCount = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            final char c = source.charAt( i );
+            final int index = c < INDEXES.length ? INDEXES[c] : -1;
+            if ( index < 0 )
+            {
+                throw new IllegalArgumentException( "Illegal Base64 character: " + (int) c );
+            }
+
+            bits = bits << 6 | index;
+            bitCount += 6;
+            if ( bitCount >= 8 )
+            {
+                bitCount -= 8;
+                destination[position++] = (byte) ( bits >>> bitCount );
+            }
+        }
+        return position - offset;
+    }
+
+    /**
+     * Decode range of bytes from Base64 characters to the destination array.
+     * Only characters of 4-character groups with the range are read and validated.
+     *
+     * @param source The Base64 characters
+     * @param byteOffset The offset of the range in decoded bytes
+     * @param byteLength The length of the range in bytes
+     * @param destination The destination array, must fit the range
+     * @param offset The offset in the destination array
+     * @throws IllegalArgumentException if the range exceeds {@link #getDecodedSize(CharSequence)}
+     *     or the characters are not valid Base64.
+     */
+    public static void decode( CharSequence source, int byteOffset, int byteLength, byte[] destination, int offset )
+    {
+        if ( byteOffset < 0 || byteLength < 0 || byteOffset + byteLength > getDecodedSize( source ) )
+        {
+            throw new IllegalArgumentException( "Invalid range of decoded bytes: " + byteOffset + ", " + byteLength );
+        }
+
+        // Each group of 4 characters is decoded to 3 bytes
+        int skip = byteOffset % 3;
+        int position = offset;
+        final int end = offset + byteLength;
+        int bits = 0;
+        int bitCount = 0;
+        for ( int i = byteOffset / 3 * 4; position < end; i++ )
+        {
+            final char c = source.charAt( i );
+            final int index = c < INDEXES.length ? INDEXES[c] : -1;
+            if ( index < 0 )
+            {
+                throw new IllegalArgumentException( "Illegal Base64 character: " + (int) c );
+            }
+
+            bits = bits << 6 | index;
+            bitCount += 6;
+            if ( bitCount >= 8 )
+            {
+                bitCount -= 8;
+                if ( skip > 0 )
+                {
+                    skip--;
+                } else
+                {
+                    destination[position++] = (byte) ( bits >>> bitCount );
+                }
+            }
+        }
+    }
+}
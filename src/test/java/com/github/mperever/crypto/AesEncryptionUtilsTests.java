@@ -1,7 +1,15 @@
 package com.github.mperever.crypto;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -94,4 +102,235 @@ public class AesEncryptionUtilsTests
         final byte[] decryptSource = AesEncryptionUtils.decrypt( publicData, PRIVATE_DATA );
         Assert.assertArrayEquals( "Decrypted bytes are wrong", source, decryptSource );
     }
-}
\ No newline at end of file
+
+    @Test
+    public void encryptAndDecryptStream_test() throws AesEncryptionException, IOException
+    {
+        // Source is larger than one chunk and not aligned to block size
+        final byte[] source = new byte[200003];
+        new Random( 1 ).nextBytes( source );
+
+        // Encrypt
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        AesEncryptionUtils.encrypt( new ByteArrayInputStream( source ), encrypted, PRIVATE_DATA );
+
+        // Decrypt
+        final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        AesEncryptionUtils.decrypt( new ByteArrayInputStream( encrypted.toByteArray() ), decrypted, PRIVATE_DATA );
+        Assert.assertArrayEquals( "Decrypted stream is wrong", source, decrypted.toByteArray() );
+    }
+
+    @Test
+    public void encryptAndDecryptChannel_test() throws AesEncryptionException, IOException
+    {
+        final byte[] source = TEXT.getBytes( StandardCharsets.UTF_8 );
+
+        // Encrypt
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        AesEncryptionUtils.encrypt( Channels.newChannel( new ByteArrayInputStream( source ) ),
+                Channels.newChannel( encrypted ),
+                PRIVATE_DATA );
+
+        // Decrypt
+        final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        AesEncryptionUtils.decrypt( Channels.newChannel( new ByteArrayInputStream( encrypted.toByteArray() ) ),
+                Channels.newChannel( decrypted ),
+                PRIVATE_DATA );
+        Assert.assertArrayEquals( "Decrypted channel is wrong", source, decrypted.toByteArray() );
+    }
+
+    @Test( expected = AesEncryptionException.class )
+    public void decryptTamperedStream_test() throws AesEncryptionException, IOException
+    {
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        AesEncryptionUtils.encrypt( new ByteArrayInputStream( TEXT.getBytes( StandardCharsets.UTF_8 ) ),
+                encrypted,
+                PRIVATE_DATA );
+        final byte[] tampered = encrypted.toByteArray();
+        tampered[INIT_VECTOR_SIZE] ^= 1;
+
+        AesEncryptionUtils.decrypt( new ByteArrayInputStream( tampered ), new ByteArrayOutputStream(), PRIVATE_DATA );
+    }
+
+    @Test
+    public void encryptAndDecryptDirectBuffer_test() throws AesEncryptionException
+    {
+        final byte[] source = TEXT.getBytes( StandardCharsets.UTF_8 );
+        final ByteBuffer sourceBuffer = ByteBuffer.allocateDirect( source.length );
+        sourceBuffer.put( source ).flip();
+
+        // Encrypt
+        final ByteBuffer encrypted = ByteBuffer.allocateDirect( 1024 );
+        AesEncryptionUtils.encrypt( sourceBuffer, encrypted, PRIVATE_DATA );
+        encrypted.flip();
+
+        // Encrypted buffer has the same layout as saved public data
+        final byte[] encryptedBytes = new byte[encrypted.remaining()];
+        encrypted.duplicate().get( encryptedBytes );
+        final EncryptedPublicData publicData =
+                EncryptedPublicData.fromString( Base64.getEncoder().encodeToString( encryptedBytes ) );
+        Assert.assertArrayEquals( "Decrypted bytes are wrong", source, AesEncryptionUtils.decrypt( publicData, PRIVATE_DATA ) );
+
+        // Decrypt
+        final ByteBuffer decrypted = ByteBuffer.allocateDirect( 1024 );
+        final int decryptedSize = AesEncryptionUtils.decrypt( encrypted, decrypted, PRIVATE_DATA );
+        Assert.assertEquals( "Decrypted size is wrong", source.length, decryptedSize );
+        Assert.assertFalse( "Source buffer is not consumed", encrypted.hasRemaining() );
+
+        decrypted.flip();
+        final byte[] decryptedBytes = new byte[decrypted.remaining()];
+        decrypted.get( decryptedBytes );
+        Assert.assertArrayEquals( "Decrypted buffer is wrong", source, decryptedBytes );
+    }
+
+    @Test
+    public void decryptView_test() throws AesEncryptionException
+    {
+        final byte[] source = new byte[] {1,2,3};
+        final EncryptedPublicData publicData = AesEncryptionUtils.encrypt( source, PRIVATE_DATA );
+
+        final byte[] decryptSource = AesEncryptionUtils.decrypt( publicData.asView(), PRIVATE_DATA );
+        Assert.assertArrayEquals( "Decrypted bytes are wrong", source, decryptSource );
+    }
+
+    @Test
+    public void encryptAndDecryptVersionedText_test() throws AesEncryptionException
+    {
+        for ( EncryptionMode mode : EncryptionMode.values() )
+        {
+            // Encrypt text
+            final EncryptedPublicData publicData = AesEncryptionUtils.encryptText( TEXT, PRIVATE_DATA, mode );
+            Assert.assertEquals( "Init vector length is wrong",
+                    mode.getInitVectorSize(),
+                    publicData.getInitVector().length );
+            final String encryptedText = publicData.saveToVersionedString();
+
+            // Decrypt text
+            final String actualDecryptedText =
+                    AesEncryptionUtils.decryptVersionedText( encryptedText, PRIVATE_DATA );
+            Assert.assertEquals( "Decrypted text is wrong for " + mode, TEXT, actualDecryptedText );
+        }
+    }
+
+    @Test( expected = AesEncryptionException.class )
+    public void decryptTamperedGcm_test() throws AesEncryptionException
+    {
+        final EncryptedPublicData publicData =
+                AesEncryptionUtils.encrypt( new byte[] {1,2,3}, PRIVATE_DATA, EncryptionMode.GCM );
+        final byte[] tampered = publicData.getEncryptedData();
+        tampered[0] ^= 1;
+
+        AesEncryptionUtils.decrypt( new EncryptedPublicData( tampered,
+                        publicData.getInitVector(),
+                        publicData.getHmac(),
+                        EncryptionMode.GCM ),
+                PRIVATE_DATA );
+    }
+
+    @Test
+    public void encryptAndDecryptBatch_test() throws AesEncryptionException
+    {
+        final List<byte[]> sources = Arrays.asList( new byte[] {1,2,3}, new byte[0], new byte[100] );
+
+        // Objects per source
+        final List<EncryptedPublicData> publicData = AesEncryptionUtils.encryptBatch( sources, PRIVATE_DATA );
+        final List<byte[]> decrypted = AesEncryptionUtils.decryptBatch( publicData, PRIVATE_DATA );
+
+        // Packed into one buffer
+        final PackedEncryptedData packedData = AesEncryptionUtils.encryptBatchPacked( sources, PRIVATE_DATA );
+        Assert.assertEquals( "Packed size is wrong", sources.size(), packedData.size() );
+        final List<byte[]> decryptedPacked = AesEncryptionUtils.decryptBatch( packedData, PRIVATE_DATA );
+
+        for ( int i = 0; i < sources.size(); i++ )
+        {
+            Assert.assertArrayEquals( "Decrypted bytes are wrong", sources.get( i ), decrypted.get( i ) );
+            Assert.assertArrayEquals( "Decrypted packed bytes are wrong", sources.get( i ), decryptedPacked.get( i ) );
+        }
+    }
+
+    @Test
+    public void encryptAndDecryptTextBatch_test() throws AesEncryptionException
+    {
+        final List<String> texts = Arrays.asList( TEXT, "", "\u043f\u0440\u0438\u0432\u0435\u0442" );
+
+        final List<String> encryptedTexts = AesEncryptionUtils.encryptTextBatch( texts, PRIVATE_DATA );
+
+        // Batch output is compatible with single text decryption
+        Assert.assertEquals( "Decrypted text is wrong",
+                TEXT,
+                AesEncryptionUtils.decryptText( encryptedTexts.get( 0 ), PRIVATE_DATA ) );
+        Assert.assertEquals( "Decrypted texts are wrong",
+                texts,
+                AesEncryptionUtils.decryptTextBatch( encryptedTexts, PRIVATE_DATA ) );
+    }
+
+    @Test
+    public void encryptAndDecryptCharSequence_test() throws AesEncryptionException, IOException
+    {
+        for ( String text : Arrays.asList( TEXT, "", "a", "ab", "\u043f\u0440\u0438\u0432\u0435\u0442 \ud83d\ude00" ) )
+        {
+            final StringBuilder encryptedText = new StringBuilder( "prefix:" );
+            AesEncryptionUtils.encryptText( new StringBuilder( text ), PRIVATE_DATA, encryptedText );
+            final String encrypted = encryptedText.substring( "prefix:".length() );
+
+            // Output is compatible with Base64 and legacy text format
+            final EncryptedPublicData publicData = EncryptedPublicData.fromString( encrypted );
+            Assert.assertEquals( "Encrypted text is wrong", encrypted, publicData.saveToString() );
+            Assert.assertEquals( "Decrypted text is wrong", text, AesEncryptionUtils.decryptText( encrypted, PRIVATE_DATA ) );
+
+            final StringBuilder decryptedText = new StringBuilder();
+            AesEncryptionUtils.decryptText( encrypted, PRIVATE_DATA, decryptedText );
+            Assert.assertEquals( "Decrypted text is wrong", text, decryptedText.toString() );
+            Assert.assertEquals( "Decrypted text is wrong",
+                    text,
+                    AesEncryptionUtils.decryptText( AesEncryptionUtils.encryptTextToString( text, PRIVATE_DATA ), PRIVATE_DATA ) );
+        }
+    }
+
+    @Test( expected = AesEncryptionException.class )
+    public void decryptInvalidBase64Text_test() throws AesEncryptionException
+    {
+        AesEncryptionUtils.decryptText( "not base64!", PRIVATE_DATA );
+    }
+
+    @Test
+    public void encryptDeterministic_test() throws AesEncryptionException
+    {
+        final byte[] source = TEXT.getBytes( StandardCharsets.UTF_8 );
+        final EncryptedPublicData first = AesEncryptionUtils.encryptDeterministic( source, PRIVATE_DATA );
+        final EncryptedPublicData second = AesEncryptionUtils.encryptDeterministic( source, PRIVATE_DATA );
+        final EncryptedPublicData other =
+                AesEncryptionUtils.encryptDeterministic( "Hello World?".getBytes( StandardCharsets.UTF_8 ), PRIVATE_DATA );
+
+        Assert.assertEquals( "Equal sources are encrypted differently", first.saveToString(), second.saveToString() );
+        Assert.assertFalse( "Different sources have the same initialization vector",
+                Arrays.equals( first.getInitVector(), other.getInitVector() ) );
+        Assert.assertArrayEquals( "Decrypted source is wrong",
+                source,
+                AesEncryptionUtils.decryptDeterministic( first, PRIVATE_DATA ) );
+    }
+
+    @Test
+    public void decryptDeterministicChangedInitVector_test() throws AesEncryptionException
+    {
+        final EncryptedPublicData publicData =
+                AesEncryptionUtils.encryptTextDeterministic( TEXT, PRIVATE_DATA );
+        final byte[] initVector = publicData.getInitVector();
+        initVector[0] ^= 1;
+
+        // HMAC covers encrypted data only, so the changed vector is detected by synthetic IV check
+        try
+        {
+            AesEncryptionUtils.decryptTextDeterministic(
+                    new EncryptedPublicData( publicData.getEncryptedData(), initVector, publicData.getHmac() ),
+                    PRIVATE_DATA );
+            Assert.fail( "Changed initialization vector is accepted" );
+        } catch ( AesEncryptionException ex )
+        {
+            // expected
+        }
+        Assert.assertEquals( "Decrypted text is wrong",
+                TEXT,
+                AesEncryptionUtils.decryptTextDeterministic( publicData, PRIVATE_DATA ) );
+    }
+}
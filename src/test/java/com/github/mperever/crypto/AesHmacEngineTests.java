@@ -0,0 +1,170 @@
+package com.github.mperever.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link AesHmacEngine} class.
+ *
+ * @author mperever
+ *
+ */
+public class AesHmacEngineTests
+{
+    private static final byte[] SOURCE = "Hello World!".getBytes( StandardCharsets.UTF_8 );
+    private static final int AES_KEY_SIZE = 32;
+    private static final int INIT_VECTOR_SIZE = 16;
+    private static final int HMAC_KEY_SIZE = 32;
+
+    @Test
+    public void encryptAndDecrypt_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData privateData = new EncryptedPrivateData(
+                AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        final AesHmacEngine engine = new AesHmacEngine( privateData );
+
+        // The engine is reused for several messages
+        for ( int i = 0; i < 3; i++ )
+        {
+            final EncryptedPublicData publicData = engine.encrypt( SOURCE, AesEncryptionUtils.getIv() );
+            Assert.assertArrayEquals( "Decrypted bytes are wrong", SOURCE, engine.decrypt( publicData ) );
+        }
+    }
+
+    @Test
+    public void sameOutputAsStaticApi_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( new byte[AES_KEY_SIZE], new byte[HMAC_KEY_SIZE] );
+        final byte[] initVector = new byte[INIT_VECTOR_SIZE];
+
+        final EncryptedPublicData expected = new AesHmacEngine( privateData ).encrypt( SOURCE, initVector );
+        final EncryptedPublicData actual = AesEncryptionUtils.encrypt( SOURCE, initVector, privateData );
+
+        Assert.assertEquals( "Encrypted data is wrong", expected.saveToString(), actual.saveToString() );
+    }
+
+    @Test
+    public void forCurrentThread_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData firstData =
+                new EncryptedPrivateData( new byte[AES_KEY_SIZE], new byte[HMAC_KEY_SIZE] );
+        final EncryptedPrivateData secondData = new EncryptedPrivateData(
+                AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+
+        final AesHmacEngine engine = AesHmacEngine.forCurrentThread( firstData );
+        Assert.assertSame( "Engine is not reused", engine, AesHmacEngine.forCurrentThread( firstData ) );
+
+        final AesHmacEngine otherEngine = AesHmacEngine.forCurrentThread( secondData );
+        Assert.assertSame( "Engine is bound to wrong keys", secondData, otherEngine.getPrivateData() );
+
+        // The earlier engine keeps its own keys after the thread is bound to other keys
+        final EncryptedPublicData publicData = engine.encrypt( SOURCE, new byte[INIT_VECTOR_SIZE] );
+        Assert.assertArrayEquals( "Earlier engine uses wrong keys",
+                SOURCE,
+                new AesHmacEngine( firstData ).decrypt( publicData ) );
+    }
+
+    @Test
+    public void failedStreamDoesNotAffectNextOperation_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData privateData = new EncryptedPrivateData(
+                AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        final AesHmacEngine engine = new AesHmacEngine( privateData );
+        final byte[] expectedHmac = new AesHmacEngine( privateData ).getHmac( SOURCE );
+
+        // The stream fails after the header and some source bytes are MACed
+        final InputStream failingStream = new InputStream()
+        {
+            private int count;
+
+            @Override
+            public int read() throws IOException
+            {
+                if ( ++this.count > SOURCE.length )
+                {
+                    throw new IOException( "Stream is broken" );
+                }
+                return SOURCE[this.count - 1];
+            }
+        };
+        try
+        {
+            engine.encrypt( failingStream, new ByteArrayOutputStream(), AesEncryptionUtils.getIv() );
+            Assert.fail( "Broken stream is not reported" );
+        } catch ( IOException ex )
+        {
+            // expected
+        }
+
+        Assert.assertArrayEquals( "HMAC is wrong after failed stream", expectedHmac, engine.getHmac( SOURCE ) );
+        final EncryptedPublicData publicData = engine.encrypt( SOURCE, AesEncryptionUtils.getIv() );
+        Assert.assertArrayEquals( "Decrypted bytes are wrong after failed stream",
+                SOURCE,
+                engine.decrypt( publicData ) );
+    }
+
+    @Test( expected = AesEncryptionException.class )
+    public void decryptWithWrongHmacKey_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( new byte[AES_KEY_SIZE], new byte[HMAC_KEY_SIZE] );
+        final EncryptedPrivateData wrongData =
+                new EncryptedPrivateData( new byte[AES_KEY_SIZE], AesEncryptionUtils.getHmacKey() );
+
+        final EncryptedPublicData publicData =
+                new AesHmacEngine( privateData ).encrypt( SOURCE, new byte[INIT_VECTOR_SIZE] );
+        new AesHmacEngine( wrongData ).decrypt( publicData );
+    }
+
+    @Test
+    public void rejectMalformedBeforeHmac_test() throws AesEncryptionException
+    {
+        final AesHmacEngine engine = new AesHmacEngine( new EncryptedPrivateData(
+                AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() ) );
+        final EncryptedPublicData publicData = engine.encrypt( SOURCE, AesEncryptionUtils.getIv() );
+        final byte[] encrypted = publicData.getEncryptedData();
+
+        final EncryptedPublicData truncated = new EncryptedPublicData(
+                Arrays.copyOf( encrypted, encrypted.length - 1 ), publicData.getInitVector(), publicData.getHmac() );
+        assertRejected( "Invalid encrypted data size", () -> engine.decrypt( truncated ) );
+
+        final EncryptedPublicData shortInitVector =
+                new EncryptedPublicData( encrypted, new byte[INIT_VECTOR_SIZE - 1], publicData.getHmac() );
+        assertRejected( "Invalid initialization vector size", () -> engine.decrypt( shortInitVector ) );
+
+        final EncryptedPublicData longHmac =
+                new EncryptedPublicData( encrypted, publicData.getInitVector(), new byte[HMAC_KEY_SIZE + 1] );
+        assertRejected( "Invalid HMAC size", () -> engine.decrypt( longHmac ) );
+
+        assertRejected( "Invalid encrypted data size", () -> engine.decryptText( "AAAA" ) );
+
+        final byte[] hmac = publicData.getHmac();
+        hmac[hmac.length - 1] ^= 1;
+        final EncryptedPublicData tampered = new EncryptedPublicData( encrypted, publicData.getInitVector(), hmac );
+        assertRejected( "Invalid HMAC", () -> engine.decrypt( tampered ) );
+    }
+
+    private static void assertRejected( String expectedMessage, Decryption decryption )
+    {
+        try
+        {
+            decryption.run();
+            Assert.fail( "Malformed input is accepted" );
+        } catch ( AesEncryptionException ex )
+        {
+            Assert.assertTrue( "Wrong rejection: " + ex.getMessage(), ex.getMessage().startsWith( expectedMessage ) );
+        }
+    }
+
+    private interface Decryption
+    {
+        void run() throws AesEncryptionException;
+    }
+}
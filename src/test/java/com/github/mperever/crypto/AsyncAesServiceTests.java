@@ -0,0 +1,141 @@
+package com.github.mperever.crypto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link AsyncAesService} class.
+ *
+ * @author mperever
+ *
+ */
+public class AsyncAesServiceTests
+{
+    @Test
+    public void encryptAndDecryptConcurrently_test() throws Exception
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        final ExecutorService executor = AsyncAesService.newPlatformExecutor( 4, 1024 );
+        try ( AsyncAesService service = new AsyncAesService( privateData,
+                executor,
+                1000,
+                AsyncAesService.OverflowPolicy.BLOCK,
+                AsyncAesService.DEFAULT_BATCH_THRESHOLD,
+                8 ) )
+        {
+            // Small sources are micro-batched, large ones are processed separately
+            final List<byte[]> sources = new ArrayList<>();
+            final List<CompletableFuture<EncryptedPublicData>> encrypted = new ArrayList<>();
+            for ( int i = 0; i < 200; i++ )
+            {
+                final byte[] source = new byte[i % 10 == 0 ? 100_000 + i : i];
+                if ( source.length > 0 )
+                {
+                    source[0] = (byte) i;
+                }
+                sources.add( source );
+                encrypted.add( service.encrypt( source ) );
+            }
+
+            final List<CompletableFuture<byte[]>> decrypted = new ArrayList<>();
+            for ( CompletableFuture<EncryptedPublicData> future : encrypted )
+            {
+                decrypted.add( future.thenCompose( service::decrypt ) );
+            }
+            for ( int i = 0; i < sources.size(); i++ )
+            {
+                Assert.assertArrayEquals( "Decrypted source is wrong", sources.get( i ), decrypted.get( i ).get() );
+            }
+            Assert.assertEquals( "Requests are still pending", 0, service.getPendingRequestCount() );
+        } finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectAboveMaximum_test() throws Exception
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+
+        // Tasks are held until the test runs them
+        final List<Runnable> tasks = new ArrayList<>();
+        final AsyncAesService service =
+                new AsyncAesService( privateData, tasks::add, 1, AsyncAesService.OverflowPolicy.REJECT, 0, 1 );
+
+        final CompletableFuture<EncryptedPublicData> accepted = service.encrypt( new byte[] {1} );
+        final CompletableFuture<EncryptedPublicData> rejected = service.encrypt( new byte[] {2} );
+        try
+        {
+            rejected.get();
+            Assert.fail( "Request above maximum is not rejected" );
+        } catch ( ExecutionException ex )
+        {
+            Assert.assertTrue( "Wrong rejection", ex.getCause() instanceof RejectedExecutionException );
+        }
+
+        tasks.forEach( Runnable::run );
+        Assert.assertArrayEquals( "Decrypted source is wrong",
+                new byte[] {1},
+                AesEncryptionUtils.decrypt( accepted.get(), privateData ) );
+    }
+
+    @Test
+    public void callerRunsAboveMaximum_test() throws Exception
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        final List<Runnable> tasks = new ArrayList<>();
+        final AsyncAesService service =
+                new AsyncAesService( privateData, tasks::add, 1, AsyncAesService.OverflowPolicy.CALLER_RUNS, 0, 1 );
+
+        service.encrypt( new byte[] {1} );
+        final CompletableFuture<EncryptedPublicData> inline = service.encrypt( new byte[] {2} );
+        Assert.assertTrue( "Request above maximum is not run by caller", inline.isDone() );
+        Assert.assertArrayEquals( "Decrypted source is wrong",
+                new byte[] {2},
+                AesEncryptionUtils.decrypt( inline.get(), privateData ) );
+    }
+
+    @Test
+    public void cancelReleasesPendingSlot_test() throws Exception
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        final List<Runnable> tasks = new ArrayList<>();
+        final AsyncAesService service =
+                new AsyncAesService( privateData, tasks::add, 4, AsyncAesService.OverflowPolicy.REJECT, 0, 1 );
+
+        for ( int i = 0; i < 4; i++ )
+        {
+            Assert.assertTrue( "Request is not cancelled", service.encrypt( new byte[] {(byte) i} ).cancel( false ) );
+        }
+        Assert.assertEquals( "Cancelled requests are still pending", 0, service.getPendingRequestCount() );
+
+        final List<CompletableFuture<EncryptedPublicData>> accepted = new ArrayList<>();
+        for ( int i = 0; i < 4; i++ )
+        {
+            final CompletableFuture<EncryptedPublicData> future = service.encrypt( new byte[] {(byte) i} );
+            Assert.assertFalse( "Request after cancellation is rejected", future.isDone() );
+            accepted.add( future );
+        }
+
+        tasks.forEach( Runnable::run );
+        for ( int i = 0; i < accepted.size(); i++ )
+        {
+            Assert.assertArrayEquals( "Decrypted source is wrong",
+                    new byte[] {(byte) i},
+                    AesEncryptionUtils.decrypt( accepted.get( i ).get(), privateData ) );
+        }
+        Assert.assertEquals( "Requests are still pending", 0, service.getPendingRequestCount() );
+    }
+}
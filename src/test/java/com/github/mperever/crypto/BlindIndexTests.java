@@ -0,0 +1,52 @@
+package com.github.mperever.crypto;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link BlindIndex} class.
+ *
+ * @author mperever
+ *
+ */
+public class BlindIndexTests
+{
+    @Test
+    public void findAndUpdate_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        final String[] column = { "alice", "bob", "alice", "carol" };
+
+        final BlindIndex<Integer> index = new BlindIndex<>( privateData );
+        for ( int row = 0; row < column.length; row++ )
+        {
+            index.put( row, AesEncryptionUtils.encryptTextDeterministic( column[row], privateData ) );
+        }
+
+        // Record with random initialization vector is rejected
+        try
+        {
+            index.put( 4, AesEncryptionUtils.encryptText( "alice", privateData ) );
+            Assert.fail( "Record with random initialization vector is indexed" );
+        } catch ( AesEncryptionException ex )
+        {
+            // expected
+        }
+
+        Assert.assertEquals( "Wrong rows", new HashSet<>( Arrays.asList( 0, 2 ) ), index.findText( "alice" ) );
+        Assert.assertEquals( "Wrong rows", Collections.singleton( 3 ), index.findText( "carol" ) );
+        Assert.assertTrue( "Missing value is found", index.findText( "dave" ).isEmpty() );
+
+        index.put( 2, AesEncryptionUtils.encryptTextDeterministic( "dave", privateData ) );
+        index.remove( 3 );
+        Assert.assertEquals( "Updated row is found", Collections.singleton( 0 ), index.findText( "alice" ) );
+        Assert.assertEquals( "Wrong rows", Collections.singleton( 2 ), index.findText( "dave" ) );
+        Assert.assertTrue( "Removed row is found", index.findText( "carol" ).isEmpty() );
+        Assert.assertEquals( "Wrong size", 3, index.size() );
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.mperever.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link CompressingEncryption} class.
+ *
+ * @author mperever
+ *
+ */
+public class CompressingEncryptionTests
+{
+    @Test
+    public void compressText_test() throws AesEncryptionException
+    {
+        final CompressingEncryption encryption = new CompressingEncryption( newPrivateData() );
+        final String text = newJsonText( 200 );
+
+        final byte[] encrypted = encryption.encrypt( text.getBytes( StandardCharsets.UTF_8 ) );
+        Assert.assertEquals( "Wrong codec", CompressionCodec.getDefault(), CompressingEncryption.getCodec( encrypted ) );
+        Assert.assertTrue( "Text is not compressed: " + encrypted.length, encrypted.length < text.length() / 4 );
+        Assert.assertEquals( "Decrypted text is wrong",
+                text,
+                new String( encryption.decrypt( encrypted ), StandardCharsets.UTF_8 ) );
+
+        final String encryptedText = encryption.encryptText( text );
+        Assert.assertEquals( "Decrypted text is wrong", text, encryption.decryptText( encryptedText ) );
+    }
+
+    @Test
+    public void compressAllSizes_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData privateData = newPrivateData();
+        final CompressingEncryption encryption =
+                new CompressingEncryption( privateData, EncryptionMode.GCM, CompressionCodec.DEFLATE, 1 );
+        final byte[] text = newJsonText( 100 ).getBytes( StandardCharsets.UTF_8 );
+        for ( int size = 0; size < 600; size++ )
+        {
+            final byte[] source = Arrays.copyOf( text, size );
+            Assert.assertArrayEquals( "Decrypted source is wrong, size " + size,
+                    source,
+                    encryption.decrypt( encryption.encrypt( source ) ) );
+        }
+    }
+
+    @Test
+    public void skipIncompressible_test() throws AesEncryptionException
+    {
+        final CompressingEncryption encryption = new CompressingEncryption( newPrivateData() );
+
+        final byte[] randomSource = new byte[20000];
+        new Random( 1 ).nextBytes( randomSource );
+        final byte[] encrypted = encryption.encrypt( randomSource );
+        Assert.assertEquals( "Random source is compressed",
+                CompressionCodec.NONE,
+                CompressingEncryption.getCodec( encrypted ) );
+        Assert.assertArrayEquals( "Decrypted source is wrong", randomSource, encryption.decrypt( encrypted ) );
+
+        final byte[] smallSource = "{\"a\":1,\"a\":1,\"a\":1}".getBytes( StandardCharsets.UTF_8 );
+        Assert.assertEquals( "Small source is compressed",
+                CompressionCodec.NONE,
+                CompressingEncryption.getCodec( encryption.encrypt( smallSource ) ) );
+    }
+
+    @Test
+    public void rejectChangedCodec_test() throws AesEncryptionException
+    {
+        final CompressingEncryption encryption = new CompressingEncryption( newPrivateData(),
+                EncryptionMode.CBC_HMAC_SHA256,
+                CompressionCodec.DEFLATE,
+                CompressingEncryption.DEFAULT_MIN_SIZE );
+        final byte[] encrypted = encryption.encrypt( newJsonText( 50 ).getBytes( StandardCharsets.UTF_8 ) );
+
+        encrypted[2] = CompressionCodec.NONE.getId();
+        try
+        {
+            encryption.decrypt( encrypted );
+            Assert.fail( "Changed codec is accepted" );
+        } catch ( AesEncryptionException ex )
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void decryptVersionOne_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData privateData = newPrivateData();
+        final byte[] source = "Test text of version 1".getBytes( StandardCharsets.UTF_8 );
+        final EncryptedPublicData publicData = AesEncryptionUtils.encrypt( source, privateData, EncryptionMode.GCM );
+        final ByteBuffer record = ByteBuffer.allocate( publicData.getSerializedSize() );
+        publicData.writeTo( record );
+
+        Assert.assertArrayEquals( "Decrypted source is wrong",
+                source,
+                new CompressingEncryption( privateData ).decrypt( record.array() ) );
+    }
+
+    private static String newJsonText( int count )
+    {
+        final StringBuilder builder = new StringBuilder( "[" );
+        for ( int i = 0; i < count; i++ )
+        {
+            builder.append( "{\"id\":" ).append( i ).append( ",\"level\":\"INFO\",\"message\":\"Request processed\"}," );
+        }
+        return builder.append( "]" ).toString();
+    }
+
+    private static EncryptedPrivateData newPrivateData() throws AesEncryptionException
+    {
+        return new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+    }
+}
@@ -0,0 +1,33 @@
+package com.github.mperever.crypto;
+
+import javax.crypto.Cipher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link CryptoProviders} class.
+ *
+ * @author mperever
+ *
+ */
+public class CryptoProvidersTests
+{
+    @Test
+    public void probeProviders_test() throws Exception
+    {
+        for ( String transformation : new String[] { AesHmacEngine.CIPHER_TRANSFORMATION, AesGcmEngine.CIPHER_TRANSFORMATION } )
+        {
+            final CryptoProviders.ProbeResult result = CryptoProviders.getCipherProbe( transformation );
+            Assert.assertNotNull( "Provider is not chosen for " + transformation, result.getProvider() );
+
+            // The chosen provider is used by engines
+            final Cipher cipher = CryptoProviders.newCipher( transformation );
+            Assert.assertSame( "Engine provider is wrong", result.getProvider(), cipher.getProvider() );
+            Assert.assertSame( "Probe is repeated", result, CryptoProviders.getCipherProbe( transformation ) );
+        }
+
+        final CryptoProviders.ProbeResult macResult = CryptoProviders.getMacProbe( AesHmacEngine.HMAC_ALGORITHM );
+        Assert.assertNotNull( "Provider is not chosen for HMAC", macResult.getProvider() );
+    }
+}
@@ -1,5 +1,7 @@
 package com.github.mperever.crypto;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -31,4 +33,106 @@ public class EncryptedPublicDataTests
         Assert.assertArrayEquals( "Init vectors do not equal", initVector, actualData.getInitVector() );
         Assert.assertArrayEquals( "HMACs do not equal", hmac, actualData.getHmac() );
     }
-}
\ No newline at end of file
+
+    @Test
+    public void wrapView_test() throws AesEncryptionException
+    {
+        final byte[] encryptedData = new byte[] {1,2,3};
+        final byte[] initVector = new byte[] {4,5};
+        final byte[] hmac = new byte[] {'a','b'};
+        final byte[] savedData = new byte[] {1,2,3,'a','b',4,5};
+
+        final EncryptedPublicDataView view =
+                EncryptedPublicDataView.wrap( ByteBuffer.wrap( savedData ), initVector.length, hmac.length );
+
+        Assert.assertEquals( "Encrypted data does not equal", ByteBuffer.wrap( encryptedData ), view.getEncryptedData() );
+        Assert.assertEquals( "Init vectors do not equal", ByteBuffer.wrap( initVector ), view.getInitVector() );
+        Assert.assertEquals( "HMACs do not equal", ByteBuffer.wrap( hmac ), view.getHmac() );
+        Assert.assertTrue( "View is not read-only", view.getEncryptedData().isReadOnly() );
+    }
+
+    @Test
+    public void saveAndFromVersioned_test()
+    {
+        final byte[] encryptedData = new byte[] {1,2,3};
+        final byte[] nonce = new byte[EncryptionMode.GCM.getInitVectorSize()];
+        final byte[] tag = new byte[EncryptionMode.GCM.getTagSize()];
+        nonce[0] = 4;
+        tag[0] = 'a';
+
+        // Save
+        final EncryptedPublicData expectedData =
+                new EncryptedPublicData( encryptedData, nonce, tag, EncryptionMode.GCM );
+        final String encryptedText = expectedData.saveToVersionedString();
+
+        // From
+        final EncryptedPublicData actualData = EncryptedPublicData.fromVersionedString( encryptedText );
+
+        Assert.assertEquals( "Modes do not equal", EncryptionMode.GCM, actualData.getMode() );
+        Assert.assertArrayEquals( "Encrypted data does not equal", encryptedData, actualData.getEncryptedData() );
+        Assert.assertArrayEquals( "Nonces do not equal", nonce, actualData.getInitVector() );
+        Assert.assertArrayEquals( "Tags do not equal", tag, actualData.getHmac() );
+    }
+
+    @Test
+    public void saveGcmToLegacyString_test()
+    {
+        final EncryptedPublicData publicData = new EncryptedPublicData( new byte[] {1,2,3},
+                new byte[EncryptionMode.GCM.getInitVectorSize()],
+                new byte[EncryptionMode.GCM.getTagSize()],
+                EncryptionMode.GCM );
+        try
+        {
+            publicData.saveToString();
+            Assert.fail( "GCM data is saved in legacy format" );
+        } catch ( IllegalStateException ex )
+        {
+            // expected
+        }
+        Assert.assertEquals( "Versioned GCM data is wrong",
+                EncryptionMode.GCM,
+                EncryptedPublicData.fromVersionedString( publicData.saveToVersionedString() ).getMode() );
+    }
+
+    @Test
+    public void writeToAndReadFrom_test() throws AesEncryptionException
+    {
+        final byte[] encryptedData = new byte[] {1,2,3};
+        final byte[] initVector = new byte[EncryptionMode.CBC_HMAC_SHA256.getInitVectorSize()];
+        final byte[] hmac = new byte[EncryptionMode.CBC_HMAC_SHA256.getTagSize()];
+        initVector[0] = 4;
+        hmac[0] = 'a';
+
+        final EncryptedPublicData expectedData = new EncryptedPublicData( encryptedData, initVector, hmac );
+        final ByteBuffer buffer = ByteBuffer.allocate( expectedData.getSerializedSize() );
+        expectedData.writeTo( buffer );
+        Assert.assertFalse( "Buffer is not filled", buffer.hasRemaining() );
+        buffer.flip();
+
+        // View parses the same bytes without copying
+        final EncryptedPublicDataView view = EncryptedPublicDataView.wrapVersioned( buffer );
+        Assert.assertEquals( "Buffer position is changed", 0, buffer.position() );
+        Assert.assertEquals( "Modes do not equal", EncryptionMode.CBC_HMAC_SHA256, view.getMode() );
+        Assert.assertEquals( "Encrypted data does not equal", ByteBuffer.wrap( encryptedData ), view.getEncryptedData() );
+
+        final EncryptedPublicData actualData = EncryptedPublicData.readFrom( buffer );
+        Assert.assertFalse( "Buffer is not consumed", buffer.hasRemaining() );
+        Assert.assertArrayEquals( "Encrypted data does not equal", encryptedData, actualData.getEncryptedData() );
+        Assert.assertArrayEquals( "Init vectors do not equal", initVector, actualData.getInitVector() );
+        Assert.assertArrayEquals( "HMACs do not equal", hmac, actualData.getHmac() );
+    }
+
+    @Test( expected = AesEncryptionException.class )
+    public void readFromTruncated_test() throws AesEncryptionException
+    {
+        final EncryptedPublicData publicData = new EncryptedPublicData( new byte[] {1,2,3},
+                new byte[EncryptionMode.GCM.getInitVectorSize()],
+                new byte[EncryptionMode.GCM.getTagSize()],
+                EncryptionMode.GCM );
+        final ByteBuffer buffer = ByteBuffer.allocate( publicData.getSerializedSize() );
+        publicData.writeTo( buffer );
+        buffer.flip().limit( 10 );
+
+        EncryptedPublicData.readFrom( buffer );
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.mperever.crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link EngineKey} class.
+ *
+ * @author mperever
+ *
+ */
+public class EngineKeyTests
+{
+    @Test
+    public void destroyZeroesOwnedArray_test()
+    {
+        final byte[] keyBytes = new byte[32];
+        keyBytes[0] = 1;
+        final EngineKey key = new EngineKey( keyBytes, "AES" );
+
+        final byte[] encoded = key.getEncoded();
+        Assert.assertNotSame( "Encoded key is not a copy", keyBytes, encoded );
+        Assert.assertArrayEquals( "Encoded key is wrong", keyBytes, encoded );
+
+        key.destroy();
+        Assert.assertTrue( "Key is not destroyed", key.isDestroyed() );
+        Assert.assertArrayEquals( "Owned array is not zeroed", new byte[32], keyBytes );
+        try
+        {
+            key.getEncoded();
+            Assert.fail( "Destroyed key is encoded" );
+        } catch ( IllegalStateException ex )
+        {
+            // expected
+        }
+    }
+}
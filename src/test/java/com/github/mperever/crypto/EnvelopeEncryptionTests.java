@@ -0,0 +1,97 @@
+package com.github.mperever.crypto;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link EnvelopeEncryption} class.
+ *
+ * @author mperever
+ *
+ */
+public class EnvelopeEncryptionTests
+{
+    private static final String TEXT = "Test text for envelope encryption";
+
+    @Test
+    public void encryptAndDecryptText_test() throws AesEncryptionException
+    {
+        final EnvelopeEncryption envelope = new EnvelopeEncryption( newKeyEncryptionKey() );
+
+        final String encryptedText = envelope.encryptText( TEXT );
+        Assert.assertEquals( "Decrypted text is wrong", TEXT, envelope.decryptText( encryptedText ) );
+        Assert.assertEquals( "Data key is not reused", 1, envelope.getRotationCount() );
+    }
+
+    @Test
+    public void rotateDataKeyByMessageCount_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData keyEncryptionKey = newKeyEncryptionKey();
+        final EnvelopeEncryption encryption =
+                new EnvelopeEncryption( keyEncryptionKey, 2, 1, TimeUnit.HOURS, 10 );
+
+        final Set<String> wrappedKeys = new HashSet<>();
+        final byte[][] messages = new byte[5][];
+        for ( int i = 0; i < messages.length; i++ )
+        {
+            messages[i] = encryption.encrypt( new byte[] {(byte) i} );
+            wrappedKeys.add( Arrays.toString( Arrays.copyOfRange( messages[i],
+                    EnvelopeEncryption.HEADER_SIZE, EnvelopeEncryption.HEADER_SIZE + 16 ) ) );
+        }
+        Assert.assertEquals( "Wrong number of rotations", 3, encryption.getRotationCount() );
+        Assert.assertEquals( "Wrong number of data keys", 3, wrappedKeys.size() );
+
+        // Another instance with the same master key unwraps each data key once
+        final EnvelopeEncryption decryption = new EnvelopeEncryption( keyEncryptionKey );
+        for ( int round = 0; round < 2; round++ )
+        {
+            for ( int i = 0; i < messages.length; i++ )
+            {
+                Assert.assertArrayEquals( "Decrypted source is wrong",
+                        new byte[] {(byte) i},
+                        decryption.decrypt( messages[i] ) );
+            }
+        }
+        Assert.assertEquals( "Data keys are unwrapped again", 3, decryption.getKeyCache().getMissCount() );
+    }
+
+    @Test
+    public void decryptWithWrongKeyEncryptionKey_test() throws AesEncryptionException
+    {
+        final byte[] message = new EnvelopeEncryption( newKeyEncryptionKey() ).encrypt( new byte[] {1, 2, 3} );
+        try
+        {
+            new EnvelopeEncryption( newKeyEncryptionKey() ).decrypt( message );
+            Assert.fail( "Data key is unwrapped with wrong master key" );
+        } catch ( AesEncryptionException ex )
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void decryptTamperedWrappedKey_test() throws AesEncryptionException
+    {
+        final EnvelopeEncryption envelope = new EnvelopeEncryption( newKeyEncryptionKey() );
+        final byte[] message = envelope.encrypt( new byte[] {1, 2, 3} );
+        message[EnvelopeEncryption.HEADER_SIZE] ^= 1;
+        try
+        {
+            envelope.decrypt( message );
+            Assert.fail( "Tampered data key is accepted" );
+        } catch ( AesEncryptionException ex )
+        {
+            // expected
+        }
+    }
+
+    private static EncryptedPrivateData newKeyEncryptionKey() throws AesEncryptionException
+    {
+        return new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.mperever.crypto;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link KeyCache} class.
+ *
+ * @author mperever
+ *
+ */
+public class KeyCacheTests
+{
+    private static final String TEXT = "Hello World!";
+    private static final int AES_KEY_SIZE = 32;
+    private static final int HMAC_KEY_SIZE = 32;
+
+    @Test
+    public void encryptAndDecryptByKeyId_test() throws AesEncryptionException
+    {
+        final AtomicInteger loadCount = new AtomicInteger();
+        final KeyCache keyCache = new KeyCache( 10, keyId ->
+        {
+            loadCount.incrementAndGet();
+            return newPrivateData( keyId );
+        } );
+
+        final EncryptedPublicData publicData = AesEncryptionUtils.encryptText( TEXT, "tenant1", keyCache );
+        final String actualText = AesEncryptionUtils.decryptText( publicData.saveToString(), "tenant1", keyCache );
+        Assert.assertEquals( "Decrypted text is wrong", TEXT, actualText );
+
+        // Same keys as raw private data
+        Assert.assertEquals( "Decrypted text is wrong",
+                TEXT,
+                AesEncryptionUtils.decryptText( publicData.saveToString(), newPrivateData( "tenant1" ) ) );
+
+        Assert.assertEquals( "Keys are loaded more than once", 1, loadCount.get() );
+        Assert.assertEquals( "Hit count is wrong", 1, keyCache.getHitCount() );
+        Assert.assertEquals( "Miss count is wrong", 1, keyCache.getMissCount() );
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData[] loaded = new EncryptedPrivateData[3];
+        final KeyCache keyCache = new KeyCache( 2, keyId ->
+        {
+            final EncryptedPrivateData privateData = newPrivateData( keyId );
+            loaded[Integer.parseInt( keyId )] = privateData;
+            return privateData;
+        } );
+
+        AesEncryptionUtils.encryptText( TEXT, "0", keyCache );
+        AesEncryptionUtils.encryptText( TEXT, "1", keyCache );
+        AesEncryptionUtils.encryptText( TEXT, "0", keyCache );
+        AesEncryptionUtils.encryptText( TEXT, "2", keyCache );
+
+        Assert.assertEquals( "Cache size is wrong", 2, keyCache.size() );
+        Assert.assertEquals( "Eviction count is wrong", 1, keyCache.getEvictionCount() );
+        Assert.assertArrayEquals( "Evicted key is not zeroed", new byte[AES_KEY_SIZE], loaded[1].getAesKey() );
+    }
+
+    @Test
+    public void expireAfterAccess_test() throws AesEncryptionException, InterruptedException
+    {
+        final KeyCache keyCache = new KeyCache( 10, 1, TimeUnit.MILLISECONDS, KeyCacheTests::newPrivateData );
+
+        AesEncryptionUtils.encryptText( TEXT, "tenant1", keyCache );
+        Thread.sleep( 5 );
+        AesEncryptionUtils.encryptText( TEXT, "tenant1", keyCache );
+
+        Assert.assertEquals( "Miss count is wrong", 2, keyCache.getMissCount() );
+        Assert.assertEquals( "Eviction count is wrong", 1, keyCache.getEvictionCount() );
+    }
+
+    @Test
+    public void invalidateDropsEngineKeys_test() throws AesEncryptionException
+    {
+        final KeyCache keyCache = new KeyCache( 10, KeyCacheTests::newPrivateData );
+        final byte[] source = TEXT.getBytes();
+
+        final AesHmacEngine[] pooledEngine = new AesHmacEngine[1];
+        final AesHmacEngine borrowedEngine = keyCache.withEngine( "tenant1", engine ->
+        {
+            // Engine of nested call is returned to the pool, and is kept here by mistake
+            pooledEngine[0] = keyCache.withEngine( "tenant1", nestedEngine -> nestedEngine );
+            Assert.assertNotSame( "Nested call borrows the same engine", engine, pooledEngine[0] );
+            keyCache.invalidate( "tenant1" );
+
+            // Borrowed engine keeps its keys until it is returned
+            Assert.assertNotNull( "Borrowed engine fails", engine.encrypt( source, new byte[16] ) );
+            Assert.assertNotNull( "Borrowed engine fails", engine.encrypt( source, new byte[16] ) );
+            return engine;
+        } );
+
+        for ( AesHmacEngine engine : new AesHmacEngine[] { pooledEngine[0], borrowedEngine } )
+        {
+            try
+            {
+                engine.encrypt( source, new byte[16] );
+                Assert.fail( "Engine keeps keys of invalidated entry" );
+            } catch ( AesEncryptionException ex )
+            {
+                // expected
+            }
+        }
+    }
+
+    private static EncryptedPrivateData newPrivateData( String keyId )
+    {
+        final byte[] aesKey = new byte[AES_KEY_SIZE];
+        final byte[] hmacKey = new byte[HMAC_KEY_SIZE];
+        aesKey[0] = (byte) keyId.hashCode();
+        hmacKey[0] = (byte) keyId.hashCode();
+        return new EncryptedPrivateData( aesKey, hmacKey );
+    }
+}
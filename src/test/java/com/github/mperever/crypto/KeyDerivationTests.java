@@ -0,0 +1,80 @@
+package com.github.mperever.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link KeyDerivation} class.
+ *
+ * @author mperever
+ *
+ */
+public class KeyDerivationTests
+{
+    private static final String TEXT = "Test text for derived keys";
+
+    @Test
+    public void hkdfRfc5869_test() throws AesEncryptionException
+    {
+        // Test case 1 of RFC 5869
+        final byte[] inputKey = new byte[22];
+        Arrays.fill( inputKey, (byte) 0x0b );
+        final byte[] outputKey = KeyDerivation.hkdf(
+                parseHex( "000102030405060708090a0b0c" ),
+                inputKey,
+                parseHex( "f0f1f2f3f4f5f6f7f8f9" ),
+                42 );
+
+        Assert.assertArrayEquals( "Output key is wrong",
+                parseHex( "3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865" ),
+                outputKey );
+    }
+
+    @Test
+    public void deriveByContext_test() throws AesEncryptionException
+    {
+        final byte[] masterSecret = AesEncryptionUtils.getAesKey();
+        final KeyDerivation derivation = new KeyDerivation( masterSecret );
+        final KeyDerivation restarted = new KeyDerivation( masterSecret );
+
+        final EncryptedPrivateData userKeys = derivation.derive( "user-1" );
+        Assert.assertArrayEquals( "Keys of the context are not stable",
+                userKeys.getAesKey(),
+                restarted.derive( "user-1" ).getAesKey() );
+        Assert.assertFalse( "AES and HMAC keys are equal",
+                Arrays.equals( userKeys.getAesKey(), userKeys.getHmacKey() ) );
+        Assert.assertFalse( "Keys of different contexts are equal",
+                Arrays.equals( userKeys.getAesKey(), derivation.derive( "user-2" ).getAesKey() ) );
+
+        final EncryptedPublicData publicData = AesEncryptionUtils.encryptText( TEXT, userKeys );
+        for ( int i = 0; i < 3; i++ )
+        {
+            final byte[] decrypted = restarted.withEngine( "user-1", engine -> engine.decrypt( publicData ) );
+            Assert.assertEquals( "Decrypted text is wrong", TEXT, new String( decrypted, StandardCharsets.UTF_8 ) );
+        }
+        Assert.assertEquals( "Derived keys are not cached", 1, restarted.getKeyCache().getMissCount() );
+
+        restarted.close();
+        try
+        {
+            restarted.derive( "user-1" );
+            Assert.fail( "Closed instance derives keys" );
+        } catch ( AesEncryptionException ex )
+        {
+            // expected
+        }
+    }
+
+    private static byte[] parseHex( String hex )
+    {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            bytes[i] = (byte) Integer.parseInt( hex.substring( i * 2, i * 2 + 2 ), 16 );
+        }
+        return bytes;
+    }
+}
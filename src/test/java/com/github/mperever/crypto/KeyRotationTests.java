@@ -0,0 +1,132 @@
+package com.github.mperever.crypto;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link KeyRotation} class.
+ *
+ * @author mperever
+ *
+ */
+public class KeyRotationTests
+{
+    private static final int RECORD_COUNT = 50;
+    private static final int BATCH_SIZE = 4;
+    private static final int PARALLELISM = 3;
+
+    @Test
+    public void rotateText_test() throws Exception
+    {
+        final EncryptedPrivateData oldKeys = newPrivateData();
+        final EncryptedPrivateData newKeys = newPrivateData();
+        final List<String> records = encryptRecords( oldKeys );
+
+        final List<String> rotated = new ArrayList<>();
+        final List<Long> checkpoints = new ArrayList<>();
+        final ExecutorService executor = Executors.newFixedThreadPool( PARALLELISM );
+        try
+        {
+            final KeyRotation rotation = new KeyRotation( oldKeys, newKeys, executor, PARALLELISM, BATCH_SIZE );
+            final long position = rotation.rotateText( records.iterator(),
+                    0,
+                    rotated::addAll,
+                    ( checkpoint, recordsPerSecond ) -> checkpoints.add( checkpoint ) );
+            Assert.assertEquals( "Final position is wrong", RECORD_COUNT, position );
+        } finally
+        {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals( "Wrong number of rotated records", RECORD_COUNT, rotated.size() );
+        for ( int i = 0; i < RECORD_COUNT; i++ )
+        {
+            Assert.assertEquals( "Rotated record is wrong or out of order",
+                    "Record " + i,
+                    AesEncryptionUtils.decryptText( rotated.get( i ), newKeys ) );
+        }
+        Assert.assertEquals( "Wrong number of progress callbacks",
+                ( RECORD_COUNT + BATCH_SIZE - 1 ) / BATCH_SIZE,
+                checkpoints.size() );
+        Assert.assertEquals( "First checkpoint is wrong", BATCH_SIZE, (long) checkpoints.get( 0 ) );
+        Assert.assertEquals( "Last checkpoint is wrong", RECORD_COUNT, (long) checkpoints.get( checkpoints.size() - 1 ) );
+    }
+
+    @Test
+    public void rotateBinaryFromCheckpoint_test() throws Exception
+    {
+        final EncryptedPrivateData oldKeys = newPrivateData();
+        final EncryptedPrivateData newKeys = newPrivateData();
+        final List<byte[]> records = new ArrayList<>();
+        for ( String record : encryptRecords( oldKeys ) )
+        {
+            records.add( Base64.getDecoder().decode( record ) );
+        }
+
+        final int resumePosition = 17;
+        final List<byte[]> rotated = new ArrayList<>();
+        final KeyRotation rotation = new KeyRotation( oldKeys, newKeys );
+        rotation.rotate( records.iterator(), resumePosition, rotated::addAll, null );
+
+        Assert.assertEquals( "Records before checkpoint are rotated", RECORD_COUNT - resumePosition, rotated.size() );
+        for ( int i = 0; i < rotated.size(); i++ )
+        {
+            final String encryptedText = Base64.getEncoder().encodeToString( rotated.get( i ) );
+            Assert.assertEquals( "Rotated record is wrong",
+                    "Record " + ( resumePosition + i ),
+                    AesEncryptionUtils.decryptText( encryptedText, newKeys ) );
+        }
+    }
+
+    @Test
+    public void rejectTamperedRecord_test() throws Exception
+    {
+        final EncryptedPrivateData oldKeys = newPrivateData();
+        final List<String> records = encryptRecords( oldKeys );
+
+        // Flip a bit of the first encrypted block
+        final int tamperedPosition = 9;
+        final byte[] tampered = Base64.getDecoder().decode( records.get( tamperedPosition ) );
+        tampered[0] ^= 1;
+        records.set( tamperedPosition, Base64.getEncoder().encodeToString( tampered ) );
+
+        final List<String> rotated = new ArrayList<>();
+        final KeyRotation rotation = new KeyRotation( oldKeys,
+                newPrivateData(),
+                Runnable::run,
+                PARALLELISM,
+                BATCH_SIZE );
+        try
+        {
+            rotation.rotateText( records.iterator(), 0, rotated::addAll, null );
+            Assert.fail( "Tampered record is rotated" );
+        } catch ( AesEncryptionException ex )
+        {
+            Assert.assertTrue( "Position is not reported: " + ex.getMessage(),
+                    ex.getMessage().contains( "position " + tamperedPosition ) );
+        }
+        Assert.assertTrue( "Records after the tampered one are written",
+                rotated.size() <= tamperedPosition / BATCH_SIZE * BATCH_SIZE );
+    }
+
+    private static List<String> encryptRecords( final EncryptedPrivateData privateData ) throws AesEncryptionException
+    {
+        final List<String> records = new ArrayList<>();
+        for ( int i = 0; i < RECORD_COUNT; i++ )
+        {
+            records.add( AesEncryptionUtils.encryptTextToString( "Record " + i, privateData ) );
+        }
+        return records;
+    }
+
+    private static EncryptedPrivateData newPrivateData() throws AesEncryptionException
+    {
+        return new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.mperever.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link LazyEncryptedPublicData} class.
+ *
+ * @author mperever
+ *
+ */
+public class LazyEncryptedPublicDataTests
+{
+    private static final String TEXT = "Test text for lazy parsing";
+
+    @Test
+    public void decodeRegions_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        for ( int length = 0; length < 40; length++ )
+        {
+            final EncryptedPublicData publicData =
+                    AesEncryptionUtils.encryptText( TEXT.substring( 0, length % TEXT.length() ), privateData );
+            final String source = publicData.saveToString();
+            final LazyEncryptedPublicData lazyData = LazyEncryptedPublicData.fromString( source );
+
+            Assert.assertEquals( "Encrypted data size is wrong",
+                    publicData.getEncryptedData().length,
+                    lazyData.getEncryptedDataSize() );
+            Assert.assertEquals( "HMAC is wrong", ByteBuffer.wrap( publicData.getHmac() ), lazyData.getHmac() );
+            Assert.assertEquals( "Initialization vector is wrong",
+                    ByteBuffer.wrap( publicData.getInitVector() ),
+                    lazyData.getInitVector() );
+            Assert.assertEquals( "Encrypted data is wrong",
+                    ByteBuffer.wrap( publicData.getEncryptedData() ),
+                    lazyData.getEncryptedData() );
+            Assert.assertTrue( "Buffer is writable", lazyData.getHmac().isReadOnly() );
+            Assert.assertSame( "Source is encoded again", source, lazyData.saveToString() );
+        }
+    }
+
+    @Test
+    public void decryptWithoutRegionAccess_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        final String source = AesEncryptionUtils.encryptText( TEXT, privateData ).saveToString();
+
+        final byte[] decrypted = AesEncryptionUtils.decrypt( LazyEncryptedPublicData.fromString( source ), privateData );
+        Assert.assertEquals( "Decrypted text is wrong", TEXT, new String( decrypted, StandardCharsets.UTF_8 ) );
+
+        // The HMAC is decoded first, then the rest of regions for decryption
+        final LazyEncryptedPublicData lazyData = LazyEncryptedPublicData.fromString( source );
+        Assert.assertEquals( "HMAC size is wrong", 32, lazyData.getHmac().remaining() );
+        Assert.assertEquals( "Decrypted text is wrong",
+                TEXT,
+                new String( AesEncryptionUtils.decrypt( lazyData, privateData ), StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void decodeInvalidRegionOnAccess_test()
+    {
+        final String source = Base64.getEncoder().encodeToString( new byte[64] );
+        // Corrupt a character of encrypted data, the HMAC and initialization vector are still readable
+        final LazyEncryptedPublicData lazyData = LazyEncryptedPublicData.fromString( "*" + source.substring( 1 ) );
+        Assert.assertEquals( "Encrypted data size is wrong", 16, lazyData.getEncryptedDataSize() );
+        Assert.assertEquals( "HMAC size is wrong", 32, lazyData.getHmac().remaining() );
+        try
+        {
+            lazyData.getEncryptedData();
+            Assert.fail( "Invalid encrypted data is decoded" );
+        } catch ( IllegalArgumentException ex )
+        {
+            // expected
+        }
+    }
+}
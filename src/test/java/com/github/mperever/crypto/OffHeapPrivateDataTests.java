@@ -0,0 +1,107 @@
+package com.github.mperever.crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link OffHeapPrivateData} class.
+ *
+ * @author mperever
+ *
+ */
+public class OffHeapPrivateDataTests
+{
+    private static final byte[] SOURCE = "Test source for off-heap keys".getBytes();
+
+    @Test
+    public void encryptAndDecrypt_test() throws AesEncryptionException
+    {
+        final EncryptedPrivateData heapData =
+                new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        try ( OffHeapPrivateData offHeapData = OffHeapPrivateData.copyOf( heapData ) )
+        {
+            final EncryptedPublicData publicData = new AesHmacEngine( offHeapData ).encrypt( SOURCE, new byte[16] );
+            Assert.assertArrayEquals( "Decrypted source is wrong",
+                    SOURCE,
+                    AesEncryptionUtils.decrypt( publicData, heapData ) );
+
+            final EncryptedPublicData gcmData = AesEncryptionUtils.encrypt( SOURCE, offHeapData, EncryptionMode.GCM );
+            Assert.assertArrayEquals( "Decrypted GCM source is wrong",
+                    SOURCE,
+                    AesEncryptionUtils.decrypt( gcmData, heapData ) );
+            Assert.assertEquals( "Saved keys are wrong", heapData.saveToString(), offHeapData.saveToString() );
+        }
+        try ( OffHeapPrivateData parsedData = OffHeapPrivateData.fromString( heapData.saveToString() ) )
+        {
+            Assert.assertArrayEquals( "Parsed AES key is wrong", heapData.getAesKey(), parsedData.getAesKey() );
+            Assert.assertArrayEquals( "Parsed HMAC key is wrong", heapData.getHmacKey(), parsedData.getHmacKey() );
+        }
+    }
+
+    @Test
+    public void closeZeroesKeys_test() throws AesEncryptionException
+    {
+        final OffHeapPrivateData privateData = OffHeapPrivateData.generate();
+        final AesHmacEngine engine = new AesHmacEngine( privateData );
+        privateData.close();
+        privateData.close();
+        Assert.assertTrue( "Keys are not closed", privateData.isClosed() );
+
+        try
+        {
+            privateData.withAesKey( key -> key );
+            Assert.fail( "Closed keys are borrowed" );
+        } catch ( AesEncryptionException ex )
+        {
+            // expected
+        }
+        try
+        {
+            new AesHmacEngine( privateData );
+            Assert.fail( "Engine is created from closed keys" );
+        } catch ( AesEncryptionException ex )
+        {
+            // expected
+        }
+
+        try
+        {
+            engine.encrypt( SOURCE, new byte[16] );
+            Assert.fail( "Existing engine keeps closed keys" );
+        } catch ( AesEncryptionException ex )
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void encryptAfterClose_test() throws AesEncryptionException
+    {
+        final OffHeapPrivateData privateData = OffHeapPrivateData.generate();
+
+        // Engines of current thread are cached with key material before close
+        final EncryptedPublicData publicData = AesEncryptionUtils.encrypt( SOURCE, privateData );
+        AesEncryptionUtils.encrypt( SOURCE, privateData, EncryptionMode.GCM );
+        privateData.close();
+
+        for ( EncryptionMode mode : EncryptionMode.values() )
+        {
+            try
+            {
+                AesEncryptionUtils.encrypt( SOURCE, privateData, mode );
+                Assert.fail( "Source is encrypted with closed keys in mode: " + mode );
+            } catch ( AesEncryptionException ex )
+            {
+                // expected
+            }
+        }
+        try
+        {
+            AesEncryptionUtils.decrypt( publicData, privateData );
+            Assert.fail( "Source is decrypted with closed keys" );
+        } catch ( AesEncryptionException ex )
+        {
+            // expected
+        }
+    }
+}
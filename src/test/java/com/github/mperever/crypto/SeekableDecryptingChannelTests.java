@@ -0,0 +1,96 @@
+package com.github.mperever.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link SeekableDecryptingChannel} class.
+ *
+ * @author mperever
+ *
+ */
+public class SeekableDecryptingChannelTests
+{
+    private static final int SEGMENT_SIZE = 1024;
+    private static final EncryptedPrivateData PRIVATE_DATA =
+            new EncryptedPrivateData( new byte[32], new byte[32] );
+
+    @Test
+    public void readRanges_test() throws AesEncryptionException, IOException
+    {
+        final byte[] source = new byte[10 * SEGMENT_SIZE + 7];
+        new Random( 1 ).nextBytes( source );
+        final byte[] encrypted = new SegmentedAesEncryption( SEGMENT_SIZE, 0, ForkJoinPool.commonPool() )
+                .encrypt( source, PRIVATE_DATA );
+
+        final Path encryptedFile = Files.createTempFile( "encrypted", ".bin" );
+        try
+        {
+            Files.write( encryptedFile, encrypted );
+            try ( SeekableDecryptingChannel channel =
+                          new SeekableDecryptingChannel( Files.newByteChannel( encryptedFile ), PRIVATE_DATA ) )
+            {
+                Assert.assertEquals( "Size is wrong", source.length, channel.size() );
+
+                // Ranges inside one segment, across segments and at the end
+                for ( int[] range : new int[][] { { 5, 100 }, { SEGMENT_SIZE - 10, 3 * SEGMENT_SIZE }, { source.length - 20, 20 } } )
+                {
+                    final ByteBuffer actual = ByteBuffer.allocate( range[1] );
+                    channel.position( range[0] );
+                    while ( actual.hasRemaining() && channel.read( actual ) >= 0 )
+                    {
+                        // read until the buffer is full
+                    }
+                    Assert.assertArrayEquals( "Range is wrong",
+                            Arrays.copyOfRange( source, range[0], range[0] + range[1] ),
+                            actual.array() );
+                }
+                Assert.assertEquals( "End of source is not reached", -1, channel.read( ByteBuffer.allocate( 1 ) ) );
+            }
+        } finally
+        {
+            Files.deleteIfExists( encryptedFile );
+        }
+    }
+
+    @Test
+    public void readTamperedSegment_test() throws AesEncryptionException, IOException
+    {
+        final byte[] source = new byte[4 * SEGMENT_SIZE];
+        final byte[] encrypted = new SegmentedAesEncryption( SEGMENT_SIZE, 0, ForkJoinPool.commonPool() )
+                .encrypt( source, PRIVATE_DATA );
+
+        // Tamper the last segment only
+        encrypted[encrypted.length - 100] ^= 1;
+        final Path encryptedFile = Files.createTempFile( "encrypted", ".bin" );
+        try
+        {
+            Files.write( encryptedFile, encrypted );
+            try ( SeekableByteChannel channel =
+                          new SeekableDecryptingChannel( Files.newByteChannel( encryptedFile ), PRIVATE_DATA ) )
+            {
+                Assert.assertEquals( "Untouched segment is not read", 16, channel.read( ByteBuffer.allocate( 16 ) ) );
+                try
+                {
+                    channel.position( 3 * SEGMENT_SIZE ).read( ByteBuffer.allocate( 16 ) );
+                    Assert.fail( "Tampered segment is decrypted" );
+                } catch ( IOException ex )
+                {
+                    Assert.assertTrue( "Wrong cause", ex.getCause() instanceof AesEncryptionException );
+                }
+            }
+        } finally
+        {
+            Files.deleteIfExists( encryptedFile );
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.mperever.crypto;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link SegmentedAesEncryption} class.
+ *
+ * @author mperever
+ *
+ */
+public class SegmentedAesEncryptionTests
+{
+    private static final int SEGMENT_SIZE = 1024;
+    private static final EncryptedPrivateData PRIVATE_DATA =
+            new EncryptedPrivateData( new byte[32], new byte[32] );
+
+    @Test
+    public void encryptAndDecrypt_test() throws AesEncryptionException
+    {
+        final SegmentedAesEncryption sequential =
+                new SegmentedAesEncryption( SEGMENT_SIZE, Integer.MAX_VALUE, ForkJoinPool.commonPool() );
+        final SegmentedAesEncryption parallel =
+                new SegmentedAesEncryption( SEGMENT_SIZE, 0, ForkJoinPool.commonPool() );
+
+        for ( int size : new int[] { 0, 1, SEGMENT_SIZE, 10 * SEGMENT_SIZE + 7 } )
+        {
+            final byte[] source = new byte[size];
+            new Random( size ).nextBytes( source );
+
+            final byte[] encrypted = parallel.encrypt( source, PRIVATE_DATA );
+            Assert.assertEquals( "Encrypted size is wrong", parallel.getEncryptedSize( size ), encrypted.length );
+
+            // Parallel and sequential processing produce the same format
+            Assert.assertArrayEquals( "Decrypted bytes are wrong", source, sequential.decrypt( encrypted, PRIVATE_DATA ) );
+            Assert.assertArrayEquals( "Decrypted bytes are wrong",
+                    source,
+                    parallel.decrypt( sequential.encrypt( source, PRIVATE_DATA ), PRIVATE_DATA ) );
+        }
+    }
+
+    @Test
+    public void decryptTampered_test() throws AesEncryptionException
+    {
+        final SegmentedAesEncryption encryption =
+                new SegmentedAesEncryption( SEGMENT_SIZE, 0, ForkJoinPool.commonPool() );
+        final byte[] encrypted = encryption.encrypt( new byte[10 * SEGMENT_SIZE], PRIVATE_DATA );
+
+        // Corrupt encrypted segment, segment HMAC, and final HMAC
+        final int[] offsets = new int[] { 40, 5 * SEGMENT_SIZE, encrypted.length - 1 };
+        for ( int offset : offsets )
+        {
+            final byte[] tampered = encrypted.clone();
+            tampered[offset] ^= 1;
+            try
+            {
+                encryption.decrypt( tampered, PRIVATE_DATA );
+                Assert.fail( "Tampered byte is not detected at " + offset );
+            } catch ( AesEncryptionException ex )
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void encryptAndDecryptFile_test() throws AesEncryptionException, IOException
+    {
+        final SegmentedAesEncryption parallel =
+                new SegmentedAesEncryption( SEGMENT_SIZE, 0, ForkJoinPool.commonPool() );
+        final Path sourceFile = Files.createTempFile( "source", ".bin" );
+        final Path encryptedFile = Files.createTempFile( "encrypted", ".bin" );
+        final Path decryptedFile = Files.createTempFile( "decrypted", ".bin" );
+        try
+        {
+            for ( int size : new int[] { 0, 1, 100 * SEGMENT_SIZE + 7 } )
+            {
+                final byte[] source = new byte[size];
+                new Random( size ).nextBytes( source );
+                Files.write( sourceFile, source );
+
+                parallel.encryptFile( sourceFile, encryptedFile, PRIVATE_DATA );
+                Assert.assertEquals( "Encrypted size is wrong", parallel.getEncryptedSize( size ), Files.size( encryptedFile ) );
+
+                // File and in-memory encryption produce the same format
+                final byte[] encrypted = Files.readAllBytes( encryptedFile );
+                Assert.assertArrayEquals( "Decrypted bytes are wrong", source, parallel.decrypt( encrypted, PRIVATE_DATA ) );
+
+                parallel.decryptFile( encryptedFile, decryptedFile, PRIVATE_DATA );
+                Assert.assertArrayEquals( "Decrypted file is wrong", source, Files.readAllBytes( decryptedFile ) );
+            }
+
+            // Tampered file is not decrypted
+            final byte[] encrypted = Files.readAllBytes( encryptedFile );
+            encrypted[encrypted.length / 2] ^= 1;
+            Files.write( encryptedFile, encrypted );
+            try
+            {
+                parallel.decryptFile( encryptedFile, decryptedFile, PRIVATE_DATA );
+                Assert.fail( "Tampered file is decrypted" );
+            } catch ( AesEncryptionException ex )
+            {
+                Assert.assertFalse( "Decrypted file is not deleted", Files.exists( decryptedFile ) );
+            }
+
+            // Partly encrypted file is not left behind
+            final OffHeapPrivateData closedData = OffHeapPrivateData.generate();
+            closedData.close();
+            try
+            {
+                parallel.encryptFile( sourceFile, encryptedFile, closedData );
+                Assert.fail( "File is encrypted with closed keys" );
+            } catch ( AesEncryptionException ex )
+            {
+                Assert.assertFalse( "Encrypted file is not deleted", Files.exists( encryptedFile ) );
+            }
+        } finally
+        {
+            Files.deleteIfExists( sourceFile );
+            Files.deleteIfExists( encryptedFile );
+            Files.deleteIfExists( decryptedFile );
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.mperever.crypto;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link ThreadLocalRandomSource} class.
+ *
+ * @author mperever
+ *
+ */
+public class ThreadLocalRandomSourceTests
+{
+    private static final int SIZE = 16;
+
+    @Test
+    public void nextBytes_test() throws AesEncryptionException
+    {
+        final ThreadLocalRandomSource source = new ThreadLocalRandomSource();
+        Assert.assertNotNull( "Algorithm is null", source.getAlgorithm() );
+
+        final byte[] first = new byte[SIZE];
+        final byte[] second = new byte[SIZE];
+        source.nextBytes( first );
+        source.nextBytes( second );
+        Assert.assertFalse( "Random bytes are the same", Arrays.equals( first, second ) );
+    }
+
+    @Test
+    public void reseed_test() throws AesEncryptionException
+    {
+        // Generator is replaced after every call
+        final ThreadLocalRandomSource source = new ThreadLocalRandomSource( "SHA1PRNG", 1 );
+
+        final byte[] first = new byte[SIZE];
+        final byte[] second = new byte[SIZE];
+        source.nextBytes( first );
+        source.nextBytes( second );
+        Assert.assertFalse( "Random bytes are the same", Arrays.equals( first, second ) );
+    }
+
+    @Test( expected = AesEncryptionException.class )
+    public void unknownAlgorithm_test() throws AesEncryptionException
+    {
+        new ThreadLocalRandomSource( "UNKNOWN", ThreadLocalRandomSource.DEFAULT_RESEED_INTERVAL );
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.mperever.crypto.metrics;
+
+import com.github.mperever.crypto.AesEncryptionException;
+import com.github.mperever.crypto.AesEncryptionUtils;
+import com.github.mperever.crypto.EncryptedPrivateData;
+import com.github.mperever.crypto.EncryptedPublicData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link JmxCryptoMetrics} class.
+ *
+ * @author mperever
+ *
+ */
+public class JmxCryptoMetricsTests
+{
+    @Test
+    public void recordOperations_test() throws Exception
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        final JmxCryptoMetrics metrics = new JmxCryptoMetrics();
+        AesEncryptionUtils.setMetrics( metrics );
+        try
+        {
+            final EncryptedPublicData publicData = AesEncryptionUtils.encrypt( new byte[100], privateData );
+            AesEncryptionUtils.decrypt( publicData, privateData );
+
+            final byte[] hmac = publicData.getHmac();
+            hmac[0] ^= 1;
+            try
+            {
+                AesEncryptionUtils.decrypt(
+                        new EncryptedPublicData( publicData.getEncryptedData(), publicData.getInitVector(), hmac ),
+                        privateData );
+                Assert.fail( "Tampered HMAC is accepted" );
+            } catch ( AesEncryptionException ex )
+            {
+                // expected
+            }
+        } finally
+        {
+            AesEncryptionUtils.setMetrics( CryptoMetrics.NOOP );
+        }
+
+        final OperationMetrics encrypt = metrics.getMetrics( Operation.ENCRYPT, PayloadSizeBucket.UP_TO_1KB );
+        Assert.assertEquals( "Wrong encrypt count", 1, encrypt.getSuccessCount() );
+        Assert.assertTrue( "Encrypt latency is not recorded", encrypt.getMaxNanos() > 0 );
+
+        final OperationMetrics decrypt = metrics.getMetrics( Operation.DECRYPT, PayloadSizeBucket.UP_TO_1KB );
+        Assert.assertEquals( "Wrong decrypt count", 1, decrypt.getSuccessCount() );
+        Assert.assertEquals( "Wrong decrypt failure count", 1, decrypt.getFailureCount() );
+
+        final OperationMetrics verify = metrics.getMetrics( Operation.HMAC_VERIFY, PayloadSizeBucket.UP_TO_1KB );
+        Assert.assertEquals( "Wrong HMAC failure count", 1, verify.getFailureCount() );
+    }
+
+    @Test
+    public void recordByteSizesAndInitVectors_test() throws Exception
+    {
+        final EncryptedPrivateData privateData =
+                new EncryptedPrivateData( AesEncryptionUtils.getAesKey(), AesEncryptionUtils.getHmacKey() );
+        // 600 chars are 1800 bytes in UTF-8
+        final String text = String.join( "", Collections.nCopies( 600, "\u20ac" ) );
+        final JmxCryptoMetrics metrics = new JmxCryptoMetrics();
+        AesEncryptionUtils.setMetrics( metrics );
+        try
+        {
+            final String encryptedText = AesEncryptionUtils.encryptTextToString( text, privateData );
+            Assert.assertEquals( "Decrypted text is wrong", text, AesEncryptionUtils.decryptText( encryptedText, privateData ) );
+
+            final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            AesEncryptionUtils.encrypt( new ByteArrayInputStream( new byte[100] ), encrypted, privateData );
+            AesEncryptionUtils.decrypt( new ByteArrayInputStream( encrypted.toByteArray() ),
+                    new ByteArrayOutputStream(),
+                    privateData );
+        } finally
+        {
+            AesEncryptionUtils.setMetrics( CryptoMetrics.NOOP );
+        }
+
+        Assert.assertEquals( "Text encryption is not bucketed by bytes",
+                1,
+                metrics.getMetrics( Operation.ENCRYPT, PayloadSizeBucket.UP_TO_64KB ).getSuccessCount() );
+        Assert.assertEquals( "Text decryption is not bucketed by bytes",
+                1,
+                metrics.getMetrics( Operation.DECRYPT, PayloadSizeBucket.UP_TO_64KB ).getSuccessCount() );
+        Assert.assertEquals( "Stream encryption is not recorded",
+                1,
+                metrics.getMetrics( Operation.ENCRYPT, PayloadSizeBucket.UP_TO_1KB ).getSuccessCount() );
+        Assert.assertEquals( "Stream decryption is not recorded",
+                1,
+                metrics.getMetrics( Operation.DECRYPT, PayloadSizeBucket.UP_TO_1KB ).getSuccessCount() );
+        Assert.assertEquals( "Initialization vectors are not recorded",
+                2,
+                metrics.getMetrics( Operation.IV_GENERATION, PayloadSizeBucket.UP_TO_1KB ).getSuccessCount() );
+        Assert.assertEquals( "Initialization vectors are recorded as keys",
+                0,
+                metrics.getMetrics( Operation.KEY_GENERATION, PayloadSizeBucket.UP_TO_1KB ).getSuccessCount() );
+    }
+
+    @Test
+    public void registerMBeans_test() throws Exception
+    {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final JmxCryptoMetrics metrics = new JmxCryptoMetrics( "com.github.mperever.crypto.test" );
+        final ObjectName name = new ObjectName(
+                "com.github.mperever.crypto.test:type=CryptoMetrics,operation=DECRYPT,payloadSize=ABOVE_1MB" );
+
+        metrics.register();
+        try
+        {
+            Assert.assertTrue( "MBean is not registered", server.isRegistered( name ) );
+            metrics.record( Operation.DECRYPT, 2 << 20, 1_000, true );
+            Assert.assertEquals( "Wrong MBean success count", 1L, server.getAttribute( name, "SuccessCount" ) );
+        } finally
+        {
+            metrics.unregister();
+        }
+        Assert.assertFalse( "MBean is not unregistered", server.isRegistered( name ) );
+    }
+}
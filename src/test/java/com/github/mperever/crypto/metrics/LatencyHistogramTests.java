@@ -0,0 +1,52 @@
+package com.github.mperever.crypto.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Represents unit tests for {@link LatencyHistogram} class.
+ *
+ * @author mperever
+ *
+ */
+public class LatencyHistogramTests
+{
+    @Test
+    public void bucketBounds_test()
+    {
+        for ( long value : new long[] {0, 1, 7, 8, 9, 15, 16, 100, 1_000_000, Long.MAX_VALUE} )
+        {
+            final int index = LatencyHistogram.getIndex( value );
+            Assert.assertTrue( "Value is above upper bound of its bucket",
+                    value <= LatencyHistogram.getUpperBound( index ) );
+            Assert.assertTrue( "Value is below upper bound of previous bucket",
+                    index == 0 || value > LatencyHistogram.getUpperBound( index - 1 ) );
+        }
+    }
+
+    @Test
+    public void valueAtPercentile_test()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals( "Empty histogram has percentile", 0, histogram.getValueAtPercentile( 99 ) );
+
+        for ( long value = 1; value <= 10_000; value++ )
+        {
+            histogram.record( value );
+        }
+
+        Assert.assertEquals( "Wrong count", 10_000, histogram.getCount() );
+        Assert.assertEquals( "Wrong max", 10_000, histogram.getMax() );
+        Assert.assertEquals( "Wrong mean", 5000.5, histogram.getMean(), 0.001 );
+        assertWithinError( 5_000, histogram.getValueAtPercentile( 50 ) );
+        assertWithinError( 9_900, histogram.getValueAtPercentile( 99 ) );
+        assertWithinError( 9_990, histogram.getValueAtPercentile( 99.9 ) );
+        Assert.assertEquals( "Wrong 100th percentile", 10_000, histogram.getValueAtPercentile( 100 ) );
+    }
+
+    private static void assertWithinError( long expected, long actual )
+    {
+        Assert.assertTrue( "Percentile " + actual + " is not close to " + expected,
+                actual >= expected && actual <= expected * 1.125 );
+    }
+}